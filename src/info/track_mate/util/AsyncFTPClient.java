@@ -0,0 +1,78 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.Future;
+
+/**
+ * An asynchronous counterpart to {@link FTPClient}. Every operation runs on its own session
+ * borrowed from a pool, so any number of operations can be in flight at once, and returns a
+ * Future straight away. Cancelling the Future, or the operation running for longer than its
+ * timeout, closes the operation's session so that blocked network reads give up immediately.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public interface AsyncFTPClient {
+
+  /** Open a session to the server, checking that it can be reached and the credentials are
+   * accepted. The session is left in the pool ready for the next operation.
+   *
+   * @param timeoutMillis The time in milliseconds after which the operation is abandoned, or 0 for no limit.
+   * @param handler The handler to notify when the operation finishes, or null.
+   * @return A Future that completes once the session has been opened.
+   */
+  Future<Void> connect(final long timeoutMillis, final FTPCompletionHandler<Void> handler);
+
+  /** List the files in a remote directory.
+   *
+   * @param remoteDirectory The directory to list, or null for the login directory.
+   * @param timeoutMillis The time in milliseconds after which the operation is abandoned, or 0 for no limit.
+   * @param handler The handler to notify when the operation finishes, or null.
+   * @return A Future for the files in the directory.
+   */
+  Future<Collection<FTPFile>> listFiles(final String remoteDirectory, final long timeoutMillis,
+          final FTPCompletionHandler<Collection<FTPFile>> handler);
+
+  /** Download a remote file into memory.
+   *
+   * @param remoteDirectory The directory holding the file, or null for the login directory.
+   * @param remoteFileName The name of the file to download.
+   * @param timeoutMillis The time in milliseconds after which the operation is abandoned, or 0 for no limit.
+   * @param handler The handler to notify when the operation finishes, or null.
+   * @return A Future for the downloaded file.
+   */
+  Future<FileData> download(final String remoteDirectory, final String remoteFileName, final long timeoutMillis,
+          final FTPCompletionHandler<FileData> handler);
+
+  /** Download a remote file to a location on disk.
+   *
+   * @param remoteDirectory The directory holding the file, or null for the login directory.
+   * @param remoteFileName The name of the file to download.
+   * @param localFilePath The path to the location on disk to save the downloaded file.
+   * @param timeoutMillis The time in milliseconds after which the operation is abandoned, or 0 for no limit.
+   * @param handler The handler to notify when the operation finishes, or null.
+   * @return A Future for the location of the downloaded file.
+   */
+  Future<File> downloadToDisk(final String remoteDirectory, final String remoteFileName, final String localFilePath,
+          final long timeoutMillis, final FTPCompletionHandler<File> handler);
+
+  /** Stop accepting operations and release any threads owned by the client. Operations already
+   * in flight are allowed to finish.
+   */
+  void close();
+}
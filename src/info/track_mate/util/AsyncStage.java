@@ -0,0 +1,348 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link StreamStage} that moves everything before it in a {@link StreamPipeline} onto a
+ * separate thread. That thread reads ahead into a fixed number of reusable chunks and blocks once
+ * they are all full, so a slow reader holds back the stages before it rather than letting them
+ * fill memory.
+ * <p>
+ * Errors on the reading thread are rethrown to the reader. Closing the stream stops the reading
+ * thread and waits for it to close the stream it reads from, so the source is normally closed by
+ * the time {@link InputStream#close()} returns. If the reading thread is stuck in a read, for
+ * example on a stalled socket, close() closes the source itself to unblock it rather than wait
+ * for the read to time out.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class AsyncStage implements StreamStage {
+
+  /** The default number of chunks that can be read ahead. */
+  public static final int DEFAULT_CHUNK_COUNT = 16;
+  /** The default size of each chunk in bytes. */
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  /** How often a blocked thread checks whether the other side has gone away. */
+  private static final long POLL_INTERVAL_MILLIS = 100;
+  /** How long close() waits for the reading thread at each step before moving on. */
+  private static final long CLOSE_WAIT_MILLIS = 1000;
+
+  /** The number of reading threads started without an executor, used to name them. */
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  /** The number of chunks that can be read ahead. */
+  private final int chunkCount;
+  /** The size of each chunk in bytes. */
+  private final int chunkSize;
+  /** The executor to read on, or null to start a new daemon thread for each stream. */
+  private final Executor executor;
+
+  /**
+   * Creates a new AsyncStage with the default read-ahead, reading on a new thread per stream.
+   */
+  public AsyncStage() {
+    this(DEFAULT_CHUNK_COUNT, DEFAULT_CHUNK_SIZE, null);
+  }
+
+  /**
+   * Creates a new AsyncStage.
+   * @param chunkCount The number of chunks that can be read ahead.
+   * @param chunkSize The size of each chunk in bytes.
+   * @param executor The executor to read on, or null to start a new daemon thread per stream.
+   */
+  public AsyncStage(int chunkCount, int chunkSize, Executor executor) {
+    if (chunkCount < 1 || chunkSize < 1) {
+      throw new IllegalArgumentException("Chunk count and size must be positive");
+    }
+    this.chunkCount = chunkCount;
+    this.chunkSize = chunkSize;
+    this.executor = executor;
+  }
+
+  /** {@inheritDoc} */
+  public InputStream open(InputStream in) throws IOException {
+    HandoffInputStream handoff = new HandoffInputStream(in, chunkCount, chunkSize);
+    if (executor != null) {
+      executor.execute(handoff);
+    } else {
+      Thread thread = new Thread(handoff, "AsyncStage-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return handoff;
+  }
+
+  /**
+   * A block of bytes handed from the reading thread to the consumer.
+   */
+  private static final class Chunk {
+
+    /** The chunk that marks the end of the stream. */
+    private static final Chunk END = new Chunk(0);
+
+    /** The bytes. */
+    private final byte[] data;
+    /** The number of valid bytes in {@link #data}. */
+    private int length;
+
+    private Chunk(int size) {
+      this.data = new byte[size];
+    }
+  }
+
+  /**
+   * The stream handed to the consumer; its {@link #run()} method is the reading thread.
+   */
+  private static final class HandoffInputStream extends InputStream implements Runnable {
+
+    /** The stream read on the reading thread. */
+    private final InputStream source;
+    /** Chunks holding bytes ready for the consumer. */
+    private final BlockingQueue<Chunk> filled;
+    /** Chunks the consumer has finished with. */
+    private final BlockingQueue<Chunk> empty;
+    /** The chunk the consumer is reading, or null. */
+    private Chunk current;
+    /** The position of the consumer within {@link #current}. */
+    private int position;
+    /** True once the consumer has seen the end of the stream. */
+    private boolean ended;
+    /** Set when the consumer closes the stream. */
+    private volatile boolean closed;
+    /** The error that stopped the reading thread, or null. */
+    private volatile IOException failure;
+    /** The error closing the source after the consumer closed the stream, or null. */
+    private IOException closeFailure;
+    /** Guards {@link #running}, {@link #finished} and {@link #closeFailure}. */
+    private final Object lock = new Object();
+    /** True once the reading thread has started. */
+    private boolean running;
+    /** True once the source has been closed. */
+    private boolean finished;
+    /** Set by whichever thread closes the source first, so that it is only closed once. */
+    private final AtomicBoolean sourceClosed = new AtomicBoolean();
+
+    private HandoffInputStream(InputStream source, int chunkCount, int chunkSize) {
+      this.source = source;
+      this.filled = new ArrayBlockingQueue<Chunk>(chunkCount + 1);
+      this.empty = new ArrayBlockingQueue<Chunk>(chunkCount);
+      for (int i = 0; i < chunkCount; i++) {
+        empty.add(new Chunk(chunkSize));
+      }
+    }
+
+    /** Read the source into chunks until it ends, fails or the consumer closes the stream. */
+    public void run() {
+      synchronized (lock) {
+        if (closed) {
+          return;
+        }
+        running = true;
+      }
+      try {
+        while (!closed) {
+          Chunk chunk = empty.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+          if (chunk == null) {
+            continue;
+          }
+          int length = fill(chunk.data);
+          if (length == 0) {
+            break;
+          }
+          chunk.length = length;
+          filled.put(chunk);
+        }
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = new IOException("Pipeline stage failed", e);
+      } catch (InterruptedException e) {
+        failure = new InterruptedIOException("Pipeline stage interrupted");
+      } finally {
+        IOException error = closeSource();
+        if (error != null && failure == null && !closed) {
+          failure = error;
+        }
+        // There is always room for the end marker, as only chunkCount chunks exist.
+        filled.offer(Chunk.END);
+        synchronized (lock) {
+          if (closed && error != null) {
+            closeFailure = error;
+          }
+          finished = true;
+          lock.notifyAll();
+        }
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int length = read(b, 0, 1);
+      return length == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (current == null || position == current.length) {
+        if (!nextChunk()) {
+          return -1;
+        }
+      }
+      int length = Math.min(len, current.length - position);
+      System.arraycopy(current.data, position, b, off, length);
+      position += length;
+      return length;
+    }
+
+    @Override
+    public int available() {
+      return current == null ? 0 : current.length - position;
+    }
+
+    /**
+     * Stop the reading thread and wait for it to close the source. If the reading thread never
+     * started, the source is closed here instead; if it doesn't finish within
+     * {@link #CLOSE_WAIT_MILLIS}, as it is stuck in a read, the source is closed here to unblock
+     * it, and the thread is given the same time again to finish.
+     * @throws IOException If the source could not be closed, or the wait was interrupted.
+     */
+    @Override
+    public void close() throws IOException {
+      synchronized (lock) {
+        closed = true;
+        if (!running && !finished) {
+          finished = true;
+          closeFailure = closeSource();
+        }
+        awaitFinished();
+        if (!finished) {
+          IOException error = closeSource();
+          if (error != null) {
+            closeFailure = error;
+          }
+          awaitFinished();
+        }
+        IOException error = closeFailure;
+        closeFailure = null;
+        if (error != null) {
+          throw error;
+        }
+      }
+    }
+
+    /**
+     * Hand the current chunk back and wait for the next one.
+     * @return true if there is a next chunk, false at the end of the stream.
+     * @throws IOException If the reading thread failed or the wait was interrupted.
+     */
+    private boolean nextChunk() throws IOException {
+      if (ended) {
+        return false;
+      }
+      if (current != null) {
+        empty.offer(current);
+        current = null;
+      }
+      Chunk chunk;
+      try {
+        chunk = filled.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for pipeline stage");
+      }
+      if (chunk == Chunk.END) {
+        ended = true;
+        if (failure != null) {
+          throw failure;
+        }
+        return false;
+      }
+      current = chunk;
+      position = 0;
+      return true;
+    }
+
+    /**
+     * Wait up to {@link #CLOSE_WAIT_MILLIS} for the reading thread to finish. Must be called
+     * while synchronized on {@link #lock}.
+     * @throws IOException If the wait was interrupted.
+     */
+    private void awaitFinished() throws IOException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_WAIT_MILLIS);
+      try {
+        long remaining;
+        while (!finished && (remaining = deadline - System.nanoTime()) > 0) {
+          TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for pipeline stage to close");
+      }
+    }
+
+    /**
+     * Close the source, unless another thread already has.
+     * @return The error closing it, or null if it closed cleanly or was already closed.
+     */
+    private IOException closeSource() {
+      if (!sourceClosed.compareAndSet(false, true)) {
+        return null;
+      }
+      try {
+        source.close();
+        return null;
+      } catch (IOException e) {
+        return e;
+      }
+    }
+
+    /**
+     * Fill a chunk from the source.
+     * @param data The chunk's buffer.
+     * @return The number of bytes read, which is only less than the buffer at the end.
+     * @throws IOException If the source could not be read.
+     */
+    private int fill(byte[] data) throws IOException {
+      int total = 0;
+      while (total < data.length) {
+        int length = source.read(data, total, data.length - total);
+        if (length == -1) {
+          break;
+        }
+        total += length;
+      }
+      return total;
+    }
+  }
+}
@@ -0,0 +1,348 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * A calendar of the business days in a range of years, for working day arithmetic such as
+ * settlement dates. Business days are the days that are neither weekend days nor holidays.
+ * <p>
+ * Every day of the covered years is precomputed as one bit, with a running count of business
+ * days at each 64 day word and a list of the business days in order, so checking a day,
+ * counting the business days between two days and adding a number of business days to a day
+ * all take constant time. Days follow {@link DateHelper#dayStart(long, TimeZone)} in the
+ * calendar's timezone: any instant identifies the local day containing it, and days are returned
+ * as their first millisecond. Calendars are immutable and thread safe.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class BusinessDayCalendar {
+
+  /** The weekend days used when none are given: Saturday and Sunday. */
+  private static final int[] DEFAULT_WEEKEND_DAYS = { Calendar.SATURDAY, Calendar.SUNDAY };
+  /** The day of the week of day 0, 1970-01-01, less {@link Calendar#SUNDAY}. */
+  private static final int EPOCH_DAY_OF_WEEK_OFFSET = Calendar.THURSDAY - Calendar.SUNDAY;
+
+  /** The timezone that defines the days. */
+  private final TimeZone timezone;
+  /** The first year covered. */
+  private final int firstYear;
+  /** The last year covered. */
+  private final int lastYear;
+  /** The day number of the first day covered, as {@link DateHelper#localDay(long, TimeZone)}. */
+  private final long firstDay;
+  /** The number of days covered. */
+  private final int dayCount;
+  /** One bit per day covered, set for business days, with the first day in the lowest bit. */
+  private final long[] businessDayBits;
+  /** The number of business days before each word of {@link #businessDayBits}, then the total. */
+  private final int[] businessDaysBefore;
+  /** The offset from {@link #firstDay} of each business day, in order. */
+  private final int[] businessDays;
+
+  /**
+   * Creates a new BusinessDayCalendar with Saturday and Sunday as the weekend.
+   * @param timezone The timezone that defines the days.
+   * @param firstYear The first year to cover.
+   * @param lastYear The last year to cover.
+   * @param holidays An instant in each holiday. Holidays outside the covered years are ignored.
+   */
+  public BusinessDayCalendar(TimeZone timezone, int firstYear, int lastYear, Collection<Date> holidays) {
+    this(timezone, firstYear, lastYear, DEFAULT_WEEKEND_DAYS, toDays(holidays, timezone));
+  }
+
+  /**
+   * Creates a new BusinessDayCalendar.
+   * @param timezone The timezone that defines the days.
+   * @param firstYear The first year to cover.
+   * @param lastYear The last year to cover.
+   * @param weekendDays The days of the week that are never business days, as Calendar constants
+   * such as {@link Calendar#SATURDAY}.
+   * @param holidays An instant in each holiday. Holidays outside the covered years are ignored.
+   */
+  public BusinessDayCalendar(TimeZone timezone, int firstYear, int lastYear, int[] weekendDays,
+      Collection<Date> holidays) {
+    this(timezone, firstYear, lastYear, weekendDays, toDays(holidays, timezone));
+  }
+
+  /**
+   * Creates a new BusinessDayCalendar.
+   * @param timezone The timezone that defines the days.
+   * @param firstYear The first year to cover.
+   * @param lastYear The last year to cover.
+   * @param weekendDays The days of the week that are never business days.
+   * @param holidayDays The day number of each holiday.
+   */
+  private BusinessDayCalendar(TimeZone timezone, int firstYear, int lastYear, int[] weekendDays, long[] holidayDays) {
+    if (lastYear < firstYear) {
+      throw new IllegalArgumentException("Invalid range of years: " + firstYear + " to " + lastYear);
+    }
+    this.timezone = (TimeZone) timezone.clone();
+    this.firstYear = firstYear;
+    this.lastYear = lastYear;
+    this.firstDay = DateHelper.toDay(firstYear, 1, 1);
+    long endDay = DateHelper.toDay(lastYear + 1L, 1, 1);
+    if (endDay - firstDay > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many years: " + firstYear + " to " + lastYear);
+    }
+    this.dayCount = (int) (endDay - firstDay);
+
+    boolean[] weekend = new boolean[Calendar.SATURDAY + 1];
+    for (int dayOfWeek : weekendDays) {
+      if (dayOfWeek < Calendar.SUNDAY || dayOfWeek > Calendar.SATURDAY) {
+        throw new IllegalArgumentException("Invalid day of the week: " + dayOfWeek);
+      }
+      weekend[dayOfWeek] = true;
+    }
+    businessDayBits = new long[(dayCount + 63) >>> 6];
+    for (int offset = 0; offset < dayCount; offset++) {
+      if (!weekend[getDayOfWeek(firstDay + offset)]) {
+        businessDayBits[offset >>> 6] |= 1L << offset;
+      }
+    }
+    for (long holidayDay : holidayDays) {
+      if (holidayDay >= firstDay && holidayDay < endDay) {
+        int offset = (int) (holidayDay - firstDay);
+        businessDayBits[offset >>> 6] &= ~(1L << offset);
+      }
+    }
+
+    businessDaysBefore = new int[businessDayBits.length + 1];
+    for (int word = 0; word < businessDayBits.length; word++) {
+      businessDaysBefore[word + 1] = businessDaysBefore[word] + Long.bitCount(businessDayBits[word]);
+    }
+    businessDays = new int[businessDaysBefore[businessDayBits.length]];
+    int count = 0;
+    for (int word = 0; word < businessDayBits.length; word++) {
+      long bits = businessDayBits[word];
+      while (bits != 0) {
+        businessDays[count++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+      }
+    }
+  }
+
+  /**
+   * Create a calendar from a holiday list with one date per line in the form yyyy-MM-dd. Blank
+   * lines and lines starting with # are ignored. The stream is read to the end and closed.
+   * @param holidayList The holiday list.
+   * @param timezone The timezone that defines the days.
+   * @param firstYear The first year to cover.
+   * @param lastYear The last year to cover.
+   * @param weekendDays The days of the week that are never business days, as Calendar constants
+   * such as {@link Calendar#SATURDAY}, or null for Saturday and Sunday.
+   * @return The calendar.
+   * @throws Exception If the list could not be read or contains an invalid date.
+   */
+  public static BusinessDayCalendar load(InputStream holidayList, TimeZone timezone, int firstYear, int lastYear,
+      int[] weekendDays) throws Exception {
+    List<Long> days = new ArrayList<Long>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(holidayList, "UTF-8"));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        days.add(parseDay(line, lineNumber));
+      }
+    } finally {
+      reader.close();
+    }
+    long[] holidayDays = new long[days.size()];
+    for (int i = 0; i < holidayDays.length; i++) {
+      holidayDays[i] = days.get(i);
+    }
+    return new BusinessDayCalendar(timezone, firstYear, lastYear,
+        weekendDays != null ? weekendDays : DEFAULT_WEEKEND_DAYS, holidayDays);
+  }
+
+  /**
+   * Check whether the day containing an instant is a business day.
+   * @param epochMillis The instant, in milliseconds since the epoch.
+   * @return true if the day is a business day.
+   */
+  public boolean isBusinessDay(long epochMillis) {
+    int offset = toOffset(epochMillis);
+    return (businessDayBits[offset >>> 6] & (1L << offset)) != 0;
+  }
+
+  /**
+   * Check whether the day containing a date is a business day.
+   * @param date The date.
+   * @return true if the day is a business day.
+   */
+  public boolean isBusinessDay(Date date) {
+    return isBusinessDay(date.getTime());
+  }
+
+  /**
+   * Count the business days from the day containing one instant up to, but not including, the
+   * day containing another.
+   * @param fromEpochMillis The first instant, in milliseconds since the epoch.
+   * @param toEpochMillis The second instant, in milliseconds since the epoch.
+   * @return The number of business days, which is negative if the second day is before the first.
+   */
+  public int businessDaysBetween(long fromEpochMillis, long toEpochMillis) {
+    return countBefore(toOffset(toEpochMillis)) - countBefore(toOffset(fromEpochMillis));
+  }
+
+  /**
+   * Count the business days from the day containing one date up to, but not including, the day
+   * containing another.
+   * @param from The first date.
+   * @param to The second date.
+   * @return The number of business days, which is negative if the second day is before the first.
+   */
+  public int businessDaysBetween(Date from, Date to) {
+    return businessDaysBetween(from.getTime(), to.getTime());
+  }
+
+  /**
+   * Find the business day a number of business days after the day containing an instant. Adding
+   * 1 gives the next business day and -1 the previous one; adding 0 gives the day itself if it is
+   * a business day, else the next business day.
+   * @param epochMillis The instant, in milliseconds since the epoch.
+   * @param businessDayCount The number of business days to add, which may be negative.
+   * @return The start of the business day, in milliseconds since the epoch.
+   */
+  public long addBusinessDays(long epochMillis, int businessDayCount) {
+    int offset = toOffset(epochMillis);
+    int before = countBefore(offset);
+    boolean businessDay = (businessDayBits[offset >>> 6] & (1L << offset)) != 0;
+    long rank;
+    if (businessDayCount > 0) {
+      rank = (long) before + businessDayCount - (businessDay ? 0 : 1);
+    } else {
+      rank = (long) before + businessDayCount;
+    }
+    if (rank < 0 || rank >= businessDays.length) {
+      throw new IllegalArgumentException("Result is outside the calendar's years " + firstYear + " to " + lastYear);
+    }
+    return DateHelper.toEpochMillis((firstDay + businessDays[(int) rank]) * DateHelper.MILLISECONDS_PER_DAY, timezone);
+  }
+
+  /**
+   * Find the business day a number of business days after the day containing a date, as
+   * {@link #addBusinessDays(long, int)}.
+   * @param date The date.
+   * @param businessDayCount The number of business days to add, which may be negative.
+   * @return The start of the business day.
+   */
+  public Date addBusinessDays(Date date, int businessDayCount) {
+    return new Date(addBusinessDays(date.getTime(), businessDayCount));
+  }
+
+  /**
+   * Get the timezone that defines the days.
+   * @return A copy of the {@link #timezone}.
+   */
+  public TimeZone getTimeZone() {
+    return (TimeZone) timezone.clone();
+  }
+
+  /**
+   * Get the first year covered.
+   * @return the {@link #firstYear}.
+   */
+  public int getFirstYear() {
+    return firstYear;
+  }
+
+  /**
+   * Get the last year covered.
+   * @return the {@link #lastYear}.
+   */
+  public int getLastYear() {
+    return lastYear;
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Get the offset from {@link #firstDay} of the day containing an instant.
+   * @throws IllegalArgumentException If the day isn't covered.
+   */
+  private int toOffset(long epochMillis) {
+    long offset = DateHelper.localDay(epochMillis, timezone) - firstDay;
+    if (offset < 0 || offset >= dayCount) {
+      throw new IllegalArgumentException("Outside the calendar's years " + firstYear + " to " + lastYear + ": "
+          + new Date(epochMillis));
+    }
+    return (int) offset;
+  }
+
+  /**
+   * Count the business days before a day.
+   */
+  private int countBefore(int offset) {
+    return businessDaysBefore[offset >>> 6] + Long.bitCount(businessDayBits[offset >>> 6] & ((1L << offset) - 1));
+  }
+
+  /**
+   * Get the day of the week of a day number, as a Calendar constant.
+   */
+  private static int getDayOfWeek(long day) {
+    long dayOfWeek = (day + EPOCH_DAY_OF_WEEK_OFFSET) % 7;
+    return (int) (dayOfWeek < 0 ? dayOfWeek + 7 : dayOfWeek) + Calendar.SUNDAY;
+  }
+
+  /**
+   * Get the day numbers of the days containing some dates.
+   */
+  private static long[] toDays(Collection<Date> dates, TimeZone timezone) {
+    long[] days = new long[dates.size()];
+    int i = 0;
+    for (Date date : dates) {
+      days[i++] = DateHelper.localDay(date.getTime(), timezone);
+    }
+    return days;
+  }
+
+  /**
+   * Parse a date in the form yyyy-MM-dd to a day number.
+   */
+  private static long parseDay(String text, int lineNumber) throws Exception {
+    String[] parts = text.split("-");
+    if (parts.length == 3) {
+      try {
+        int year = Integer.parseInt(parts[0]);
+        int month = Integer.parseInt(parts[1]);
+        int dayOfMonth = Integer.parseInt(parts[2]);
+        if (month >= 1 && month <= 12 && dayOfMonth >= 1
+            && DateHelper.toDay(year, month, dayOfMonth) < DateHelper.toDay(year + month / 12, month % 12 + 1, 1)) {
+          return DateHelper.toDay(year, month, dayOfMonth);
+        }
+      } catch (NumberFormatException e) {
+        // Reported below.
+      }
+    }
+    throw new Exception("Invalid holiday on line " + lineNumber + ": " + text);
+  }
+
+}
@@ -0,0 +1,345 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable buffer made of a list of fixed-size chunks, for collecting data of unknown length.
+ * Unlike a ByteArrayOutputStream it never copies what it already holds as it grows, and chunks are
+ * borrowed from a shared pool and handed back by {@link #release()}.
+ * <p>
+ * If the length is known in advance it can be given as a size hint, in which case the data is
+ * collected into a single array of exactly that size and {@link #toByteArray()} returns that array
+ * without copying it. A wrong hint is harmless: extra data overflows into pooled chunks, and short
+ * data is copied into an array of the right length. Hints often come from untrusted sources such as
+ * zip entries and FTP listings, so a hint above {@link #MAX_HINT_SIZE} is ignored and the data is
+ * collected in pooled chunks instead.
+ * <p>
+ * As with ByteArrayOutputStream, {@link #close()} has no effect, so the buffer can be passed to
+ * methods that close their output. Instances are not thread safe.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class ChunkedBuffer extends OutputStream {
+
+  /** The size of the pooled chunks in bytes (value = 64KB). */
+  public static final int CHUNK_SIZE = 64 * 1024;
+  /** The largest size hint given its own array up front (value = 4MB). */
+  public static final int MAX_HINT_SIZE = 4 * 1024 * 1024;
+  /** The maximum number of free chunks kept in the pool. */
+  private static final int MAX_POOLED_CHUNKS = 64;
+  /** The largest array the JVM can reliably allocate. */
+  private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+  /** The free chunks shared by every buffer. */
+  private static final FreeList<byte[]> chunkPool = new FreeList<byte[]>(MAX_POOLED_CHUNKS);
+
+  /** The chunks, in order. Every chunk but the last is full. */
+  private final List<byte[]> chunks = new ArrayList<byte[]>();
+  /** The chunk allocated to the size hint, which doesn't belong to the pool, or null. */
+  private byte[] hintedChunk;
+  /** The chunk being written to, or null if there is none or it is full. */
+  private byte[] current;
+  /** The number of bytes written to {@link #current}. */
+  private int currentCount;
+  /** The total number of bytes held. */
+  private long size;
+  /** True once the chunks have been handed back to the pool. */
+  private boolean released;
+
+  /**
+   * Creates a new, empty ChunkedBuffer for data of unknown length.
+   */
+  public ChunkedBuffer() {
+    this(-1);
+  }
+
+  /**
+   * Creates a new, empty ChunkedBuffer.
+   * @param sizeHint The expected length of the data, or -1 if it is not known. Hints above
+   * {@link #MAX_HINT_SIZE} are ignored.
+   */
+  public ChunkedBuffer(long sizeHint) {
+    if (sizeHint > 0 && sizeHint <= MAX_HINT_SIZE) {
+      hintedChunk = new byte[(int) sizeHint];
+      current = hintedChunk;
+      chunks.add(hintedChunk);
+    }
+  }
+
+  @Override
+  public void write(int b) {
+    ensureCapacity();
+    current[currentCount++] = (byte) b;
+    size++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      ensureCapacity();
+      int length = Math.min(len, current.length - currentCount);
+      System.arraycopy(b, off, current, currentCount, length);
+      currentCount += length;
+      size += length;
+      off += length;
+      len -= length;
+    }
+  }
+
+  /**
+   * Read a stream to the end straight into the buffer's chunks. The stream is not closed. Once the
+   * size hint has been filled, a single byte is read to look for the end of the stream before
+   * another chunk is taken, so data matching the hint exactly stays in one array.
+   * @param in The stream to read.
+   * @return The number of bytes read.
+   * @throws IOException If the stream could not be read.
+   */
+  public long readFrom(InputStream in) throws IOException {
+    long total = 0;
+    while (true) {
+      if (current == hintedChunk && hintedChunk != null && currentCount == hintedChunk.length) {
+        int b = in.read();
+        if (b == -1) {
+          return total;
+        }
+        write(b);
+        total++;
+      }
+      ensureCapacity();
+      int length = in.read(current, currentCount, current.length - currentCount);
+      if (length == -1) {
+        return total;
+      }
+      currentCount += length;
+      size += length;
+      total += length;
+    }
+  }
+
+  /**
+   * Write the contents of the buffer to a stream. The stream is not closed.
+   * @param out The stream to write to.
+   * @throws IOException If the stream could not be written.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    checkNotReleased();
+    for (int i = 0; i < chunks.size(); i++) {
+      out.write(chunks.get(i), 0, getChunkLength(i));
+    }
+  }
+
+  /**
+   * Get the number of bytes held.
+   * @return The size of the contents.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Get the contents as a single array. If the buffer was given a size hint and the data filled it
+   * exactly, this is the buffer's own array and no copy is made; otherwise it is a new array.
+   * @return The contents.
+   * @throws IllegalStateException If the contents are too large for one array.
+   */
+  public byte[] toByteArray() {
+    checkNotReleased();
+    if (hintedChunk != null && chunks.size() == 1 && size == hintedChunk.length) {
+      return hintedChunk;
+    }
+    if (size > MAX_ARRAY_SIZE) {
+      throw new IllegalStateException("Buffer is too large for a single array: " + size + " bytes");
+    }
+    byte[] data = new byte[(int) size];
+    int position = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      int length = getChunkLength(i);
+      System.arraycopy(chunks.get(i), 0, data, position, length);
+      position += length;
+    }
+    return data;
+  }
+
+  /**
+   * Get a stream over the contents that reads them straight from the chunks.
+   * @return A stream over the contents.
+   */
+  public InputStream getInputStream() {
+    checkNotReleased();
+    return new ChunkInputStream();
+  }
+
+  /**
+   * Get a view of the contents as a file.
+   * @param name The name of the file.
+   * @return A FileData over the contents, valid until the buffer is released.
+   */
+  public FileData asFileData(String name) {
+    return new ChunkedFileData(name);
+  }
+
+  /**
+   * Hand the pooled chunks back to the pool. The contents can't be used afterwards, except for
+   * an array already returned by {@link #toByteArray()}.
+   */
+  public void release() {
+    if (released) {
+      return;
+    }
+    released = true;
+    for (byte[] chunk : chunks) {
+      if (chunk != hintedChunk) {
+        chunkPool.offer(chunk);
+      }
+    }
+    chunks.clear();
+    hintedChunk = null;
+    current = null;
+  }
+
+  /**
+   * Has no effect; see {@link #release()}.
+   */
+  @Override
+  public void close() {
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Make sure there is room in {@link #current} for at least one more byte.
+   */
+  private void ensureCapacity() {
+    checkNotReleased();
+    if (current != null && currentCount < current.length) {
+      return;
+    }
+    byte[] chunk = chunkPool.poll();
+    if (chunk == null) {
+      chunk = new byte[CHUNK_SIZE];
+    }
+    chunks.add(chunk);
+    current = chunk;
+    currentCount = 0;
+  }
+
+  /**
+   * Get the number of bytes held in a chunk.
+   * @param index The index of the chunk.
+   * @return The number of bytes.
+   */
+  private int getChunkLength(int index) {
+    return index == chunks.size() - 1 ? currentCount : chunks.get(index).length;
+  }
+
+  /**
+   * Check that the chunks haven't been handed back to the pool.
+   */
+  private void checkNotReleased() {
+    if (released) {
+      throw new IllegalStateException("ChunkedBuffer has been released");
+    }
+  }
+
+  /**
+   * A stream that reads through the chunks in order.
+   */
+  private final class ChunkInputStream extends InputStream {
+
+    /** The index of the chunk being read. */
+    private int index;
+    /** The position within the chunk being read. */
+    private int position;
+
+    @Override
+    public int read() {
+      if (!advance()) {
+        return -1;
+      }
+      return chunks.get(index)[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!advance()) {
+        return -1;
+      }
+      int length = Math.min(len, getChunkLength(index) - position);
+      System.arraycopy(chunks.get(index), position, b, off, length);
+      position += length;
+      return length;
+    }
+
+    @Override
+    public int available() {
+      return index < chunks.size() ? getChunkLength(index) - position : 0;
+    }
+
+    /**
+     * Move on to the next chunk if the current one has been read.
+     * @return true if there are bytes left to read, else false.
+     */
+    private boolean advance() {
+      checkNotReleased();
+      while (index < chunks.size() && position >= getChunkLength(index)) {
+        index++;
+        position = 0;
+      }
+      return index < chunks.size();
+    }
+  }
+
+  /**
+   * A file view of the contents.
+   */
+  private final class ChunkedFileData implements FileData {
+
+    /** The name of the file. */
+    private final String name;
+
+    private ChunkedFileData(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getFileSize() {
+      return size;
+    }
+
+    public byte[] getData() {
+      return toByteArray();
+    }
+
+    public InputStream getInputStream() {
+      return ChunkedBuffer.this.getInputStream();
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A directory listing held in columns rather than as one object per file: the names are packed
+ * into a single UTF-8 byte array and the sizes and modification times into primitive arrays. A
+ * listing of a million files costs a few tens of megabytes rather than several hundred, and an
+ * {@link FTPFile} is only created for an entry when it is asked for.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class CompactFTPListing implements Iterable<FTPFile> {
+
+  /** The character set the names are packed in. */
+  private static final String NAME_CHARSET = "UTF-8";
+
+  /** The initial number of entries the columns are sized for. */
+  private static final int INITIAL_CAPACITY = 64;
+
+  /** The names of all entries, packed end to end. */
+  private byte[] nameBytes = new byte[INITIAL_CAPACITY * 16];
+  /** The offset of each entry's name in {@link #nameBytes}; entry i ends where entry i + 1 starts. */
+  private int[] nameOffsets = new int[INITIAL_CAPACITY + 1];
+  /** The size of each entry in bytes. */
+  private long[] sizes = new long[INITIAL_CAPACITY];
+  /** The modification time of each entry in milliseconds since the epoch, or 0 if not known. */
+  private long[] lastModifieds = new long[INITIAL_CAPACITY];
+  /** Whether each entry is a directory. */
+  private boolean[] directories = new boolean[INITIAL_CAPACITY];
+  /** The number of entries. */
+  private int size;
+
+  /**
+   * Add an entry to the end of the listing.
+   * @param name The name of the file.
+   * @param fileSize The size of the file in bytes.
+   * @param lastModified The modification time in milliseconds since the epoch, or 0 if not known.
+   * @param directory true if the file is a directory.
+   */
+  public void add(String name, long fileSize, long lastModified, boolean directory) {
+    byte[] encodedName = encode(name);
+    if (size == sizes.length) {
+      int capacity = Math.max(INITIAL_CAPACITY, size + (size >> 1));
+      nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+      sizes = Arrays.copyOf(sizes, capacity);
+      lastModifieds = Arrays.copyOf(lastModifieds, capacity);
+      directories = Arrays.copyOf(directories, capacity);
+    }
+    int nameStart = nameOffsets[size];
+    int nameEnd = nameStart + encodedName.length;
+    if (nameEnd > nameBytes.length) {
+      nameBytes = Arrays.copyOf(nameBytes, Math.max(nameEnd, nameBytes.length + (nameBytes.length >> 1)));
+    }
+    System.arraycopy(encodedName, 0, nameBytes, nameStart, encodedName.length);
+    nameOffsets[size + 1] = nameEnd;
+    sizes[size] = fileSize;
+    lastModifieds[size] = lastModified;
+    directories[size] = directory;
+    size++;
+  }
+
+  /**
+   * Release the spare capacity left over from building the listing.
+   */
+  public void trimToSize() {
+    nameBytes = Arrays.copyOf(nameBytes, nameOffsets[size]);
+    nameOffsets = Arrays.copyOf(nameOffsets, size + 1);
+    sizes = Arrays.copyOf(sizes, size);
+    lastModifieds = Arrays.copyOf(lastModifieds, size);
+    directories = Arrays.copyOf(directories, size);
+  }
+
+  /**
+   * Get the number of entries in the listing.
+   * @return The number of entries.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the name of an entry.
+   * @param index The index of the entry.
+   * @return The name of the entry.
+   */
+  public String getName(int index) {
+    checkIndex(index);
+    try {
+      return new String(nameBytes, nameOffsets[index], nameOffsets[index + 1] - nameOffsets[index], NAME_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(NAME_CHARSET + " is not supported", e);
+    }
+  }
+
+  /**
+   * Get the size of an entry.
+   * @param index The index of the entry.
+   * @return The size of the entry in bytes.
+   */
+  public long getSize(int index) {
+    checkIndex(index);
+    return sizes[index];
+  }
+
+  /**
+   * Get the modification time of an entry.
+   * @param index The index of the entry.
+   * @return The modification time in milliseconds since the epoch, or 0 if not known.
+   */
+  public long getLastModified(int index) {
+    checkIndex(index);
+    return lastModifieds[index];
+  }
+
+  /**
+   * Check whether an entry is a directory.
+   * @param index The index of the entry.
+   * @return true if the entry is a directory, else false.
+   */
+  public boolean isDirectory(int index) {
+    checkIndex(index);
+    return directories[index];
+  }
+
+  /**
+   * Get an entry as an FTPFile.
+   * @param index The index of the entry.
+   * @return A new FTPFile for the entry.
+   */
+  public FTPFile get(int index) {
+    return new DefaultFTPFile(getName(index), getSize(index), getLastModified(index), isDirectory(index));
+  }
+
+  /**
+   * Iterate over the entries, creating an FTPFile for each as it is reached.
+   * @return An iterator over the entries.
+   */
+  @Override
+  public Iterator<FTPFile> iterator() {
+    return new Iterator<FTPFile>() {
+      private int next;
+
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      public FTPFile next() {
+        if (next >= size) {
+          throw new NoSuchElementException();
+        }
+        return get(next++);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException("Listings are read only");
+      }
+    };
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Check that an index refers to an entry in the listing.
+   * @param index The index to check.
+   */
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+  /**
+   * Encode a name for packing.
+   * @param name The name to encode.
+   * @return The encoded name.
+   */
+  private static byte[] encode(String name) {
+    try {
+      return name.getBytes(NAME_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(NAME_CHARSET + " is not supported", e);
+    }
+  }
+}
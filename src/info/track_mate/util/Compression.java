@@ -0,0 +1,183 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * How {@link DiskFileData} compresses a file's data at rest. Compressed files start with a small
+ * header recording the codec and the original size of the data; files without the header are
+ * read as they are, so stores can switch compression on without rewriting their existing files.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public enum Compression {
+
+  /** Store the data as it is, with no header. */
+  NONE(0),
+
+  /** Compress the data in zlib format, which has the smallest framing. */
+  DEFLATE(1),
+
+  /** Compress the data in gzip format, which adds a checksum of the original data. */
+  GZIP(2);
+
+  /** The size of the buffers used by the compressing and decompressing streams. */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** The id written to the header of files compressed with this codec. */
+  private final int id;
+
+  private Compression(int id) {
+    this.id = id;
+  }
+
+  /**
+   * Get the id written to the header of files compressed with this codec.
+   * @return the {@link #id}.
+   */
+  int getId() {
+    return id;
+  }
+
+  /**
+   * Get the codec with a header id.
+   * @param id The id read from a header.
+   * @return The codec, or null if the id is unknown.
+   */
+  static Compression forId(int id) {
+    for (Compression compression : values()) {
+      if (compression.id == id) {
+        return compression;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Open a stream that compresses the data written to it. Closing the stream closes the
+   * underlying stream; {@link DeflaterOutputStream#finish()} completes the compressed data and
+   * frees the compressor without closing it.
+   * @param out The stream to write the compressed data to.
+   * @param level The compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+   * @return The compressing stream.
+   * @throws IOException If the stream could not be opened.
+   */
+  DeflaterOutputStream compress(OutputStream out, int level) throws IOException {
+    switch (this) {
+      case DEFLATE:
+        return new FinishingDeflaterOutputStream(out, new Deflater(level));
+      case GZIP:
+        return new FinishingGZIPOutputStream(out, level);
+      default:
+        throw new IllegalStateException("Not a compressing codec: " + this);
+    }
+  }
+
+  /**
+   * Open a stream that decompresses the data read from it as it is read.
+   * @param in The stream of compressed data.
+   * @return The decompressing stream.
+   * @throws IOException If the stream could not be opened.
+   */
+  InputStream decompress(InputStream in) throws IOException {
+    switch (this) {
+      case NONE:
+        return in;
+      case DEFLATE:
+        return new EndingInflaterInputStream(in, new Inflater());
+      case GZIP:
+        return new GZIPInputStream(in, BUFFER_SIZE);
+      default:
+        throw new IllegalStateException("Unknown codec: " + this);
+    }
+  }
+
+  /**
+   * A DeflaterOutputStream that frees its deflater's native memory once the data is finished,
+   * rather than waiting for the deflater to be garbage collected.
+   */
+  private static class FinishingDeflaterOutputStream extends DeflaterOutputStream {
+
+    FinishingDeflaterOutputStream(OutputStream out, Deflater deflater) {
+      super(out, deflater, BUFFER_SIZE);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      if (!def.finished()) {
+        super.finish();
+        def.end();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        def.end();
+      }
+    }
+  }
+
+  /**
+   * A GZIPOutputStream with a choice of compression level, that frees its deflater's native memory
+   * once the data is finished.
+   */
+  private static class FinishingGZIPOutputStream extends GZIPOutputStream {
+
+    FinishingGZIPOutputStream(OutputStream out, int level) throws IOException {
+      super(out, BUFFER_SIZE);
+      def.setLevel(level);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      if (!def.finished()) {
+        super.finish();
+        def.end();
+      }
+    }
+  }
+
+  /**
+   * An InflaterInputStream that frees its inflater's native memory when it is closed.
+   */
+  private static class EndingInflaterInputStream extends InflaterInputStream {
+
+    EndingInflaterInputStream(InputStream in, Inflater inflater) {
+      super(in, inflater, BUFFER_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        inf.end();
+      }
+    }
+  }
+
+}
@@ -18,14 +18,44 @@ package info.track_mate.util;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.log4j.Logger;
 
 /**
  * A class representing a configuration properties file that is read from the
  * classpath.
+ * <p>
+ * The properties are held in an immutable snapshot that is replaced as a
+ * whole when the file is {@link #reload() reloaded}, so reads take no locks
+ * and never see a partly loaded file. A config can
+ * {@link #startWatching(long) watch} its file and reload it when it changes,
+ * notifying any {@link ConfigChangeListener}s of the changed properties.
+ * <p>
+ * The typed accessors, such as {@link #getInt(String, int)} and
+ * {@link #getDurationMillis(String, long)}, parse each value once per
+ * snapshot and cache the result, so they are cheap enough to call in hot
+ * code. They throw unchecked exceptions: an IllegalArgumentException naming
+ * the key if a value is invalid, or an IllegalStateException if the file
+ * can't be read. Blank values count as unset. Calling them once at startup
+ * validates the configuration.
  *
  * @author Gareth Smith <gareth@track-mate.info>
  */
@@ -40,14 +70,33 @@ public class Config implements Serializable {
    */
   private static final String DEFAULT_CONFIG_FILENAME = "config.properties";
 
+  /** The scheduler shared by every watched config, or null until one is watched. */
+  private static ScheduledExecutorService watcher;
+
+  /** The units a duration can have, with "MS" before "S" as it ends with it. */
+  private static final String[] DURATION_UNITS = { "MS", "S", "M", "H", "D" };
+  /** The number of milliseconds in each of the {@link #DURATION_UNITS}. */
+  private static final long[] DURATION_MULTIPLIERS = { 1L, 1000L, 60000L, 3600000L, 86400000L };
+  /** The units a size can have, with the two letter forms before "B" as they end with it. */
+  private static final String[] SIZE_UNITS = { "KB", "MB", "GB", "TB", "K", "M", "G", "T", "B" };
+  /** The number of bytes in each of the {@link #SIZE_UNITS}. */
+  private static final long[] SIZE_MULTIPLIERS = { 1L << 10, 1L << 20, 1L << 30, 1L << 40, 1L << 10, 1L << 20,
+      1L << 30, 1L << 40, 1L };
+
   /** The name of the configuration properties file that this class represents. */
   private final String configFileName;
 
   /**
-   * The properties held within the configuration file that this class
-   * represents.
+   * The current snapshot of the properties held within the configuration file
+   * that this class represents, or null until they are first needed.
    */
-  private Properties configProperties;
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+
+  /** The listeners notified when a reload changes the properties. */
+  private transient CopyOnWriteArrayList<ConfigChangeListener> listeners = new CopyOnWriteArrayList<ConfigChangeListener>();
+
+  /** The scheduled check of the file for changes, or null if it isn't watched. */
+  private transient ScheduledFuture<?> watch;
 
   /**
    * Create a new instance of this class, using the
@@ -81,16 +130,263 @@ public class Config implements Serializable {
    *           from the classpath.
    */
   public final String getProperty(final String key) throws Exception {
-    loadProperties();
-    return configProperties.getProperty(key);
+    return getSnapshot().properties.get(key);
   }
-  
+
+  /**
+   * Get the value of a property as an int.
+   *
+   * @param key
+   *          The key of which to get the value.
+   * @param defaultValue
+   *          The value to return if the property isn't set.
+   * @return The value of the property, or the default.
+   */
+  public final int getInt(final String key, final int defaultValue) {
+    Object value = getParsed(ValueType.INT, key, null);
+    return value != null ? (Integer) value : defaultValue;
+  }
+
+  /**
+   * Get the value of a property as an int that must lie in a range.
+   *
+   * @param key
+   *          The key of which to get the value.
+   * @param defaultValue
+   *          The value to return if the property isn't set.
+   * @param min
+   *          The smallest valid value.
+   * @param max
+   *          The largest valid value.
+   * @return The value of the property, or the default.
+   */
+  public final int getInt(final String key, final int defaultValue, final int min, final int max) {
+    int value = getInt(key, defaultValue);
+    checkRange(key, value, min, max);
+    return value;
+  }
+
+  /**
+   * Get the value of a property as a long.
+   *
+   * @param key
+   *          The key of which to get the value.
+   * @param defaultValue
+   *          The value to return if the property isn't set.
+   * @return The value of the property, or the default.
+   */
+  public final long getLong(final String key, final long defaultValue) {
+    Object value = getParsed(ValueType.LONG, key, null);
+    return value != null ? (Long) value : defaultValue;
+  }
+
+  /**
+   * Get the value of a property as a long that must lie in a range.
+   *
+   * @param key
+   *          The key of which to get the value.
+   * @param defaultValue
+   *          The value to return if the property isn't set.
+   * @param min
+   *          The smallest valid value.
+   * @param max
+   *          The largest valid value.
+   * @return The value of the property, or the default.
+   */
+  public final long getLong(final String key, final long defaultValue, final long min, final long max) {
+    long value = getLong(key, defaultValue);
+    checkRange(key, value, min, max);
+    return value;
+  }
+
+  /**
+   * Get the value of a property as a boolean. The values true, yes and on
+   * are true and false, no and off are false, in any case.
+   *
+   * @param key
+   *          The key of which to get the value.
+   * @param defaultValue
+   *          The value to return if the property isn't set.
+   * @return The value of the property, or the default.
+   */
+  public final boolean getBoolean(final String key, final boolean defaultValue) {
+    Object value = getParsed(ValueType.BOOLEAN, key, null);
+    return value != null ? (Boolean) value : defaultValue;
+  }
+
+  /**
+   * Get the value of a property as a duration, such as "500ms", "30s",
+   * "5m", "2h" or "1d". A number with no unit is in milliseconds.
+   *
+   * @param key
+   *          The key of which to get the value.
+   * @param defaultMillis
+   *          The value to return if the property isn't set.
+   * @return The value of the property in milliseconds, or the default.
+   */
+  public final long getDurationMillis(final String key, final long defaultMillis) {
+    Object value = getParsed(ValueType.DURATION, key, null);
+    return value != null ? (Long) value : defaultMillis;
+  }
+
+  /**
+   * Get the value of a property as a size, such as "512", "64KB", "16M" or
+   * "2GB". The units are powers of 1024, and a number with no unit is in
+   * bytes.
+   *
+   * @param key
+   *          The key of which to get the value.
+   * @param defaultBytes
+   *          The value to return if the property isn't set.
+   * @return The value of the property in bytes, or the default.
+   */
+  public final long getSize(final String key, final long defaultBytes) {
+    Object value = getParsed(ValueType.SIZE, key, null);
+    return value != null ? (Long) value : defaultBytes;
+  }
+
+  /**
+   * Get the value of a property as a constant of an enum, ignoring case.
+   *
+   * @param key
+   *          The key of which to get the value.
+   * @param type
+   *          The enum class.
+   * @param defaultValue
+   *          The value to return if the property isn't set.
+   * @return The value of the property, or the default.
+   */
+  public final <E extends Enum<E>> E getEnum(final String key, final Class<E> type, final E defaultValue) {
+    Object value = getParsed(ValueType.ENUM, key, type);
+    return value != null ? type.cast(value) : defaultValue;
+  }
+
+  /**
+   * Get the value of a property as a comma separated list. Items are trimmed
+   * and empty items are left out.
+   *
+   * @param key
+   *          The key of which to get the value.
+   * @return An unmodifiable list of the items, which is empty if the property
+   *         isn't set.
+   */
+  @SuppressWarnings("unchecked")
+  public final List<String> getList(final String key) {
+    Object value = getParsed(ValueType.LIST, key, null);
+    return value != null ? (List<String>) value : Collections.<String>emptyList();
+  }
+
+  /**
+   * Get all of the properties in the current snapshot.
+   *
+   * @return An unmodifiable map of the property keys to their values.
+   * @throws Exception
+   *           If the specified configuration properties file could not be read
+   *           from the classpath.
+   */
+  public final Map<String, String> getProperties() throws Exception {
+    return getSnapshot().properties;
+  }
+
+  /**
+   * Get the name of the configuration properties file that this class
+   * represents.
+   *
+   * @return the {@link #configFileName}.
+   */
+  public String getConfigFileName() {
+    return configFileName;
+  }
+
+  /**
+   * Read the configuration properties file again and publish its contents in
+   * place of the current properties. Listeners are notified if any property
+   * changed. If the file can't be read the current properties are kept.
+   *
+   * @return True if any property changed.
+   * @throws Exception
+   *           If the specified configuration properties file could not be read
+   *           from the classpath.
+   */
+  public boolean reload() throws Exception {
+    Snapshot loaded = loadSnapshot();
+    Snapshot previous = snapshot.getAndSet(loaded);
+    if (previous == null) {
+      return false;
+    }
+    ConfigChangeEvent event = new ConfigChangeEvent(this, previous.properties, loaded.properties);
+    if (event.getChangedKeys().isEmpty()) {
+      return false;
+    }
+    logger.info("Reloaded " + configFileName + ", changed: " + event.getChangedKeys());
+    for (ConfigChangeListener listener : listeners) {
+      try {
+        listener.configChanged(event);
+      } catch (RuntimeException e) {
+        logger.error("Config change listener failed: " + listener, e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Add a listener to be notified when a reload changes the properties.
+   *
+   * @param listener
+   *          The listener to add.
+   */
+  public void addChangeListener(final ConfigChangeListener listener) {
+    listeners.addIfAbsent(listener);
+  }
+
+  /**
+   * Remove a listener added by {@link #addChangeListener}.
+   *
+   * @param listener
+   *          The listener to remove.
+   */
+  public void removeChangeListener(final ConfigChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Start checking the configuration properties file for changes, reloading
+   * it when its modification time or size changes. Files inside jars can't
+   * change and aren't checked. Checks for every watched config are made on a
+   * single shared daemon thread. Writers should replace the file by renaming
+   * a new one over it, as a file caught part way through being written is
+   * loaded as it stands.
+   *
+   * @param intervalMillis
+   *          How often to check the file, in milliseconds.
+   */
+  public synchronized void startWatching(final long intervalMillis) {
+    if (intervalMillis <= 0) {
+      throw new IllegalArgumentException("Invalid watch interval: " + intervalMillis);
+    }
+    stopWatching();
+    watch = getWatcher().scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        checkForChanges();
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop checking the configuration properties file for changes.
+   */
+  public synchronized void stopWatching() {
+    if (watch != null) {
+      watch.cancel(false);
+      watch = null;
+    }
+  }
+
   @Override
   public String toString() {
     String toReturn = "-- ERROR --";
     try {
-      loadProperties();
-      toReturn = configProperties.toString();
+      toReturn = getSnapshot().properties.toString();
     } catch (Exception e) {
       logger.fatal("Failed to load config properties.", e);
     }
@@ -98,26 +394,286 @@ public class Config implements Serializable {
   }
 
   // ------ Private Helpers ------
-  
+
   /**
-   * Load the properties for this Config from the underlying properties file.
+   * Get the current snapshot of the properties, loading them the first time
+   * they are needed. If two threads load them at once the first to finish
+   * wins and both use its snapshot.
    */
-  private void loadProperties() throws Exception {
-    if (configProperties == null) {
-      InputStream propsStream;
-      File configFile = new File(configFileName);
-      if (configFile.exists()) {
-        propsStream = new BufferedInputStream(new FileInputStream(configFile));
-      } else {
-        propsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(configFileName);
+  private Snapshot getSnapshot() throws Exception {
+    Snapshot current = snapshot.get();
+    if (current == null) {
+      Snapshot loaded = loadSnapshot();
+      if (snapshot.compareAndSet(null, loaded)) {
+        return loaded;
       }
-      if (propsStream == null) {
+      current = snapshot.get();
+    }
+    return current;
+  }
+
+  /**
+   * Get a parsed property value, parsing and caching it in the current
+   * snapshot the first time it is needed.
+   *
+   * @param type
+   *          The type to parse the value as.
+   * @param key
+   *          The key of which to get the value.
+   * @param enumType
+   *          The enum class for {@link ValueType#ENUM}, else null.
+   * @return The parsed value, or null if the property isn't set.
+   */
+  private Object getParsed(final ValueType type, final String key, final Class<? extends Enum<?>> enumType) {
+    Snapshot current;
+    try {
+      current = getSnapshot();
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to load config properties from " + configFileName, e);
+    }
+    Map<String, Object> cache = current.parsed[type.ordinal()];
+    Object value = cache.get(key);
+    if (value != null && (enumType == null || enumType.isInstance(value))) {
+      return value;
+    }
+    String raw = current.properties.get(key);
+    if (raw == null || raw.trim().length() == 0) {
+      return null;
+    }
+    try {
+      value = parse(type, raw.trim(), enumType);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid value for " + key + " in " + configFileName + ": " + raw, e);
+    }
+    cache.put(key, value);
+    return value;
+  }
+
+  /**
+   * Parse a property value.
+   *
+   * @param type
+   *          The type to parse the value as.
+   * @param value
+   *          The trimmed value.
+   * @param enumType
+   *          The enum class for {@link ValueType#ENUM}, else null.
+   * @return The parsed value.
+   * @throws IllegalArgumentException
+   *           If the value is invalid.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static Object parse(final ValueType type, final String value, final Class<? extends Enum<?>> enumType) {
+    switch (type) {
+      case INT:
+        return Integer.valueOf(value);
+      case LONG:
+        return Long.valueOf(value);
+      case BOOLEAN:
+        if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("on")) {
+          return Boolean.TRUE;
+        }
+        if (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equalsIgnoreCase("off")) {
+          return Boolean.FALSE;
+        }
+        throw new IllegalArgumentException("Not a boolean: " + value);
+      case DURATION:
+        return parseWithUnit(value, DURATION_UNITS, DURATION_MULTIPLIERS);
+      case SIZE:
+        return parseWithUnit(value, SIZE_UNITS, SIZE_MULTIPLIERS);
+      case ENUM:
+        return Enum.valueOf((Class) enumType, value.toUpperCase());
+      case LIST:
+        List<String> items = new ArrayList<String>();
+        for (String item : value.split(",")) {
+          if (item.trim().length() > 0) {
+            items.add(item.trim());
+          }
+        }
+        return Collections.unmodifiableList(items);
+      default:
+        throw new IllegalStateException("Unknown value type: " + type);
+    }
+  }
+
+  /**
+   * Parse a non-negative number followed by an optional unit.
+   *
+   * @param value
+   *          The trimmed value.
+   * @param units
+   *          The unit suffixes, in upper case, longest first where one ends
+   *          another.
+   * @param multipliers
+   *          The multiplier of each unit.
+   * @return The number multiplied by its unit's multiplier, or by 1 if it has
+   *         no unit.
+   * @throws IllegalArgumentException
+   *           If the value is invalid or too large.
+   */
+  private static Long parseWithUnit(final String value, final String[] units, final long[] multipliers) {
+    String upper = value.toUpperCase();
+    long multiplier = 1;
+    String number = upper;
+    for (int i = 0; i < units.length; i++) {
+      if (upper.endsWith(units[i])) {
+        multiplier = multipliers[i];
+        number = upper.substring(0, upper.length() - units[i].length()).trim();
+        break;
+      }
+    }
+    long amount = Long.parseLong(number);
+    if (amount < 0 || amount > Long.MAX_VALUE / multiplier) {
+      throw new IllegalArgumentException("Out of range: " + value);
+    }
+    return amount * multiplier;
+  }
+
+  /**
+   * Check that a value lies in a range.
+   */
+  private void checkRange(final String key, final long value, final long min, final long max) {
+    if (value < min || value > max) {
+      throw new IllegalArgumentException("Invalid value for " + key + " in " + configFileName + ": " + value
+          + " is not between " + min + " and " + max);
+    }
+  }
+
+  /**
+   * Reload the properties if the file has changed since they were loaded.
+   * Called by the watcher thread, so failures are logged rather than thrown.
+   */
+  private void checkForChanges() {
+    Snapshot current = snapshot.get();
+    try {
+      if (current == null || current.isStale()) {
+        reload();
+      }
+    } catch (Exception e) {
+      logger.warn("Failed to reload " + configFileName + ", keeping the current properties.", e);
+    }
+  }
+
+  /**
+   * Load the properties for this Config from the underlying properties file.
+   */
+  private Snapshot loadSnapshot() throws Exception {
+    InputStream propsStream;
+    File source = null;
+    URL resource = null;
+    File configFile = new File(configFileName);
+    if (configFile.exists()) {
+      source = configFile;
+    } else {
+      resource = Thread.currentThread().getContextClassLoader().getResource(configFileName);
+      if (resource == null) {
         throw new Exception("Failed to find properties file '" + configFileName + "' on the classpath.");
       }
-  
-      configProperties = new Properties();
+      if ("file".equals(resource.getProtocol())) {
+        source = new File(resource.toURI());
+      }
+    }
+    // Read the size and time before the contents, so a change made while loading is seen later.
+    long lastModified = source != null ? source.lastModified() : 0;
+    long length = source != null ? source.length() : 0;
+    if (source != null) {
+      propsStream = new BufferedInputStream(new FileInputStream(source));
+    } else {
+      propsStream = resource.openStream();
+    }
+
+    Properties configProperties = new Properties();
+    try {
       configProperties.load(propsStream);
+    } finally {
+      propsStream.close();
+    }
+    Map<String, String> properties = new HashMap<String, String>();
+    for (String key : configProperties.stringPropertyNames()) {
+      properties.put(key, configProperties.getProperty(key));
     }
+    return new Snapshot(Collections.unmodifiableMap(properties), source, lastModified, length);
   }
-  
+
+  /**
+   * Get the scheduler that checks watched configs, creating it the first
+   * time it is needed.
+   */
+  private static synchronized ScheduledExecutorService getWatcher() {
+    if (watcher == null) {
+      watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Config-watcher");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return watcher;
+  }
+
+  /**
+   * Restore the transient fields after deserialization.
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    listeners = new CopyOnWriteArrayList<ConfigChangeListener>();
+  }
+
+  /**
+   * The types the typed accessors parse values as, each with its own cache in
+   * a snapshot.
+   */
+  private enum ValueType {
+    INT, LONG, BOOLEAN, DURATION, SIZE, ENUM, LIST
+  }
+
+  /**
+   * An immutable set of properties loaded from the file, with the state of
+   * the file they were loaded from and a cache of their parsed values.
+   */
+  private static final class Snapshot implements Serializable {
+
+    /** The version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /** The properties, which can't be modified. */
+    final Map<String, String> properties;
+    /** The parsed values of the properties, by key, for each {@link ValueType}. */
+    final transient Map<String, Object>[] parsed;
+    /** The file the properties were loaded from, or null if they came from a jar. */
+    final File source;
+    /** The modification time of the file when it was loaded. */
+    final long lastModified;
+    /** The size of the file when it was loaded. */
+    final long length;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    Snapshot(Map<String, String> properties, File source, long lastModified, long length) {
+      this.properties = properties;
+      this.source = source;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.parsed = new Map[ValueType.values().length];
+      for (int i = 0; i < parsed.length; i++) {
+        parsed[i] = new ConcurrentHashMap<String, Object>();
+      }
+    }
+
+    /**
+     * Replace a deserialized snapshot with one that has a parse cache.
+     */
+    private Object readResolve() {
+      return new Snapshot(properties, source, lastModified, length);
+    }
+
+    /**
+     * Check whether the file has changed since the properties were loaded.
+     * @return True if the file has a new modification time or size.
+     */
+    boolean isStale() {
+      return source != null && (source.lastModified() != lastModified || source.length() != length);
+    }
+  }
+
 }
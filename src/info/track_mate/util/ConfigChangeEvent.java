@@ -0,0 +1,110 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The properties changed by a reload of a {@link Config}.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class ConfigChangeEvent {
+
+  /** The config that was reloaded. */
+  private final Config config;
+  /** The property values before the reload. */
+  private final Map<String, String> oldProperties;
+  /** The property values after the reload. */
+  private final Map<String, String> newProperties;
+  /** The keys that were added, removed or given a new value. */
+  private final Set<String> changedKeys;
+
+  /**
+   * Creates a new ConfigChangeEvent.
+   * @param config The config that was reloaded.
+   * @param oldProperties The property values before the reload.
+   * @param newProperties The property values after the reload.
+   */
+  ConfigChangeEvent(Config config, Map<String, String> oldProperties, Map<String, String> newProperties) {
+    this.config = config;
+    this.oldProperties = oldProperties;
+    this.newProperties = newProperties;
+    this.changedKeys = Collections.unmodifiableSet(findChangedKeys(oldProperties, newProperties));
+  }
+
+  /**
+   * Find the keys whose values differ between two sets of properties.
+   * @param oldProperties The first set of properties.
+   * @param newProperties The second set of properties.
+   * @return The keys added, removed or given a new value, which is empty if there are none.
+   */
+  static Set<String> findChangedKeys(Map<String, String> oldProperties, Map<String, String> newProperties) {
+    Set<String> changed = new HashSet<String>();
+    for (Map.Entry<String, String> entry : newProperties.entrySet()) {
+      if (!entry.getValue().equals(oldProperties.get(entry.getKey()))) {
+        changed.add(entry.getKey());
+      }
+    }
+    for (String key : oldProperties.keySet()) {
+      if (!newProperties.containsKey(key)) {
+        changed.add(key);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Get the config that was reloaded.
+   * @return the {@link #config}.
+   */
+  public Config getConfig() {
+    return config;
+  }
+
+  /**
+   * Get the keys that were added, removed or given a new value.
+   * @return the {@link #changedKeys}.
+   */
+  public Set<String> getChangedKeys() {
+    return changedKeys;
+  }
+
+  /**
+   * Get the value a property had before the reload.
+   * @param key The key of the property.
+   * @return The old value, or null if the property was added by the reload.
+   */
+  public String getOldValue(String key) {
+    return oldProperties.get(key);
+  }
+
+  /**
+   * Get the value a property has after the reload.
+   * @param key The key of the property.
+   * @return The new value, or null if the property was removed by the reload.
+   */
+  public String getNewValue(String key) {
+    return newProperties.get(key);
+  }
+
+  @Override
+  public String toString() {
+    return "ConfigChangeEvent[" + config.getConfigFileName() + ", changed=" + changedKeys + "]";
+  }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+/**
+ * Receives notice of changes to a {@link Config} when it is reloaded. Listeners are called on the
+ * thread that reloaded the config, which for a watched config is the shared watcher thread, so
+ * they should return quickly.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public interface ConfigChangeListener {
+
+  /** Called after a reload has published new values for one or more properties.
+   *
+   * @param event The details of the change.
+   */
+  void configChanged(ConfigChangeEvent event);
+}
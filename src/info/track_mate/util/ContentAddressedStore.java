@@ -0,0 +1,596 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.ClosedChannelException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A store that keeps one copy of each distinct file content, however many names it is stored
+ * under. Content is stored as a blob named after its SHA-256 digest, and an index maps each name
+ * to the digest of its content and counts the names referring to each blob.
+ * <p>
+ * The index is held in memory and persisted as an append-only log of changes, replayed when the
+ * store is opened; {@link #gc()} deletes blobs no name refers to any more and compacts the log.
+ * Blobs and log entries are synced to disk before a write returns, through a
+ * {@link GroupCommitSyncer} so that concurrent writes share syncs of the log, and a blob is always
+ * renamed into place before the log refers to it. Java 6 has no way to sync a directory, though,
+ * so the rename itself is not durable: after a crash the log may refer to a blob whose directory
+ * entry was lost. The names referring to a missing blob are logged and dropped when the store is
+ * opened, and otherwise a crash can at worst leave an unreferenced blob for the next
+ * {@link #gc()} to remove.
+ * <p>
+ * The store is thread safe, but only one instance may have a directory open at a time.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class ContentAddressedStore implements Closeable {
+
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(ContentAddressedStore.class);
+
+  /** The name of the index log within the store's directory. */
+  public static final String INDEX_FILENAME = "index.log";
+  /** The name of the directory holding blobs within the store's directory. */
+  public static final String BLOB_DIRECTORY_NAME = "blobs";
+  /** The name of the directory holding blobs being written within the store's directory. */
+  public static final String TEMP_DIRECTORY_NAME = "tmp";
+
+  /** The index log entry type recording that a name refers to a digest. */
+  private static final char ENTRY_PUT = 'P';
+  /** The index log entry type recording that a name has been removed. */
+  private static final char ENTRY_REMOVE = 'R';
+  /** The length of a SHA-256 digest in hex. */
+  private static final int DIGEST_LENGTH = 64;
+  /** The character encoding of the index log. */
+  private static final String INDEX_ENCODING = "UTF-8";
+
+  /** The directory holding the store. */
+  private final File directory;
+  /** The layout of the blob directory. */
+  private final FileStore blobStore;
+  /** The directory holding blobs being written. */
+  private final File tempDirectory;
+  /** The syncer shared by blob and index writes. */
+  private final GroupCommitSyncer syncer;
+  /** The digest each name refers to. */
+  private final Map<String, String> digests = new HashMap<String, String>();
+  /** The number of names referring to each digest that has a blob. */
+  private final Map<String, Integer> referenceCounts = new HashMap<String, Integer>();
+  /** The stream appending to the index log. */
+  private FileOutputStream indexOut;
+  /** The writer appending to the index log. */
+  private Writer indexWriter;
+  /** The number of times the index log has been compacted. Guarded by this. */
+  private long compactionCount;
+
+  /**
+   * Opens the store in the specified directory, creating it if necessary, with its own syncer.
+   * @param directory The directory holding the store.
+   * @throws Exception If the store could not be opened.
+   */
+  public ContentAddressedStore(File directory) throws Exception {
+    this(directory, new GroupCommitSyncer());
+  }
+
+  /**
+   * Opens the store in the specified directory, creating it if necessary.
+   * @param directory The directory holding the store.
+   * @param syncer The syncer shared by blob and index writes.
+   * @throws Exception If the store could not be opened.
+   */
+  public ContentAddressedStore(File directory, GroupCommitSyncer syncer) throws Exception {
+    this.directory = directory;
+    this.blobStore = new FileStore(new File(directory, BLOB_DIRECTORY_NAME), 256, 2);
+    this.tempDirectory = new File(directory, TEMP_DIRECTORY_NAME);
+    this.syncer = syncer;
+    if (!tempDirectory.isDirectory() && !tempDirectory.mkdirs()) {
+      throw new Exception("Cannot create directory: " + tempDirectory);
+    }
+    for (File stale : tempDirectory.listFiles()) {
+      stale.delete();
+    }
+    replayIndex();
+    openIndex();
+  }
+
+  /**
+   * Store a file under its own name.
+   * @param fileData The file to store.
+   * @return The SHA-256 digest of the file's content, as hex.
+   * @throws Exception If the file could not be read or stored.
+   */
+  public String put(FileData fileData) throws Exception {
+    return put(fileData.getName(), fileData.getInputStream());
+  }
+
+  /**
+   * Store content under a name, replacing whatever the name referred to before. The digest is
+   * computed before anything is written, so content that is already stored costs no writes
+   * beyond the index entry.
+   * @param name The name to store the content under.
+   * @param data The content.
+   * @return The SHA-256 digest of the content, as hex.
+   * @throws Exception If the content could not be stored.
+   */
+  public String put(String name, byte[] data) throws Exception {
+    checkName(name);
+    String digest = EncryptionUtils.sha256Hex(data);
+    boolean stored;
+    synchronized (this) {
+      stored = referenceCounts.containsKey(digest);
+      if (stored) {
+        bind(name, digest);
+      }
+    }
+    if (!stored) {
+      return put(name, new ByteArrayInputStream(data));
+    }
+    syncIndex();
+    return digest;
+  }
+
+  /**
+   * Store content under a name, replacing whatever the name referred to before. The content is
+   * hashed as it is written to a temporary file; if a blob with the same digest already exists,
+   * the temporary file is discarded rather than stored again. The stream is read to the end and
+   * closed.
+   * @param name The name to store the content under.
+   * @param dataIn The content.
+   * @return The SHA-256 digest of the content, as hex.
+   * @throws Exception If the content could not be stored.
+   */
+  public String put(String name, InputStream dataIn) throws Exception {
+    checkName(name);
+    MessageDigest messageDigest = EncryptionUtils.newSha256Digest();
+    File temp = File.createTempFile("blob", ".tmp", tempDirectory);
+    try {
+      FileOutputStream fileOut = new FileOutputStream(temp);
+      try {
+        MiscHelper.copy(new DigestInputStream(dataIn, messageDigest), fileOut);
+        syncer.sync(fileOut.getChannel());
+      } finally {
+        fileOut.close();
+      }
+    } catch (Exception e) {
+      temp.delete();
+      throw e;
+    } finally {
+      dataIn.close();
+    }
+    String digest = EncryptionUtils.toHexString(messageDigest.digest());
+    synchronized (this) {
+      if (referenceCounts.containsKey(digest)) {
+        temp.delete();
+      } else {
+        File blob = blobStore.getFile(digest);
+        File blobDirectory = blob.getParentFile();
+        if (!blobDirectory.isDirectory() && !blobDirectory.mkdirs()) {
+          temp.delete();
+          throw new Exception("Cannot create directory: " + blobDirectory);
+        }
+        if (!temp.renameTo(blob) && !(blob.delete() && temp.renameTo(blob))) {
+          temp.delete();
+          throw new Exception("Cannot move blob into place: " + blob);
+        }
+        referenceCounts.put(digest, 0);
+      }
+      bind(name, digest);
+    }
+    syncIndex();
+    return digest;
+  }
+
+  /**
+   * Get the content stored under a name.
+   * @param name The name.
+   * @return The content, or null if nothing is stored under the name.
+   */
+  public FileData get(String name) {
+    String digest = getDigest(name);
+    if (digest == null) {
+      return null;
+    }
+    return new BlobFileData(name, blobStore.getFile(digest));
+  }
+
+  /**
+   * Get the digest of the content stored under a name.
+   * @param name The name.
+   * @return The SHA-256 digest as hex, or null if nothing is stored under the name.
+   */
+  public synchronized String getDigest(String name) {
+    return digests.get(name);
+  }
+
+  /**
+   * Check whether content is stored under a name.
+   * @param name The name.
+   * @return true if the name is in the store, else false.
+   */
+  public synchronized boolean contains(String name) {
+    return digests.containsKey(name);
+  }
+
+  /**
+   * Remove a name from the store. The blob it referred to is kept until {@link #gc()} runs, even
+   * if no other name refers to it.
+   * @param name The name.
+   * @return true if the name was in the store, else false.
+   * @throws Exception If the removal could not be recorded.
+   */
+  public boolean remove(String name) throws Exception {
+    synchronized (this) {
+      String digest = digests.remove(name);
+      if (digest == null) {
+        return false;
+      }
+      release(digest);
+      appendEntry(ENTRY_REMOVE, name, null);
+    }
+    syncIndex();
+    return true;
+  }
+
+  /**
+   * Get the names in the store.
+   * @return A snapshot of the names.
+   */
+  public synchronized Set<String> getNames() {
+    return Collections.unmodifiableSet(new HashSet<String>(digests.keySet()));
+  }
+
+  /**
+   * Get the number of names referring to a blob.
+   * @param digest The SHA-256 digest of the blob, as hex.
+   * @return The number of names, which is 0 for unreferenced or unknown blobs.
+   */
+  public synchronized int getReferenceCount(String digest) {
+    Integer count = referenceCounts.get(digest);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Get the number of blobs stored. This includes blobs released since the store was opened that
+   * are awaiting {@link #gc()}.
+   * @return The number of blobs.
+   */
+  public synchronized int getBlobCount() {
+    return referenceCounts.size();
+  }
+
+  /**
+   * Delete every blob that no name refers to, including any left behind by a crash, and rewrite
+   * the index log so that it only holds the current names. Content already handed out by
+   * {@link #get(String)} for a name that has since been removed may no longer be readable.
+   * @return The number of blobs deleted.
+   * @throws Exception If the index log could not be rewritten.
+   */
+  public synchronized int gc() throws Exception {
+    int deleted = 0;
+    Deque<File> pending = new ArrayDeque<File>();
+    pending.push(blobStore.getRootDirectory());
+    while (!pending.isEmpty()) {
+      File[] children = pending.pop().listFiles();
+      if (children == null) {
+        continue;
+      }
+      for (File child : children) {
+        if (child.isDirectory()) {
+          pending.push(child);
+        } else if (getReferenceCount(child.getName()) == 0) {
+          if (child.delete()) {
+            deleted++;
+          } else {
+            logger.warn("Failed to delete unreferenced blob: " + child);
+          }
+          referenceCounts.remove(child.getName());
+        }
+      }
+    }
+    compactIndex();
+    logger.info("Deleted " + deleted + " unreferenced blobs from " + directory);
+    return deleted;
+  }
+
+  /**
+   * Close the index log. The store can't be written to afterwards.
+   * @throws IOException If the index log could not be closed.
+   */
+  public synchronized void close() throws IOException {
+    if (indexWriter != null) {
+      indexWriter.close();
+      indexWriter = null;
+      indexOut = null;
+    }
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Point a name at a digest that has a blob, releasing whatever it referred to before. Must be
+   * called while synchronized on the store.
+   * @param name The name.
+   * @param digest The digest.
+   * @throws IOException If the change could not be written to the index log.
+   */
+  private void bind(String name, String digest) throws IOException {
+    String previous = digests.put(name, digest);
+    if (digest.equals(previous)) {
+      return;
+    }
+    referenceCounts.put(digest, referenceCounts.get(digest) + 1);
+    if (previous != null) {
+      release(previous);
+    }
+    appendEntry(ENTRY_PUT, name, digest);
+  }
+
+  /**
+   * Drop one reference to a digest. Must be called while synchronized on the store.
+   * @param digest The digest.
+   */
+  private void release(String digest) {
+    Integer count = referenceCounts.get(digest);
+    if (count != null && count > 0) {
+      referenceCounts.put(digest, count - 1);
+    }
+  }
+
+  /**
+   * Append an entry to the index log. Must be called while synchronized on the store; the entry
+   * is flushed but not synced.
+   * @param type The entry type.
+   * @param name The name the entry is about.
+   * @param digest The digest the name refers to, or null for a removal.
+   * @throws IOException If the entry could not be written.
+   */
+  private void appendEntry(char type, String name, String digest) throws IOException {
+    if (indexWriter == null) {
+      throw new IOException("Store is closed: " + directory);
+    }
+    indexWriter.write(type);
+    indexWriter.write(' ');
+    if (digest != null) {
+      indexWriter.write(digest);
+      indexWriter.write(' ');
+    }
+    indexWriter.write(name);
+    indexWriter.write('\n');
+    indexWriter.flush();
+  }
+
+  /**
+   * Sync everything appended to the index log so far. The sync happens outside the store's lock
+   * so that concurrent writes can share it; if {@link #gc()} compacts the log meanwhile, the
+   * compacted log, which was synced before it replaced the old one, already holds the entries.
+   * @throws IOException If the log could not be synced.
+   */
+  private void syncIndex() throws IOException {
+    FileOutputStream out;
+    long compactions;
+    synchronized (this) {
+      out = indexOut;
+      compactions = compactionCount;
+    }
+    if (out != null) {
+      try {
+        syncer.sync(out.getChannel());
+      } catch (ClosedChannelException e) {
+        synchronized (this) {
+          if (compactionCount == compactions) {
+            throw e;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Rebuild the in-memory index from the index log and the blobs on disk. A torn entry at the end
+   * of the log, left by a crash, is ignored and cut off so that later entries aren't appended to
+   * it, as is any name whose blob is missing; the next {@link #gc()} drops such names from the
+   * log.
+   * @throws Exception If the log could not be read or repaired.
+   */
+  private void replayIndex() throws Exception {
+    File indexFile = new File(directory, INDEX_FILENAME);
+    if (indexFile.exists()) {
+      long validLength = 0;
+      InputStream in = new BufferedInputStream(new FileInputStream(indexFile));
+      try {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long offset = 0;
+        int lineNumber = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+          offset++;
+          if (b != '\n') {
+            line.write(b);
+            continue;
+          }
+          lineNumber++;
+          if (!replayEntry(line.toString(INDEX_ENCODING))) {
+            logger.warn("Ignoring malformed entry at line " + lineNumber + " of " + indexFile);
+          }
+          line.reset();
+          validLength = offset;
+        }
+      } finally {
+        in.close();
+      }
+      if (validLength < indexFile.length()) {
+        logger.warn("Truncating torn entry at the end of " + indexFile);
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+          file.setLength(validLength);
+          file.getChannel().force(true);
+        } finally {
+          file.close();
+        }
+      }
+    }
+    for (Iterator<Map.Entry<String, String>> it = digests.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<String, String> entry = it.next();
+      if (!blobStore.getFile(entry.getValue()).exists()) {
+        logger.warn("Dropping " + entry.getKey() + " as its blob " + entry.getValue() + " is missing from " + directory);
+        it.remove();
+        continue;
+      }
+      Integer count = referenceCounts.get(entry.getValue());
+      referenceCounts.put(entry.getValue(), count == null ? 1 : count + 1);
+    }
+  }
+
+  /**
+   * Apply a complete entry from the index log to the in-memory index.
+   * @param line The entry, without its newline.
+   * @return true if the entry was well formed, else false.
+   */
+  private boolean replayEntry(String line) {
+    if (line.length() > 2 && line.charAt(0) == ENTRY_PUT && line.charAt(1) == ' ') {
+      int split = 2 + DIGEST_LENGTH;
+      if (line.length() <= split + 1 || line.charAt(split) != ' ' || !isDigest(line.substring(2, split))) {
+        return false;
+      }
+      digests.put(line.substring(split + 1), line.substring(2, split));
+      return true;
+    } else if (line.length() > 2 && line.charAt(0) == ENTRY_REMOVE && line.charAt(1) == ' ') {
+      digests.remove(line.substring(2));
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check that a string is a SHA-256 digest in lower case hex.
+   * @param digest The string.
+   * @return true if it is a digest, else false.
+   */
+  private static boolean isDigest(String digest) {
+    if (digest.length() != DIGEST_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < digest.length(); i++) {
+      char c = digest.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Rewrite the index log so that it only holds the current names, replacing it atomically.
+   * Must be called while synchronized on the store.
+   * @throws Exception If the log could not be rewritten.
+   */
+  private void compactIndex() throws Exception {
+    File indexFile = new File(directory, INDEX_FILENAME);
+    File compacted = new File(directory, INDEX_FILENAME + ".tmp");
+    close();
+    FileOutputStream compactedOut = new FileOutputStream(compacted);
+    try {
+      indexOut = compactedOut;
+      indexWriter = new OutputStreamWriter(compactedOut, INDEX_ENCODING);
+      for (Map.Entry<String, String> entry : digests.entrySet()) {
+        appendEntry(ENTRY_PUT, entry.getKey(), entry.getValue());
+      }
+      compactedOut.getChannel().force(true);
+    } finally {
+      indexWriter = null;
+      indexOut = null;
+      compactedOut.close();
+    }
+    if (!compacted.renameTo(indexFile) && !(indexFile.delete() && compacted.renameTo(indexFile))) {
+      throw new Exception("Cannot replace index log: " + indexFile);
+    }
+    compactionCount++;
+    openIndex();
+  }
+
+  /**
+   * Open the index log for appending.
+   * @throws IOException If the log could not be opened.
+   */
+  private void openIndex() throws IOException {
+    indexOut = new FileOutputStream(new File(directory, INDEX_FILENAME), true);
+    indexWriter = new OutputStreamWriter(indexOut, INDEX_ENCODING);
+  }
+
+  /**
+   * Check that a name can be recorded in the index log.
+   * @param name The name.
+   */
+  private static void checkName(String name) {
+    if (name == null || name.length() == 0 || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+      throw new IllegalArgumentException("Invalid name: " + name);
+    }
+  }
+
+  /**
+   * A read-only view of a blob under one of its names.
+   */
+  private static final class BlobFileData implements FileData {
+
+    /** The name the blob was looked up by. */
+    private final String name;
+    /** The blob on disk. */
+    private final DiskFileData blob;
+
+    private BlobFileData(String name, File blobFile) {
+      this.name = name;
+      this.blob = new DiskFileData(name, blobFile);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getFileSize() {
+      return blob.getFileSize();
+    }
+
+    public byte[] getData() throws Exception {
+      return blob.getData();
+    }
+
+    public InputStream getInputStream() throws Exception {
+      return blob.getInputStream();
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that counts the bytes written through it.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+  /** The number of bytes written so far. */
+  private long count;
+
+  /**
+   * Creates a new CountingOutputStream.
+   * @param out The stream to count the bytes of.
+   */
+  public CountingOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  /**
+   * Get the number of bytes written so far.
+   * @return the {@link #count}.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    count += len;
+  }
+}
@@ -15,11 +15,32 @@
  */
 package info.track_mate.util;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
+import java.util.SimpleTimeZone;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
+ * Date arithmetic helpers.
+ * <p>
+ * The methods taking and returning <code>long</code> epoch milliseconds, such
+ * as {@link #dayStart(long, TimeZone)}, give the same results as the
+ * Calendar based Date methods without allocating a Calendar or Date on each
+ * call, which matters when bucketing large numbers of timestamps. Like
+ * Calendar, they resolve a local time that falls in a daylight saving gap
+ * with the offset from before the gap, and a local time that falls in an
+ * overlap with the offset from after it.
+ * <p>
+ * The bulk methods, such as {@link #localDays(long[], TimeZone, int[])},
+ * bucket whole arrays of timestamps by local day using a table of the
+ * timezone's offset changes that is built once per timezone, optionally
+ * spreading the work over an ExecutorService.
  *
  * @author Gareth Smith <gareth@track-mate.info>
  */
@@ -29,18 +50,18 @@ public final class DateHelper {
   /** Logger instance for this class. */
   private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(DateHelper.class);
 
-  /** The last hour of the day (23). */
-  private static final int LAST_HOUR_IN_DAY = 23;
-  /** The last minute of the hour (59). */
-  private static final int LAST_MINUTE_IN_HOUR = 59;
-  /** The last minute of the hour (59). */
-  private static final int LAST_SECOND_IN_MINUTE = 59;
-  /** The last millisecond of the second (999). */
-  private static final int LAST_MILLI_IN_SECOND = 999;
-
   /** The number of milliseconds in a day. */
   public static final int MILLISECONDS_PER_DAY = 1000 * 60 * 60 * 24;
 
+  /** The number of milliseconds in an hour. */
+  private static final long MILLISECONDS_PER_HOUR = 1000L * 60 * 60;
+  /** The number of days between 0000-03-01 and the epoch, for converting days to dates. */
+  private static final long DAYS_TO_EPOCH_FROM_MARCH_0000 = 719468;
+  /** The first year entirely in the Gregorian calendar, before which Calendar uses Julian dates. */
+  private static final int FIRST_GREGORIAN_YEAR = 1583;
+  /** The fewest timestamps worth handing to another thread by the parallel bulk methods. */
+  private static final int MIN_PARALLEL_CHUNK = 1 << 16;
+
   /**
    * Creates a new RacingHelper.
    */
@@ -103,16 +124,19 @@ public final class DateHelper {
    * @return The date for the start of the specified day.
    */
   public static Date getDayStart(final Date date, TimeZone timezone) {
-    Calendar calendar = Calendar.getInstance();
-    if (timezone != null) {
-      calendar.setTimeZone(timezone);
-    }
-    calendar.setTime(date);
-    calendar.set(Calendar.HOUR_OF_DAY, 0);
-    calendar.set(Calendar.MINUTE, 0);
-    calendar.set(Calendar.SECOND, 0);
-    calendar.set(Calendar.MILLISECOND, 0);
-    return calendar.getTime();
+    return new Date(dayStart(date.getTime(), timezone != null ? timezone : TimeZone.getDefault()));
+  }
+
+  /**
+   * Get the start of the day containing an instant.
+   *
+   * @param epochMillis
+   *          The instant, in milliseconds since the epoch.
+   * @param timezone The timezone that defines the day.
+   * @return The first millisecond of the day, in milliseconds since the epoch.
+   */
+  public static long dayStart(final long epochMillis, final TimeZone timezone) {
+    return toEpochMillis(localDay(epochMillis, timezone) * MILLISECONDS_PER_DAY, timezone);
   }
 
   /**
@@ -135,16 +159,48 @@ public final class DateHelper {
    * @return The date for the end of the specified day.
    */
   public static Date getDayEnd(final Date date, TimeZone timezone) {
-    Calendar calendar = Calendar.getInstance();
-    if (timezone != null) {
-      calendar.setTimeZone(timezone);
-    }
-    calendar.setTime(date);
-    calendar.set(Calendar.HOUR_OF_DAY, LAST_HOUR_IN_DAY);
-    calendar.set(Calendar.MINUTE, LAST_MINUTE_IN_HOUR);
-    calendar.set(Calendar.SECOND, LAST_SECOND_IN_MINUTE);
-    calendar.set(Calendar.MILLISECOND, LAST_MILLI_IN_SECOND);
-    return calendar.getTime();
+    return new Date(dayEnd(date.getTime(), timezone != null ? timezone : TimeZone.getDefault()));
+  }
+
+  /**
+   * Get the end of the day containing an instant, being 23:59:59.999 local
+   * time.
+   *
+   * @param epochMillis
+   *          The instant, in milliseconds since the epoch.
+   * @param timezone The timezone that defines the day.
+   * @return The last millisecond of the day, in milliseconds since the epoch.
+   */
+  public static long dayEnd(final long epochMillis, final TimeZone timezone) {
+    return toEpochMillis((localDay(epochMillis, timezone) + 1) * MILLISECONDS_PER_DAY - 1, timezone);
+  }
+
+  /**
+   * Get the start of the day after the one containing an instant, which is
+   * the exclusive end of the day.
+   *
+   * @param epochMillis
+   *          The instant, in milliseconds since the epoch.
+   * @param timezone The timezone that defines the day.
+   * @return The first millisecond of the next day, in milliseconds since the
+   *         epoch.
+   */
+  public static long nextDay(final long epochMillis, final TimeZone timezone) {
+    return toEpochMillis((localDay(epochMillis, timezone) + 1) * MILLISECONDS_PER_DAY, timezone);
+  }
+
+  /**
+   * Get the number of the day containing an instant, counting the local day
+   * containing the epoch (1970-01-01) as day 0.
+   *
+   * @param epochMillis
+   *          The instant, in milliseconds since the epoch.
+   * @param timezone The timezone that defines the day.
+   * @return The day number, which is negative for days before 1970.
+   */
+  public static long localDay(final long epochMillis, final TimeZone timezone) {
+    int offset = isFixedOffset(timezone) ? timezone.getRawOffset() : timezone.getOffset(epochMillis);
+    return floorDiv(epochMillis + offset, MILLISECONDS_PER_DAY);
   }
 
   /**
@@ -173,14 +229,7 @@ public final class DateHelper {
    * @return The date representing the start of the following day based on server time.
    */
   public static Date getTommorrowStartDate() {
-    Calendar calendar = Calendar.getInstance();
-    calendar.setTimeInMillis(System.currentTimeMillis());
-    calendar.add(Calendar.DATE, 1);
-    calendar.set(Calendar.HOUR_OF_DAY, 0);
-    calendar.set(Calendar.MINUTE, 0);
-    calendar.set(Calendar.SECOND, 0);
-    calendar.set(Calendar.MILLISECOND, 0);
-    return calendar.getTime();
+    return new Date(nextDay(System.currentTimeMillis(), TimeZone.getDefault()));
   }
 
   /** Get the start date for today (based on system time).
@@ -196,14 +245,8 @@ public final class DateHelper {
    * @return The date representing the start of the previous day based on server time.
    */
   public static Date getYesterdayStartDate() {
-    Calendar calendar = Calendar.getInstance();
-    calendar.setTimeInMillis(System.currentTimeMillis());
-    calendar.add(Calendar.DATE, -1);
-    calendar.set(Calendar.HOUR_OF_DAY, 0);
-    calendar.set(Calendar.MINUTE, 0);
-    calendar.set(Calendar.SECOND, 0);
-    calendar.set(Calendar.MILLISECOND, 0);
-    return calendar.getTime();
+    TimeZone timezone = TimeZone.getDefault();
+    return new Date(toEpochMillis((localDay(System.currentTimeMillis(), timezone) - 1) * MILLISECONDS_PER_DAY, timezone));
   }
 
   /**
@@ -214,10 +257,333 @@ public final class DateHelper {
    * @return The offset Date.
    */
   public static Date getOffsetDate(Date startDate, int offsetQuantity, int offsetQualifier) {
-    Calendar calendar = Calendar.getInstance();
-    calendar.setTime(startDate);
+    return new Date(offset(startDate.getTime(), offsetQuantity, offsetQualifier, TimeZone.getDefault()));
+  }
+
+  /**
+   * Offset an instant by the specified amount, as {@link Calendar#add} would.
+   * Adding days, weeks, months or years keeps the local time of day where it
+   * can; adding smaller units adds elapsed time. Fields other than these, and
+   * months or years before 1583, are handed to a Calendar.
+   *
+   * @param epochMillis
+   *          The instant to offset, in milliseconds since the epoch.
+   * @param offsetQuantity The amount to offset. Note that negative numbers will result in an earlier instant.
+   * @param offsetQualifier The unit to offset the instant by. This should be taken from the Calendar constants.
+   * @param timezone The timezone that defines days and local times.
+   * @return The offset instant, in milliseconds since the epoch.
+   */
+  public static long offset(final long epochMillis, final int offsetQuantity, final int offsetQualifier,
+      final TimeZone timezone) {
+    if (offsetQuantity == 0) {
+      return epochMillis;
+    }
+    switch (offsetQualifier) {
+      case Calendar.MILLISECOND:
+        return epochMillis + offsetQuantity;
+      case Calendar.SECOND:
+        return epochMillis + offsetQuantity * 1000L;
+      case Calendar.MINUTE:
+        return epochMillis + offsetQuantity * 60000L;
+      case Calendar.HOUR:
+      case Calendar.HOUR_OF_DAY:
+        return epochMillis + offsetQuantity * MILLISECONDS_PER_HOUR;
+      case Calendar.DATE:
+      case Calendar.DAY_OF_YEAR:
+      case Calendar.DAY_OF_WEEK:
+        return offsetDays(epochMillis, offsetQuantity, timezone);
+      case Calendar.WEEK_OF_YEAR:
+      case Calendar.WEEK_OF_MONTH:
+      case Calendar.DAY_OF_WEEK_IN_MONTH:
+        return offsetDays(epochMillis, offsetQuantity * 7L, timezone);
+      case Calendar.MONTH:
+        return offsetMonths(epochMillis, offsetQuantity, offsetQuantity, offsetQualifier, timezone);
+      case Calendar.YEAR:
+        return offsetMonths(epochMillis, offsetQuantity * 12L, offsetQuantity, offsetQualifier, timezone);
+      default:
+        return calendarOffset(epochMillis, offsetQuantity, offsetQualifier, timezone);
+    }
+  }
+
+  /**
+   * Find the local day number of each of an array of timestamps, as
+   * {@link #localDay(long, TimeZone)} would.
+   *
+   * @param epochMillis The timestamps, in milliseconds since the epoch.
+   * @param timezone The timezone that defines the days.
+   * @param days The array to fill with the day numbers, at the same indexes as the timestamps.
+   */
+  public static void localDays(final long[] epochMillis, final TimeZone timezone, final int[] days) {
+    checkLength(epochMillis, days.length);
+    ZoneTransitionTable.forZone(timezone).localDays(epochMillis, days, 0, epochMillis.length);
+  }
+
+  /**
+   * Find the local day number of each of an array of timestamps, as
+   * {@link #localDay(long, TimeZone)} would, splitting large arrays between
+   * the threads of an executor.
+   *
+   * @param epochMillis The timestamps, in milliseconds since the epoch.
+   * @param timezone The timezone that defines the days.
+   * @param days The array to fill with the day numbers, at the same indexes as the timestamps.
+   * @param executor The executor to run the work on.
+   * @throws InterruptedException If interrupted while waiting for the work to finish.
+   */
+  public static void localDays(final long[] epochMillis, final TimeZone timezone, final int[] days,
+      final ExecutorService executor) throws InterruptedException {
+    checkLength(epochMillis, days.length);
+    final ZoneTransitionTable table = ZoneTransitionTable.forZone(timezone);
+    runInChunks(epochMillis.length, executor, new ChunkTask() {
+      public void run(int from, int to) {
+        table.localDays(epochMillis, days, from, to);
+      }
+    });
+  }
+
+  /**
+   * Find the start of the local day of each of an array of timestamps, as
+   * {@link #dayStart(long, TimeZone)} would.
+   *
+   * @param epochMillis The timestamps, in milliseconds since the epoch.
+   * @param timezone The timezone that defines the days.
+   * @param dayStarts The array to fill with the day starts, at the same indexes as the timestamps.
+   */
+  public static void dayStarts(final long[] epochMillis, final TimeZone timezone, final long[] dayStarts) {
+    checkLength(epochMillis, dayStarts.length);
+    ZoneTransitionTable.forZone(timezone).dayStarts(epochMillis, dayStarts, 0, epochMillis.length);
+  }
+
+  /**
+   * Find the start of the local day of each of an array of timestamps, as
+   * {@link #dayStart(long, TimeZone)} would, splitting large arrays between
+   * the threads of an executor.
+   *
+   * @param epochMillis The timestamps, in milliseconds since the epoch.
+   * @param timezone The timezone that defines the days.
+   * @param dayStarts The array to fill with the day starts, at the same indexes as the timestamps.
+   * @param executor The executor to run the work on.
+   * @throws InterruptedException If interrupted while waiting for the work to finish.
+   */
+  public static void dayStarts(final long[] epochMillis, final TimeZone timezone, final long[] dayStarts,
+      final ExecutorService executor) throws InterruptedException {
+    checkLength(epochMillis, dayStarts.length);
+    final ZoneTransitionTable table = ZoneTransitionTable.forZone(timezone);
+    runInChunks(epochMillis.length, executor, new ChunkTask() {
+      public void run(int from, int to) {
+        table.dayStarts(epochMillis, dayStarts, from, to);
+      }
+    });
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Work on a range of indexes of the arrays passed to a parallel bulk method.
+   */
+  private interface ChunkTask {
+
+    /**
+     * Do the work for a range of indexes.
+     * @param from The first index.
+     * @param to The index after the last.
+     */
+    void run(int from, int to);
+  }
+
+  /**
+   * Check that an output array is long enough for the timestamps.
+   */
+  private static void checkLength(final long[] epochMillis, final int outputLength) {
+    if (outputLength < epochMillis.length) {
+      throw new IllegalArgumentException("Output array is shorter than the input: " + outputLength + " < "
+          + epochMillis.length);
+    }
+  }
+
+  /**
+   * Split a range of indexes into chunks, run a task for each on an
+   * executor and wait for them all to finish. Small ranges are run on the
+   * calling thread.
+   */
+  private static void runInChunks(final int length, final ExecutorService executor, final ChunkTask task)
+      throws InterruptedException {
+    int chunkCount = Math.min(Runtime.getRuntime().availableProcessors() * 4, length / MIN_PARALLEL_CHUNK);
+    if (chunkCount <= 1) {
+      task.run(0, length);
+      return;
+    }
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(chunkCount);
+    try {
+      for (int chunk = 0; chunk < chunkCount; chunk++) {
+        final int from = (int) ((long) length * chunk / chunkCount);
+        final int to = (int) ((long) length * (chunk + 1) / chunkCount);
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() {
+            task.run(from, to);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException("Bulk date task failed", cause);
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Offset an instant by a number of days, keeping its local time of day. If
+   * the new day's offset from UTC differs, the instant is moved by the
+   * difference unless that would change its day, as Calendar does.
+   */
+  private static long offsetDays(final long epochMillis, final long days, final TimeZone timezone) {
+    if (isFixedOffset(timezone)) {
+      return epochMillis + days * MILLISECONDS_PER_DAY;
+    }
+    int offset = timezone.getOffset(epochMillis);
+    long targetWallMillis = epochMillis + offset + days * MILLISECONDS_PER_DAY;
+    long result = targetWallMillis - offset;
+    int newOffset = timezone.getOffset(result);
+    if (newOffset != offset) {
+      long adjusted = targetWallMillis - newOffset;
+      if (floorDiv(adjusted + timezone.getOffset(adjusted), MILLISECONDS_PER_DAY)
+          == floorDiv(targetWallMillis, MILLISECONDS_PER_DAY)) {
+        result = adjusted;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Offset an instant by a number of months, keeping its local time of day
+   * and day of month, or the last day of the month if the month is shorter.
+   */
+  private static long offsetMonths(final long epochMillis, final long months, final int offsetQuantity,
+      final int offsetQualifier, final TimeZone timezone) {
+    int offset = isFixedOffset(timezone) ? timezone.getRawOffset() : timezone.getOffset(epochMillis);
+    long wallMillis = epochMillis + offset;
+    long day = floorDiv(wallMillis, MILLISECONDS_PER_DAY);
+    long timeOfDay = wallMillis - day * MILLISECONDS_PER_DAY;
+    // Convert the day number to a date, with years starting in March so leap days come last.
+    long era = floorDiv(day + DAYS_TO_EPOCH_FROM_MARCH_0000, 146097);
+    long dayOfEra = day + DAYS_TO_EPOCH_FROM_MARCH_0000 - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long marchMonth = (5 * dayOfYear + 2) / 153;
+    int dayOfMonth = (int) (dayOfYear - (153 * marchMonth + 2) / 5 + 1);
+    long month = marchMonth < 10 ? marchMonth + 3 : marchMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+    long monthIndex = year * 12 + month - 1 + months;
+    long newYear = floorDiv(monthIndex, 12);
+    int newMonth = (int) (monthIndex - newYear * 12) + 1;
+    if (year < FIRST_GREGORIAN_YEAR || newYear < FIRST_GREGORIAN_YEAR) {
+      return calendarOffset(epochMillis, offsetQuantity, offsetQualifier, timezone);
+    }
+    int newDayOfMonth = Math.min(dayOfMonth, getDaysInMonth(newYear, newMonth));
+    return toEpochMillis(toDay(newYear, newMonth, newDayOfMonth) * MILLISECONDS_PER_DAY + timeOfDay, timezone);
+  }
+
+  /**
+   * Offset an instant with a Calendar, for the cases the arithmetic doesn't
+   * cover.
+   */
+  private static long calendarOffset(final long epochMillis, final int offsetQuantity, final int offsetQualifier,
+      final TimeZone timezone) {
+    Calendar calendar = Calendar.getInstance(timezone);
+    calendar.setTimeInMillis(epochMillis);
     calendar.add(offsetQualifier, offsetQuantity);
-    return calendar.getTime();
+    return calendar.getTimeInMillis();
+  }
+
+  /**
+   * Convert a local time, in milliseconds since the local epoch, to an
+   * instant, as Calendar does when its time fields are set. A time in a gap
+   * takes the offset from before the gap and a time in an overlap the offset
+   * from after it, so both resolve to the later of the candidate instants.
+   * SimpleTimeZones instead take the offset in force at the local time read
+   * as standard time, as Calendar does for them.
+   */
+  static long toEpochMillis(final long wallMillis, final TimeZone timezone) {
+    if (isFixedOffset(timezone)) {
+      return wallMillis - timezone.getRawOffset();
+    }
+    if (timezone instanceof SimpleTimeZone) {
+      return wallMillis - timezone.getOffset(wallMillis - timezone.getRawOffset());
+    }
+    // No zone's offset exceeds a day, so these read the offsets either side of any nearby transition.
+    int before = timezone.getOffset(wallMillis - MILLISECONDS_PER_DAY);
+    int after = timezone.getOffset(wallMillis + MILLISECONDS_PER_DAY);
+    if (before == after || timezone.getOffset(wallMillis - after) == after) {
+      return wallMillis - after;
+    }
+    return wallMillis - before;
+  }
+
+  /**
+   * Check whether a timezone has always had the same offset from UTC, so that
+   * its local times are a fixed shift from UTC.
+   */
+  static boolean isFixedOffset(final TimeZone timezone) {
+    if (timezone instanceof SimpleTimeZone) {
+      return !timezone.useDaylightTime();
+    }
+    String id = timezone.getID();
+    return id.equals("UTC") || id.equals("GMT") || id.startsWith("GMT+") || id.startsWith("GMT-")
+        || id.startsWith("Etc/");
+  }
+
+  /**
+   * Get the number of days in a month of the Gregorian calendar.
+   */
+  private static int getDaysInMonth(final long year, final int month) {
+    switch (month) {
+      case 2:
+        return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /**
+   * Convert a date in the Gregorian calendar to a day number, counting
+   * 1970-01-01 as day 0.
+   */
+  static long toDay(final long year, final int month, final int dayOfMonth) {
+    long marchYear = month <= 2 ? year - 1 : year;
+    long era = floorDiv(marchYear, 400);
+    long yearOfEra = marchYear - era * 400;
+    long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - DAYS_TO_EPOCH_FROM_MARCH_0000;
+  }
+
+  /**
+   * Divide, rounding towards negative infinity.
+   */
+  static long floorDiv(final long dividend, final long divisor) {
+    long quotient = dividend / divisor;
+    if ((dividend % divisor != 0) && ((dividend < 0) != (divisor < 0))) {
+      quotient--;
+    }
+    return quotient;
   }
 
 }
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * An immutable index of values that are each valid over a period of time, such as effective
+ * dated prices, for finding the values valid at a time or during a range of times without
+ * checking every one.
+ * <p>
+ * Periods follow {@link DateHelper#isDateValid(Date, Date, Date)}: a value is valid from its
+ * start, inclusive, up to its end, exclusive, and a missing start or end leaves the period open
+ * on that side. The periods are held in primitive arrays sorted by start, overlaid with an
+ * implicit balanced tree recording the latest end beneath each node, so a query visits
+ * O(log n) nodes plus those leading to each match. Indexes are built with a {@link Builder} and
+ * are thread safe once built.
+ *
+ * @param <T> The type of the values.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class DateIntervalIndex<T> {
+
+  /** The start of a period with no start, in milliseconds since the epoch. */
+  public static final long OPEN_START = Long.MIN_VALUE;
+  /** The end of a period with no end, in milliseconds since the epoch. */
+  public static final long OPEN_END = Long.MAX_VALUE;
+
+  /** The start of each period, in ascending order. */
+  private final long[] starts;
+  /** The end of each period. */
+  private final long[] ends;
+  /** The latest end of the periods in the subtree rooted at each index. */
+  private final long[] maxEnds;
+  /** The value of each period. */
+  private final Object[] values;
+
+  /**
+   * Creates a new DateIntervalIndex from periods already sorted by start.
+   * @param starts The start of each period.
+   * @param ends The end of each period.
+   * @param values The value of each period.
+   */
+  private DateIntervalIndex(long[] starts, long[] ends, Object[] values) {
+    this.starts = starts;
+    this.ends = ends;
+    this.values = values;
+    this.maxEnds = new long[starts.length];
+    buildMaxEnds(0, starts.length);
+  }
+
+  /**
+   * Create a builder for an index.
+   * @param <T> The type of the values.
+   * @return A new, empty builder.
+   */
+  public static <T> Builder<T> builder() {
+    return new Builder<T>();
+  }
+
+  /**
+   * Get the number of periods in the index.
+   * @return The number of periods.
+   */
+  public int size() {
+    return starts.length;
+  }
+
+  /**
+   * Find the values valid at a time.
+   * @param date The time.
+   * @return The values valid at the time, in order of the start of their periods.
+   */
+  public List<T> validAt(Date date) {
+    return validAt(date.getTime());
+  }
+
+  /**
+   * Find the values valid at a time.
+   * @param epochMillis The time, in milliseconds since the epoch.
+   * @return The values valid at the time, in order of the start of their periods.
+   */
+  public List<T> validAt(long epochMillis) {
+    List<T> result = new ArrayList<T>();
+    collectValidAt(epochMillis, 0, starts.length, result);
+    return result;
+  }
+
+  /**
+   * Find the values valid at any time in a range: those whose periods overlap it.
+   * @param from The start of the range, inclusive, or null to leave it open.
+   * @param to The end of the range, exclusive, or null to leave it open.
+   * @return The values valid during the range, in order of the start of their periods.
+   */
+  public List<T> validDuring(Date from, Date to) {
+    return validDuring(from != null ? from.getTime() : OPEN_START, to != null ? to.getTime() : OPEN_END);
+  }
+
+  /**
+   * Find the values valid at any time in a range: those whose periods overlap it.
+   * @param from The start of the range, inclusive, in milliseconds since the epoch, or
+   * {@link #OPEN_START}.
+   * @param to The end of the range, exclusive, in milliseconds since the epoch, or
+   * {@link #OPEN_END}.
+   * @return The values valid during the range, in order of the start of their periods, which is
+   * empty if the range is.
+   */
+  public List<T> validDuring(long from, long to) {
+    List<T> result = new ArrayList<T>();
+    if (from < to) {
+      collectValidDuring(from, to, 0, starts.length, result);
+    }
+    return result;
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Record the latest end in each subtree of the implicit tree over a range of indexes, whose
+   * root is the middle index.
+   * @return The latest end in the range, or {@link #OPEN_START} if it is empty.
+   */
+  private long buildMaxEnds(int low, int high) {
+    if (low >= high) {
+      return OPEN_START;
+    }
+    int middle = (low + high) >>> 1;
+    long maxEnd = Math.max(ends[middle], Math.max(buildMaxEnds(low, middle), buildMaxEnds(middle + 1, high)));
+    maxEnds[middle] = maxEnd;
+    return maxEnd;
+  }
+
+  /**
+   * Add the values valid at a time from the subtree over a range of indexes to a list, in order.
+   */
+  @SuppressWarnings("unchecked")
+  private void collectValidAt(long time, int low, int high, List<T> result) {
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (!endsAfter(maxEnds[middle], time)) {
+        return;
+      }
+      collectValidAt(time, low, middle, result);
+      if (starts[middle] > time) {
+        // Every period to the right starts later still.
+        return;
+      }
+      if (endsAfter(ends[middle], time)) {
+        result.add((T) values[middle]);
+      }
+      low = middle + 1;
+    }
+  }
+
+  /**
+   * Add the values valid during a range from the subtree over a range of indexes to a list, in
+   * order.
+   */
+  @SuppressWarnings("unchecked")
+  private void collectValidDuring(long from, long to, int low, int high, List<T> result) {
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (!endsAfter(maxEnds[middle], from)) {
+        return;
+      }
+      collectValidDuring(from, to, low, middle, result);
+      if (starts[middle] >= to && to != OPEN_END) {
+        return;
+      }
+      if (endsAfter(ends[middle], from)) {
+        result.add((T) values[middle]);
+      }
+      low = middle + 1;
+    }
+  }
+
+  /**
+   * Check whether a period ending at one time is still valid at another.
+   */
+  private static boolean endsAfter(long end, long time) {
+    return end > time || end == OPEN_END;
+  }
+
+  /**
+   * Collects the periods for a {@link DateIntervalIndex}.
+   *
+   * @param <T> The type of the values.
+   */
+  public static class Builder<T> {
+
+    /** The initial number of periods the columns are sized for. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The start of each period, in the order added. */
+    private long[] starts = new long[INITIAL_CAPACITY];
+    /** The end of each period, in the order added. */
+    private long[] ends = new long[INITIAL_CAPACITY];
+    /** The value of each period, in the order added. */
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    /** The number of periods added. */
+    private int size;
+
+    /**
+     * Creates a new, empty Builder.
+     */
+    Builder() {
+    }
+
+    /**
+     * Add a value valid over a period.
+     * @param start The start of the period, inclusive, or null to leave it open.
+     * @param end The end of the period, exclusive, or null to leave it open.
+     * @param value The value.
+     * @return This builder.
+     */
+    public Builder<T> add(Date start, Date end, T value) {
+      return add(start != null ? start.getTime() : OPEN_START, end != null ? end.getTime() : OPEN_END, value);
+    }
+
+    /**
+     * Add a value valid over a period. A period that ends at or before its start is never valid
+     * and is left out of the index.
+     * @param start The start of the period, inclusive, in milliseconds since the epoch, or
+     * {@link DateIntervalIndex#OPEN_START}.
+     * @param end The end of the period, exclusive, in milliseconds since the epoch, or
+     * {@link DateIntervalIndex#OPEN_END}.
+     * @param value The value.
+     * @return This builder.
+     */
+    public Builder<T> add(long start, long end, T value) {
+      if (end <= start) {
+        return this;
+      }
+      if (size == starts.length) {
+        int capacity = size + (size >> 1);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        values = Arrays.copyOf(values, capacity);
+      }
+      starts[size] = start;
+      ends[size] = end;
+      values[size] = value;
+      size++;
+      return this;
+    }
+
+    /**
+     * Build an index of the periods added so far. The builder can go on being used afterwards.
+     * @return The index.
+     */
+    public DateIntervalIndex<T> build() {
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      // The sort is stable, so periods with the same start keep the order they were added in.
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer first, Integer second) {
+          long firstStart = starts[first];
+          long secondStart = starts[second];
+          return firstStart < secondStart ? -1 : (firstStart == secondStart ? 0 : 1);
+        }
+      });
+      long[] sortedStarts = new long[size];
+      long[] sortedEnds = new long[size];
+      Object[] sortedValues = new Object[size];
+      for (int i = 0; i < size; i++) {
+        sortedStarts[i] = starts[order[i]];
+        sortedEnds[i] = ends[order[i]];
+        sortedValues[i] = values[order[i]];
+      }
+      return new DateIntervalIndex<T>(sortedStarts, sortedEnds, sortedValues);
+    }
+  }
+
+}
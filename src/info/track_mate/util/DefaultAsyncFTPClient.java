@@ -0,0 +1,334 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link AsyncFTPClient} that runs each operation as a task on an executor, using a
+ * {@link PooledFTPClient} over a shared {@link FTPSessionPool}.
+ * <p>
+ * By default operations run on a cached pool of daemon threads owned by the client. Any other
+ * executor can be supplied instead, for example a bounded pool to cap concurrency, or on a JVM
+ * that supports them, an executor that starts a virtual thread per task.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class DefaultAsyncFTPClient implements AsyncFTPClient {
+
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(DefaultAsyncFTPClient.class);
+
+  /** The pool that sessions are borrowed from. */
+  private final FTPSessionPool sessionPool;
+  /** The host to connect to. */
+  private final String hostname;
+  /** The user to log in as. */
+  private final String username;
+  /** The password to authenticate with. */
+  private final String password;
+  /** The executor that runs the operations. */
+  private final ExecutorService executor;
+  /** True if the executor was created by, and so should be shut down by, this client. */
+  private final boolean ownsExecutor;
+  /** The scheduler that abandons operations which run past their timeout. */
+  private final ScheduledExecutorService timeoutScheduler;
+
+  /**
+   * Creates a new DefaultAsyncFTPClient that runs operations on its own daemon threads.
+   * @param sessionPool The pool to borrow sessions from.
+   * @param hostname The host to connect to.
+   * @param username The user to log in as.
+   * @param password The password to authenticate with.
+   */
+  public DefaultAsyncFTPClient(FTPSessionPool sessionPool, String hostname, String username, String password) {
+    this(sessionPool, hostname, username, password, Executors.newCachedThreadPool(new DaemonThreadFactory("DefaultAsyncFTPClient-worker")), true);
+  }
+
+  /**
+   * Creates a new DefaultAsyncFTPClient that runs operations on the supplied executor.
+   * @param sessionPool The pool to borrow sessions from.
+   * @param hostname The host to connect to.
+   * @param username The user to log in as.
+   * @param password The password to authenticate with.
+   * @param executor The executor to run operations on. It is not shut down by {@link #close()}.
+   */
+  public DefaultAsyncFTPClient(FTPSessionPool sessionPool, String hostname, String username, String password, ExecutorService executor) {
+    this(sessionPool, hostname, username, password, executor, false);
+  }
+
+  private DefaultAsyncFTPClient(FTPSessionPool sessionPool, String hostname, String username, String password,
+          ExecutorService executor, boolean ownsExecutor) {
+    this.sessionPool = sessionPool;
+    this.hostname = hostname;
+    this.username = username;
+    this.password = password;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("DefaultAsyncFTPClient-timeout"));
+  }
+
+  /** {@inheritDoc} */
+  public Future<Void> connect(long timeoutMillis, FTPCompletionHandler<Void> handler) {
+    return submit(null, timeoutMillis, handler, new Operation<Void>() {
+      public Void run(FTPClient client) {
+        return null;
+      }
+    });
+  }
+
+  /** {@inheritDoc} */
+  public Future<Collection<FTPFile>> listFiles(String remoteDirectory, long timeoutMillis, FTPCompletionHandler<Collection<FTPFile>> handler) {
+    return submit(remoteDirectory, timeoutMillis, handler, new Operation<Collection<FTPFile>>() {
+      public Collection<FTPFile> run(FTPClient client) throws Exception {
+        return client.listFiles();
+      }
+    });
+  }
+
+  /** {@inheritDoc} */
+  public Future<FileData> download(String remoteDirectory, final String remoteFileName, long timeoutMillis, FTPCompletionHandler<FileData> handler) {
+    return submit(remoteDirectory, timeoutMillis, handler, new Operation<FileData>() {
+      public FileData run(FTPClient client) throws Exception {
+        return client.download(remoteFileName);
+      }
+    });
+  }
+
+  /** {@inheritDoc} */
+  public Future<File> downloadToDisk(String remoteDirectory, final String remoteFileName, final String localFilePath,
+          long timeoutMillis, FTPCompletionHandler<File> handler) {
+    return submit(remoteDirectory, timeoutMillis, handler, new Operation<File>() {
+      public File run(FTPClient client) throws Exception {
+        return client.downloadToDisk(remoteFileName, localFilePath);
+      }
+    });
+  }
+
+  /** {@inheritDoc} */
+  public void close() {
+    timeoutScheduler.shutdownNow();
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Schedule an operation, and its timeout if it has one.
+   * @param <T> The type of the operation's result.
+   * @param remoteDirectory The directory to change to before running the operation, or null.
+   * @param timeoutMillis The time in milliseconds after which the operation is abandoned, or 0 for no limit.
+   * @param handler The handler to notify when the operation finishes, or null.
+   * @param operation The operation.
+   * @return A Future for the operation's result.
+   */
+  private <T> Future<T> submit(String remoteDirectory, long timeoutMillis, FTPCompletionHandler<T> handler, Operation<T> operation) {
+    final OperationTask<T> task = new OperationTask<T>(new OperationClient(), remoteDirectory, operation, handler);
+    if (timeoutMillis > 0) {
+      task.setTimeout(timeoutScheduler.schedule(new Runnable() {
+        public void run() {
+          task.timeOut();
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS));
+    }
+    executor.execute(task);
+    return task;
+  }
+
+  /**
+   * The body of an operation, run once the session has been connected and moved into the
+   * remote directory.
+   * @param <T> The type of the operation's result.
+   */
+  private interface Operation<T> {
+
+    /** Run the operation.
+     *
+     * @param client The connected client.
+     * @return The result of the operation.
+     * @throws Exception If the operation fails.
+     */
+    T run(FTPClient client) throws Exception;
+  }
+
+  /**
+   * A pooled client that can have its session closed from another thread, to abandon whatever
+   * the operation is blocked on.
+   */
+  private final class OperationClient extends PooledFTPClient {
+
+    /** The borrowed session, or null if none is held. Guarded by this. */
+    private FTPSession session;
+
+    private OperationClient() {
+      super(sessionPool);
+    }
+
+    @Override
+    protected FTPSession openSession(String hostname, String username, String password) throws Exception {
+      FTPSession borrowed = super.openSession(hostname, username, password);
+      synchronized (this) {
+        session = borrowed;
+      }
+      return borrowed;
+    }
+
+    @Override
+    protected void closeSession(FTPSession closing) throws Exception {
+      synchronized (this) {
+        session = null;
+      }
+      super.closeSession(closing);
+    }
+
+    /**
+     * Close the session's connection if it is still held. The pool discards it when it is
+     * handed back.
+     */
+    private synchronized void abortSession() {
+      if (session != null) {
+        session.forceClose();
+      }
+    }
+  }
+
+  /**
+   * A running operation, which closes its session when cancelled and notifies its handler
+   * when done.
+   * @param <T> The type of the operation's result.
+   */
+  private final class OperationTask<T> extends FutureTask<T> {
+
+    /** The client the operation runs on. */
+    private final OperationClient client;
+    /** The handler to notify when the operation finishes, or null. */
+    private final FTPCompletionHandler<T> handler;
+    /** The scheduled timeout, or null if the operation has no time limit. */
+    private volatile Future<?> timeout;
+    /** True if the operation was cancelled because it ran past its timeout. */
+    private volatile boolean timedOut;
+
+    private OperationTask(final OperationClient client, final String remoteDirectory, final Operation<T> operation,
+            FTPCompletionHandler<T> handler) {
+      super(new Callable<T>() {
+        public T call() throws Exception {
+          client.connect(hostname, username, password);
+          try {
+            if (remoteDirectory != null) {
+              client.changeDirectory(remoteDirectory);
+            }
+            return operation.run(client);
+          } finally {
+            client.disconnect();
+          }
+        }
+      });
+      this.client = client;
+      this.handler = handler;
+    }
+
+    /**
+     * Set the {@link #timeout}.
+     * @param value
+     */
+    private void setTimeout(Future<?> value) {
+      this.timeout = value;
+      if (isDone()) {
+        value.cancel(false);
+      }
+    }
+
+    /**
+     * Abandon the operation because it has run past its timeout.
+     */
+    private void timeOut() {
+      timedOut = true;
+      cancel(true);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled && mayInterruptIfRunning) {
+        client.abortSession();
+      }
+      return cancelled;
+    }
+
+    @Override
+    protected void done() {
+      Future<?> scheduledTimeout = timeout;
+      if (scheduledTimeout != null) {
+        scheduledTimeout.cancel(false);
+      }
+      if (handler == null) {
+        return;
+      }
+      try {
+        if (isCancelled()) {
+          handler.failed(timedOut ? new TimeoutException("FTP operation timed out") : new CancellationException("FTP operation cancelled"));
+        } else {
+          T result;
+          try {
+            result = get();
+          } catch (ExecutionException e) {
+            handler.failed(e.getCause());
+            return;
+          }
+          handler.completed(result);
+        }
+      } catch (Exception e) {
+        logger.error("FTP completion handler failed", e);
+      }
+    }
+  }
+
+  /**
+   * Creates named daemon threads.
+   */
+  private static final class DaemonThreadFactory implements ThreadFactory {
+
+    /** The prefix of each thread's name. */
+    private final String namePrefix;
+    /** The number of threads created so far. */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private DaemonThreadFactory(String namePrefix) {
+      this.namePrefix = namePrefix;
+    }
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
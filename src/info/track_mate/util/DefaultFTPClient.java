@@ -16,31 +16,46 @@
 package info.track_mate.util;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.regex.Pattern;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
 
 /**
  * @author Gareth Smith <gareth@track-mate.info>
  */
 public class DefaultFTPClient implements FTPClient {
 
-  /** The timeout in milliseconds for the socket connection (value = 2 minutes). */
-  private static final int SOCKET_TIMEOUT_MILLIS = 120000;
-  
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(DefaultFTPClient.class);
+
   /** The FTP connection that this FTPClient wraps. */
-  private org.apache.commons.net.ftp.FTPClient ftpClient;
+  private FTPSession ftpClient;
+
+  /** The data connection of a streaming download that has not yet been closed, or null. */
+  private DataConnectionInputStream openStream;
+
+  /** The cache to serve directory listings from, or null to always list the server. */
+  private FTPListingCache listingCache;
+
+  /** The absolute path of the working directory, or null if it has not been looked up since it last changed. */
+  private String workingDirectory;
+  /** The listener given to each session this client opens, or null. */
+  private FTPOperationListener operationListener;
   
   /** {@inheritDoc} */
   public void connect(String hostname, String username, String password) throws Exception {
+    workingDirectory = null;
     try {
-      ftpClient = new org.apache.commons.net.ftp.FTPClient();
-      ftpClient.connect(hostname);
-      ftpClient.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
-      ftpClient.login(username, password);
+      ftpClient = openSession(hostname, username, password);
     } catch (Exception e) {
       throw new Exception("Failed to connect to FTP server", e);
     }
@@ -49,8 +64,11 @@ public class DefaultFTPClient implements FTPClient {
   /** {@inheritDoc} */
   public void disconnect() throws Exception {
     try {
-      if (ftpClient != null && ftpClient.isConnected()) {
-        ftpClient.disconnect();
+      if (openStream != null) {
+        openStream.close();
+      }
+      if (ftpClient != null) {
+        closeSession(ftpClient);
       }
     } catch (Exception e) {
       throw new Exception("Failed to disconnect from FTP server", e);
@@ -61,28 +79,36 @@ public class DefaultFTPClient implements FTPClient {
 
   /** {@inheritDoc} */
   public FileData download(FTPFile remoteFile) throws Exception {
-    return download(remoteFile.getName());
+    return download(remoteFile.getName(), remoteFile.getSize());
   }
 
   /** {@inheritDoc} */
   public FileData download(String remoteFileName) throws Exception {
-    byte[] dataBytes;
-    ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-    try {
-      downloadFile(remoteFileName, bytesOut);
-      dataBytes = bytesOut.toByteArray();
-    } catch (Exception e) {
-      throw new Exception("Failed to download file", e);
-    } finally {
-      bytesOut.flush();
-      bytesOut.close();
-    }
-    
-    DefaultFileData fileData = new DefaultFileData();
-    fileData.setName(remoteFileName);
-    fileData.setData(dataBytes);
-    
-    return fileData;
+    return download(remoteFileName, -1);
+  }
+
+  /**
+   * Start downloading the specified remote file, returning a FileData that reads straight from
+   * the data connection rather than holding the file in memory. The FileData can be read once,
+   * and the client can't be used for anything else until its input stream has been closed.
+   * @param remoteFile The remote file to download.
+   * @return A FileData streaming the remote file.
+   * @throws Exception If the operation fails.
+   */
+  public FileData downloadStream(FTPFile remoteFile) throws Exception {
+    return downloadStream(remoteFile.getName(), remoteFile.getSize());
+  }
+
+  /**
+   * Start downloading the specified remote file, returning a FileData that reads straight from
+   * the data connection rather than holding the file in memory.
+   * @param remoteFileName The name of the file to download.
+   * @return A FileData streaming the remote file.
+   * @throws Exception If the operation fails.
+   */
+  public FileData downloadStream(String remoteFileName) throws Exception {
+    checkNoOpenStream();
+    return downloadStream(remoteFileName, ftpClient.getRemoteSize(remoteFileName));
   }
 
   /** {@inheritDoc} */
@@ -110,18 +136,128 @@ public class DefaultFTPClient implements FTPClient {
     return new File(localFilePath);
   }
 
+  /**
+   * Download the specified remote file to a location on disk, continuing from the end of any
+   * partial copy already at that location. If the local copy is already as large as the remote
+   * file then nothing is transferred, and if it is larger then it is downloaded again from the start.
+   * @param remoteFile The remote file to download.
+   * @param localFilePath The path to the location on disk to save the downloaded file.
+   * @return A File representing the location of the downloaded file.
+   * @throws Exception If the operation fails.
+   */
+  public File resumeDownloadToDisk(FTPFile remoteFile, String localFilePath) throws Exception {
+    File localFile = new File(localFilePath);
+    if (localFile.length() == remoteFile.getSize()) {
+      return localFile;
+    }
+    if (localFile.length() > remoteFile.getSize()) {
+      return downloadFromOffset(remoteFile.getName(), localFilePath, 0);
+    }
+    return resumeDownloadToDisk(remoteFile.getName(), localFilePath);
+  }
+
+  /**
+   * Download the specified remote file to a location on disk, continuing from the end of any
+   * partial copy already at that location.
+   * @param remoteFileName The name of the remote file to download.
+   * @param localFilePath The path to the location on disk to save the downloaded file.
+   * @return A File representing the location of the downloaded file.
+   * @throws Exception If the operation fails.
+   */
+  public File resumeDownloadToDisk(String remoteFileName, String localFilePath) throws Exception {
+    return downloadFromOffset(remoteFileName, localFilePath, new File(localFilePath).length());
+  }
+
   /** {@inheritDoc} */
   public Collection<FTPFile> listFiles() throws Exception {
+    checkNoOpenStream();
+    if (listingCache != null) {
+      if (workingDirectory == null) {
+        workingDirectory = ftpClient.printWorkingDirectory();
+      }
+      Collection<FTPFile> cached = listingCache.get(ftpClient.getHostname(), ftpClient.getUsername(), workingDirectory);
+      if (cached != null) {
+        return new ArrayList<FTPFile>(cached);
+      }
+    }
     org.apache.commons.net.ftp.FTPFile[] ftpFiles = ftpClient.listFiles();
     Collection<FTPFile> toReturn = new ArrayList<FTPFile>();
     for (org.apache.commons.net.ftp.FTPFile ftpFile : ftpFiles) {
-      toReturn.add(new DefaultFTPFile(ftpFile.getName(), ftpFile.getSize()));
+      long lastModified = ftpFile.getTimestamp() == null ? 0 : ftpFile.getTimestamp().getTimeInMillis();
+      toReturn.add(new DefaultFTPFile(ftpFile.getName(), ftpFile.getSize(), lastModified, ftpFile.isDirectory()));
+    }
+    if (listingCache != null && workingDirectory != null) {
+      listingCache.put(ftpClient.getHostname(), ftpClient.getUsername(), workingDirectory, toReturn);
     }
     return toReturn;
   }
 
+  /**
+   * Start listing the files in the current working directory, parsing each entry as it arrives
+   * from the server. The client can't be used for anything else until the reader has been read
+   * to the end or closed.
+   * @param nameFilter A pattern that file names must match, or null to list every file. See
+   * {@link MiscHelper#globToPattern(String)} to filter with a glob.
+   * @return A reader over the listing.
+   * @throws Exception If the operation fails.
+   */
+  public FTPListingReader openListing(Pattern nameFilter) throws Exception {
+    checkNoOpenStream();
+    FTPFileEntryParser entryParser;
+    InputStream listingIn;
+    try {
+      // The parser may need a SYST round trip, which can't happen once the LIST has started.
+      entryParser = ftpClient.getEntryParser();
+      listingIn = ftpClient.openListStream(null);
+    } catch (Exception e) {
+      throw new Exception("Failed to start directory listing", e);
+    }
+    if (listingIn == null) {
+      throw new Exception("Failed to start directory listing: " + ftpClient.getReplyString());
+    }
+    openStream = new DataConnectionInputStream(listingIn);
+    return new FTPListingReader(openStream, entryParser, nameFilter);
+  }
+
+  /**
+   * List the files in the current working directory into a compact, columnar listing, parsing
+   * each entry as it arrives from the server.
+   * @param nameFilter A pattern that file names must match, or null to list every file.
+   * @return The listing.
+   * @throws Exception If the operation fails.
+   */
+  public CompactFTPListing listFilesCompact(Pattern nameFilter) throws Exception {
+    FTPListingReader listingReader = openListing(nameFilter);
+    try {
+      return listingReader.readCompact();
+    } finally {
+      listingReader.close();
+    }
+  }
+
+  /**
+   * Set the cache that directory listings are served from. The cache may be shared with other
+   * clients.
+   * @param value The listing cache, or null to always list the server.
+   */
+  public void setListingCache(FTPListingCache value) {
+    this.listingCache = value;
+  }
+
+  /**
+   * Set the listener that timings of connects, listings and downloads are reported to. This
+   * applies from the next {@link #connect(String, String, String)}. Pooled sessions take their
+   * listener from {@link FTPSessionPool#setOperationListener(FTPOperationListener)} instead.
+   * @param value The listener, or null to stop recording timings.
+   */
+  public void setOperationListener(FTPOperationListener value) {
+    this.operationListener = value;
+  }
+
   /** {@inheritDoc} */
   public void changeDirectory(String directoryName) throws Exception {
+    checkNoOpenStream();
+    workingDirectory = null;
     try {
       ftpClient.changeWorkingDirectory(directoryName);
     } catch (Exception e) {
@@ -129,7 +265,99 @@ public class DefaultFTPClient implements FTPClient {
     }
   }
 
+  /**
+   * Open the session that this client will use until {@link #disconnect()} is called.
+   * @param hostname The hostname to connect to.
+   * @param username The username to authenticate with.
+   * @param password The password to authenticate with.
+   * @return The connected session.
+   * @throws Exception If the session could not be opened.
+   */
+  protected FTPSession openSession(String hostname, String username, String password) throws Exception {
+    FTPSession session = new FTPSession(hostname, username);
+    session.setOperationListener(operationListener);
+    session.open(password);
+    return session;
+  }
+
+  /**
+   * Close the session opened by {@link #openSession(String, String, String)}.
+   * @param session The session to close.
+   * @throws Exception If the session could not be closed.
+   */
+  protected void closeSession(FTPSession session) throws Exception {
+    if (session.isConnected()) {
+      session.disconnect();
+    }
+  }
+
   // ------ Private Helpers ------
+
+  /**
+   * Download the specified remote file into memory.
+   * @param remoteFileName The name of the remote file to download.
+   * @param sizeHint The expected size of the file, or -1 if it is not known. When it is right, and
+   * no more than {@link ChunkedBuffer#MAX_HINT_SIZE}, the file is downloaded straight into the array
+   * that is returned.
+   * @return The downloaded file.
+   * @throws Exception If the file could not be downloaded.
+   */
+  private FileData download(String remoteFileName, long sizeHint) throws Exception {
+    byte[] dataBytes;
+    ChunkedBuffer buffer = new ChunkedBuffer(sizeHint);
+    try {
+      downloadFile(remoteFileName, buffer);
+      dataBytes = buffer.toByteArray();
+    } catch (Exception e) {
+      throw new Exception("Failed to download file", e);
+    } finally {
+      buffer.release();
+    }
+
+    DefaultFileData fileData = new DefaultFileData();
+    fileData.setName(remoteFileName);
+    fileData.setData(dataBytes);
+
+    return fileData;
+  }
+
+  /**
+   * Download the specified remote file in binary mode to a location on disk, starting at the
+   * specified offset. The local file is truncated to the offset before the transfer starts.
+   * @param remoteFileName The name of the remote file to download.
+   * @param localFilePath The path to the location on disk to save the downloaded file.
+   * @param offset The offset into the remote file to start the transfer from.
+   * @return A File representing the location of the downloaded file.
+   * @throws Exception If the operation fails.
+   */
+  private File downloadFromOffset(String remoteFileName, String localFilePath, long offset) throws Exception {
+    checkNoOpenStream();
+    RandomAccessFile fileOut = null;
+    try {
+      if (!ftpClient.setFileType(org.apache.commons.net.ftp.FTP.BINARY_FILE_TYPE)) {
+        throw new Exception("Failed to set binary file type: " + ftpClient.getReplyString());
+      }
+      fileOut = new RandomAccessFile(localFilePath, "rw");
+      fileOut.setLength(offset);
+      fileOut.seek(offset);
+      ftpClient.setRestartOffset(offset);
+      OutputStream dataOut = new BufferedOutputStream(Channels.newOutputStream(fileOut.getChannel()));
+      if (!ftpClient.retrieveFile(remoteFileName, dataOut)) {
+        throw new Exception("Server refused transfer: " + ftpClient.getReplyString());
+      }
+      dataOut.flush();
+
+    } catch (Exception e) {
+      throw new Exception("Failed to resume download of file to disk", e);
+    } finally {
+      ftpClient.setRestartOffset(0);
+      if (fileOut != null) {
+        fileOut.close();
+      }
+    }
+
+    return new File(localFilePath);
+  }
   
   /**
    * Download the specified remote file to the provided output stream.
@@ -138,6 +366,69 @@ public class DefaultFTPClient implements FTPClient {
    * @throws Exception If the operation fails.
    */
   private void downloadFile(String remoteFileName, OutputStream outputStream) throws Exception {
+    checkNoOpenStream();
     ftpClient.retrieveFile(remoteFileName, outputStream);
   }
+
+  /**
+   * Open the data connection for the specified remote file and wrap it in a FileData.
+   * @param remoteFileName The name of the remote file to download.
+   * @param size The size of the remote file, or -1 if it is not known.
+   * @return A FileData streaming the remote file.
+   * @throws Exception If the download could not be started.
+   */
+  private FileData downloadStream(String remoteFileName, long size) throws Exception {
+    checkNoOpenStream();
+    InputStream dataIn;
+    try {
+      dataIn = ftpClient.retrieveFileStream(remoteFileName);
+    } catch (Exception e) {
+      throw new Exception("Failed to start streaming download", e);
+    }
+    if (dataIn == null) {
+      throw new Exception("Failed to start streaming download: " + ftpClient.getReplyString());
+    }
+    openStream = new DataConnectionInputStream(dataIn);
+    return new FTPStreamFileData(remoteFileName, size, openStream);
+  }
+
+  /**
+   * Check that the session isn't still busy with a streaming download.
+   * @throws Exception If a streaming download has not yet been closed.
+   */
+  private void checkNoOpenStream() throws Exception {
+    if (openStream != null) {
+      throw new Exception("The input stream of a streaming download must be closed before the client is used again");
+    }
+  }
+
+  /**
+   * The data connection of a streaming download. Closing it completes the transfer so that the
+   * session can be used again.
+   */
+  private final class DataConnectionInputStream extends FilterInputStream {
+
+    /** True once the stream has been closed. */
+    private boolean closed;
+
+    private DataConnectionInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        super.close();
+        if (!ftpClient.completePendingCommand()) {
+          logger.debug("Streaming download did not complete cleanly: " + ftpClient.getReplyString());
+        }
+      } finally {
+        openStream = null;
+      }
+    }
+  }
 }
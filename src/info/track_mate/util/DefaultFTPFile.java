@@ -25,10 +25,20 @@ public class DefaultFTPFile implements FTPFile {
   private String name;
   /** The file size in bytes. */
   private long size;
+  /** The modification time in milliseconds since the epoch, or 0 if not known. */
+  private long lastModified;
+  /** True if the file is a directory. */
+  private boolean directory;
 
   public DefaultFTPFile(String name, long size) {
+    this(name, size, 0, false);
+  }
+
+  public DefaultFTPFile(String name, long size, long lastModified, boolean directory) {
     this.name = name;
     this.size = size;
+    this.lastModified = lastModified;
+    this.directory = directory;
   }
 
   @Override
@@ -41,5 +51,21 @@ public class DefaultFTPFile implements FTPFile {
     return size;
   }
 
+  /**
+   * Get the modification time of the remote file, as reported by the directory listing.
+   * @return the {@link #lastModified} time in milliseconds since the epoch, or 0 if it is not known.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * Check whether the remote file is a directory.
+   * @return the {@link #directory} flag.
+   */
+  public boolean isDirectory() {
+    return directory;
+  }
+
 
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A {@link StreamStage} that passes its input through unchanged while computing a message
+ * digest of it, so that a payload can be hashed on its way to storage without a second read.
+ * <p>
+ * The digest is kept by the stage, so a DigestStage can only be used for one run of a pipeline.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class DigestStage implements StreamStage {
+
+  /** The digest being computed. */
+  private final MessageDigest messageDigest;
+  /** The finished digest, or null if it has not been asked for yet. */
+  private byte[] digest;
+  /** True once the stage has been opened. */
+  private boolean opened;
+
+  /**
+   * Creates a new DigestStage.
+   * @param algorithm The digest algorithm, such as "MD5" or "SHA-256".
+   * @throws NoSuchAlgorithmException If the algorithm doesn't exist or is unavailable.
+   */
+  public DigestStage(String algorithm) throws NoSuchAlgorithmException {
+    this.messageDigest = MessageDigest.getInstance(algorithm);
+  }
+
+  /** {@inheritDoc} */
+  public synchronized InputStream open(InputStream in) throws IOException {
+    if (opened) {
+      throw new IllegalStateException("A DigestStage can only be used once");
+    }
+    opened = true;
+    return new DigestInputStream(in, messageDigest);
+  }
+
+  /**
+   * Get the digest of everything that has passed through the stage. This should be called once
+   * the pipeline has been read to the end; no more bytes are added to the digest afterwards.
+   * @return The digest.
+   */
+  public synchronized byte[] getDigest() {
+    if (digest == null) {
+      digest = messageDigest.digest();
+    }
+    return digest.clone();
+  }
+
+  /**
+   * Get the digest as a String, in the same form as
+   * {@link EncryptionUtils#encryptString(String, String, boolean)}.
+   * @param encodeAsBase64 If true then encode the digest as Base64.
+   * @return The digest String.
+   */
+  public String getDigestString(boolean encodeAsBase64) {
+    byte[] digestBytes = getDigest();
+    if (encodeAsBase64) {
+      digestBytes = Base64.encodeBase64(digestBytes);
+    }
+    return new String(digestBytes);
+  }
+}
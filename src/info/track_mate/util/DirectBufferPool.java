@@ -0,0 +1,105 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of equally sized direct ByteBuffers. Direct buffers are expensive to allocate and are
+ * only freed when the garbage collector gets round to them, so copies that need one borrow it from
+ * here and hand it back when they are done.
+ * <p>
+ * The pool is thread safe. It never blocks: if no buffer is free a new one is allocated, and
+ * buffers returned while the pool is already full are left for the garbage collector.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class DirectBufferPool {
+
+  /** The buffer size of the default pool in bytes (value = 64KB). */
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  /** The number of buffers the default pool keeps. */
+  public static final int DEFAULT_MAX_POOLED = 16;
+
+  /** The shared pool used by the copy helpers. */
+  private static final DirectBufferPool defaultPool = new DirectBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+  /** The size of each buffer in bytes. */
+  private final int bufferSize;
+  /** The free buffers. */
+  private final FreeList<ByteBuffer> free;
+
+  /**
+   * Creates a new DirectBufferPool.
+   * @param bufferSize The size of each buffer in bytes.
+   * @param maxPooled The maximum number of free buffers to keep.
+   */
+  public DirectBufferPool(int bufferSize, int maxPooled) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+    }
+    this.bufferSize = bufferSize;
+    this.free = new FreeList<ByteBuffer>(maxPooled);
+  }
+
+  /**
+   * Get the shared pool of {@link #DEFAULT_BUFFER_SIZE} buffers.
+   * @return The default pool.
+   */
+  public static DirectBufferPool getDefault() {
+    return defaultPool;
+  }
+
+  /**
+   * Borrow a buffer from the pool.
+   * @return A cleared buffer of {@link #getBufferSize()} bytes.
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Hand a buffer back to the pool. The caller must not use the buffer afterwards.
+   * @param buffer A buffer borrowed from this pool.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+      return;
+    }
+    free.offer(buffer);
+  }
+
+  /**
+   * Get the size of the buffers in the pool.
+   * @return the {@link #bufferSize}.
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Get the number of free buffers currently held by the pool.
+   * @return The number of free buffers.
+   */
+  public int getFreeCount() {
+    return free.size();
+  }
+}
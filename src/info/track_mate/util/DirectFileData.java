@@ -0,0 +1,454 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An implementation of the WritableFileData interface that holds its contents outside the Java
+ * heap, in direct buffers borrowed from a {@link DirectBufferPool}. Large payloads held this way
+ * don't fill the old generation or lengthen garbage collections, and the memory is reused from one
+ * payload to the next rather than allocated afresh.
+ * <p>
+ * The buffers are returned to the pool by {@link #close()}, after which the data can't be read.
+ * A DirectFileData that is never closed is reclaimed by the garbage collector like any other
+ * direct buffer, but its memory is lost to the pool. With leak detection on (see
+ * {@link #setLeakDetection(boolean)}), such instances are reported along with where their data was
+ * set, and their buffers recovered for the pool.
+ * <p>
+ * Instances are not thread safe.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class DirectFileData implements WritableFileData, Closeable {
+
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(DirectFileData.class);
+
+  /** The system property that turns leak detection on at startup. */
+  public static final String LEAK_DETECTION_PROPERTY = "info.track_mate.util.DirectFileData.leakDetection";
+  /** The size of the slabs in the default pool in bytes (value = 1MB). */
+  public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+  /** The number of free slabs the default pool keeps (value = 64, so 64MB). */
+  public static final int DEFAULT_MAX_POOLED_SLABS = 64;
+
+  /** The pool shared by instances that aren't given one. */
+  private static final DirectBufferPool defaultPool = new DirectBufferPool(DEFAULT_SLAB_SIZE, DEFAULT_MAX_POOLED_SLABS);
+
+  /** True if instances should be tracked for leaks. */
+  private static volatile boolean leakDetection = Boolean.getBoolean(LEAK_DETECTION_PROPERTY);
+  /** The queue the garbage collector adds leaked instances to. */
+  private static final ReferenceQueue<DirectFileData> leakQueue = new ReferenceQueue<DirectFileData>();
+  /** The leak trackers of live instances, which must be kept reachable to be enqueued. */
+  private static final Set<LeakTracker> leakTrackers = Collections.synchronizedSet(
+          Collections.newSetFromMap(new IdentityHashMap<LeakTracker, Boolean>()));
+
+  /** The name of the file. */
+  private String name;
+  /** The pool the slabs are borrowed from. */
+  private final DirectBufferPool pool;
+  /** The slabs holding the current contents. */
+  private Slabs slabs;
+  /** True once {@link #close()} has been called. */
+  private boolean closed;
+
+  /**
+   * Creates a new, empty DirectFileData using the default pool of {@link #DEFAULT_SLAB_SIZE} slabs.
+   * @param name The name of the file.
+   */
+  public DirectFileData(String name) {
+    this(name, defaultPool);
+  }
+
+  /**
+   * Creates a new, empty DirectFileData.
+   * @param name The name of the file.
+   * @param pool The pool to borrow slabs from.
+   */
+  public DirectFileData(String name, DirectBufferPool pool) {
+    this.name = name;
+    this.pool = pool;
+    this.slabs = new Slabs(pool);
+  }
+
+  /**
+   * Turn leak detection on or off. While it is on, each instance records where its data was set,
+   * which is costly, so it is meant for debugging. It can also be turned on at startup by setting
+   * the {@link #LEAK_DETECTION_PROPERTY} system property to true.
+   * @param value true to turn leak detection on.
+   */
+  public static void setLeakDetection(boolean value) {
+    leakDetection = value;
+  }
+
+  /**
+   * Report, and recover the slabs of, any instances the garbage collector has found were never
+   * closed. This happens anyway whenever data is set; calling it directly is only needed to check
+   * for leaks at a particular moment, for example at the end of a test.
+   * @return The number of leaks found.
+   */
+  public static int checkForLeaks() {
+    int leaks = 0;
+    Reference<? extends DirectFileData> reference;
+    while ((reference = leakQueue.poll()) != null) {
+      LeakTracker tracker = (LeakTracker) reference;
+      leakTrackers.remove(tracker);
+      if (!tracker.slabs.isReleased()) {
+        leaks++;
+        logger.error("DirectFileData '" + tracker.name + "' of " + tracker.slabs.size
+                + " bytes was not closed before it was garbage collected; its data was set at:", tracker.allocation);
+        tracker.slabs.release();
+      }
+    }
+    return leaks;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Set the name of the file.
+   * @param value
+   */
+  public void setName(String value) {
+    this.name = value;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getFileSize() {
+    return slabs.size;
+  }
+
+  /**
+   * Get a copy of the contents on the heap.
+   * @return The contents.
+   * @throws Exception If the contents are too large for a byte[], or have been released.
+   */
+  @Override
+  public byte[] getData() throws Exception {
+    checkOpen();
+    if (slabs.size > Integer.MAX_VALUE) {
+      throw new Exception("Data is too large to load onto the heap: " + name + " (" + slabs.size + " bytes)");
+    }
+    byte[] data = new byte[(int) slabs.size];
+    int position = 0;
+    for (ByteBuffer slab : slabs.buffers) {
+      ByteBuffer view = slab.duplicate();
+      view.flip();
+      int length = view.remaining();
+      view.get(data, position, length);
+      position += length;
+    }
+    return data;
+  }
+
+  /**
+   * Get a stream that reads the contents straight from off-heap memory. The stream fails if the
+   * contents are replaced or released while it is being read.
+   * @return A stream over the contents.
+   * @throws Exception If the contents have been released.
+   */
+  @Override
+  public InputStream getInputStream() throws Exception {
+    checkOpen();
+    return new SlabInputStream(this, slabs);
+  }
+
+  /**
+   * Replace the contents with the specified bytes.
+   * @param data The new contents.
+   * @throws Exception If the contents have been released.
+   */
+  @Override
+  public void setData(byte[] data) throws Exception {
+    checkOpen();
+    Slabs replacement = newSlabs();
+    try {
+      int position = 0;
+      while (position < data.length) {
+        ByteBuffer slab = replacement.add();
+        int length = Math.min(slab.remaining(), data.length - position);
+        slab.put(data, position, length);
+        position += length;
+      }
+      replacement.size = data.length;
+    } catch (RuntimeException e) {
+      replacement.release();
+      throw e;
+    }
+    replaceSlabs(replacement);
+  }
+
+  /**
+   * Replace the contents with everything read from a stream, without holding the contents on the
+   * heap. The stream is read to the end and closed.
+   * @param dataIn The stream to read the new contents from.
+   * @return The number of bytes read.
+   * @throws Exception If the stream could not be read, or the contents have been released.
+   */
+  public long setData(InputStream dataIn) throws Exception {
+    try {
+      checkOpen();
+      Slabs replacement = newSlabs();
+      try {
+        byte[] buffer = new byte[8192];
+        ByteBuffer slab = null;
+        int length;
+        while ((length = dataIn.read(buffer)) != -1) {
+          int position = 0;
+          while (position < length) {
+            if (slab == null || !slab.hasRemaining()) {
+              slab = replacement.add();
+            }
+            int chunk = Math.min(slab.remaining(), length - position);
+            slab.put(buffer, position, chunk);
+            position += chunk;
+          }
+          replacement.size += length;
+        }
+      } catch (Exception e) {
+        replacement.release();
+        throw e;
+      }
+      replaceSlabs(replacement);
+      return replacement.size;
+    } finally {
+      dataIn.close();
+    }
+  }
+
+  /**
+   * Return the slabs holding the contents to the pool. The contents can't be read or replaced
+   * afterwards. Closing more than once has no further effect.
+   */
+  public void close() {
+    if (!closed) {
+      closed = true;
+      releaseSlabs(slabs);
+    }
+  }
+
+  /**
+   * Get the pool shared by instances that aren't given one.
+   * @return The default pool.
+   */
+  public static DirectBufferPool getDefaultPool() {
+    return defaultPool;
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Check that the contents haven't been released.
+   * @throws IllegalStateException If {@link #close()} has been called.
+   */
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("DirectFileData has been closed: " + name);
+    }
+  }
+
+  /**
+   * Create an empty set of slabs for new contents, tracking it for leaks if detection is on.
+   * @return The new slabs.
+   */
+  private Slabs newSlabs() {
+    checkForLeaks();
+    Slabs replacement = new Slabs(pool);
+    if (leakDetection) {
+      replacement.tracker = new LeakTracker(this, replacement);
+      leakTrackers.add(replacement.tracker);
+    }
+    return replacement;
+  }
+
+  /**
+   * Make new slabs the current contents and release the old ones.
+   * @param replacement The new slabs.
+   */
+  private void replaceSlabs(Slabs replacement) {
+    Slabs previous = slabs;
+    slabs = replacement;
+    releaseSlabs(previous);
+  }
+
+  /**
+   * Release slabs to the pool and stop tracking them for leaks.
+   * @param released The slabs.
+   */
+  private static void releaseSlabs(Slabs released) {
+    released.release();
+    if (released.tracker != null) {
+      leakTrackers.remove(released.tracker);
+      released.tracker.clear();
+      released.tracker = null;
+    }
+  }
+
+  /**
+   * The slabs holding one version of the contents. This is kept apart from the DirectFileData so
+   * that a leak tracker can recover the slabs after the DirectFileData itself has been collected.
+   */
+  private static final class Slabs {
+
+    /** The pool the slabs are borrowed from. */
+    private final DirectBufferPool pool;
+    /** The slabs, each written from position 0 to its position. */
+    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    /** The total number of bytes held. */
+    private long size;
+    /** True once the slabs have gone back to the pool. Volatile as leaks are handled on other threads. */
+    private volatile boolean released;
+    /** The tracker watching these slabs for leaks, or null. */
+    private LeakTracker tracker;
+
+    private Slabs(DirectBufferPool pool) {
+      this.pool = pool;
+    }
+
+    /**
+     * Borrow another slab.
+     * @return The new, empty slab.
+     */
+    private ByteBuffer add() {
+      ByteBuffer slab = pool.acquire();
+      buffers.add(slab);
+      return slab;
+    }
+
+    /**
+     * Give every slab back to the pool.
+     */
+    private synchronized void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      for (ByteBuffer slab : buffers) {
+        pool.release(slab);
+      }
+      buffers.clear();
+    }
+
+    private boolean isReleased() {
+      return released;
+    }
+  }
+
+  /**
+   * Watches for a DirectFileData being garbage collected while still holding slabs.
+   */
+  private static final class LeakTracker extends PhantomReference<DirectFileData> {
+
+    /** The slabs to recover if the DirectFileData leaks. */
+    private final Slabs slabs;
+    /** The name of the DirectFileData, for the report. */
+    private final String name;
+    /** Where the slabs were filled, for the report. */
+    private final Throwable allocation;
+
+    private LeakTracker(DirectFileData owner, Slabs slabs) {
+      super(owner, leakQueue);
+      this.slabs = slabs;
+      this.name = owner.name;
+      this.allocation = new Throwable("DirectFileData allocation");
+    }
+  }
+
+  /**
+   * A stream over the slabs of one version of the contents. It keeps the DirectFileData reachable,
+   * so the leak tracker can't recover the slabs while the stream may still read them; they are only
+   * released by the owner itself, on the thread using it.
+   */
+  private static final class SlabInputStream extends InputStream {
+
+    /** The DirectFileData the slabs belong to, held only to keep it reachable. */
+    private final DirectFileData owner;
+    /** The slabs being read. */
+    private final Slabs slabs;
+    /** The index of the slab being read. */
+    private int index = -1;
+    /** The view of the slab being read, or null before the first read. */
+    private ByteBuffer current;
+
+    private SlabInputStream(DirectFileData owner, Slabs slabs) {
+      this.owner = owner;
+      this.slabs = slabs;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!advance()) {
+        return -1;
+      }
+      return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!advance()) {
+        return -1;
+      }
+      int length = Math.min(len, current.remaining());
+      current.get(b, off, length);
+      return length;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * Move on to the next slab if the current one has been read.
+     * @return true if there are bytes left to read, else false.
+     * @throws IOException If the slabs have been released.
+     */
+    private boolean advance() throws IOException {
+      if (slabs.isReleased()) {
+        throw new IOException("DirectFileData contents were released while being read");
+      }
+      while (current == null || !current.hasRemaining()) {
+        index++;
+        if (index >= slabs.buffers.size()) {
+          current = null;
+          return false;
+        }
+        current = slabs.buffers.get(index).duplicate();
+        current.flip();
+      }
+      return true;
+    }
+  }
+}
@@ -17,16 +17,29 @@ package info.track_mate.util;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * An implementation of the FileData interface that holds the data on disk rather than in memory. This allows for larger files to be passed around locally
  * more easily.
+ * <p>
+ * The data can be {@link #setCompression(Compression, int) compressed} at rest. Compressed files
+ * start with a header recording the codec and the original size, and are decompressed as they are
+ * read, so callers see the original data and size. Files are only checked for a header when a
+ * codec is set, as it is for every file of a compressing {@link FileStore}; otherwise they are
+ * read as they are, and their size is simply their length on disk.
  *
  * @author Gareth Smith <gareth@track-mate.info>
  */
@@ -35,11 +48,15 @@ public class DiskFileData  implements WritableFileData, Serializable {
   /** Logger instance for this class. */
   private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(DiskFileData.class);
 
-  /** The name of the properties file containing the config values for the file store. */
-  private static final String FILE_STORE_CONFIG_FILENAME = "fileStoreConfig.properties";
+  /** The extension of the temporary files written by atomic and durable writes. */
+  private static final String TEMP_FILE_EXTENSION = ".tmp";
 
-  /** The key to extract the path to the file store on disk. */
-  private static final String CONFIG_KEY_DIRECTORY_PATH = "fileStore.directory.path";
+  /** The magic number at the start of the header of a compressed file: "TMZ" and a version. */
+  private static final int HEADER_MAGIC = 0x544d5a01;
+  /** The offset of the original data size in the header of a compressed file. */
+  private static final int HEADER_SIZE_OFFSET = 5;
+  /** The length of the header of a compressed file: the magic number, codec id and original size. */
+  private static final int HEADER_LENGTH = 13;
 
   /** The path to the data store directory. */
   private String fileStoreDirectoryPath;
@@ -48,16 +65,46 @@ public class DiskFileData  implements WritableFileData, Serializable {
   private String name;
   /** The File object representing the file on disk. */
   private File dataFile;
+  /** The way new data is written over the file. */
+  private WriteMode writeMode = WriteMode.IN_PLACE;
+  /** The syncer shared by durable writes, or null to sync each write on its own. */
+  private transient GroupCommitSyncer syncer;
+  /** The codec new data is compressed with. */
+  private Compression compression = Compression.NONE;
+  /** The level new data is compressed at. */
+  private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
   /**
-   * Creates a new DiskFileData.
+   * Creates a new DiskFileData for a file in the {@link FileStore#getDefault() default file store}.
    * @param name The filename.
+   * @throws Exception If the file store configuration could not be read.
    */
   public DiskFileData(String name) throws Exception {
+    this(name, FileStore.getDefault());
+  }
+
+  /**
+   * Creates a new DiskFileData for a file in a store, using the store's write settings.
+   * @param name The filename.
+   * @param fileStore The store holding the file.
+   */
+  DiskFileData(String name, FileStore fileStore) {
+    this(name, fileStore.getFile(name));
+    this.writeMode = fileStore.getWriteMode();
+    this.syncer = fileStore.getSyncer();
+    this.compression = fileStore.getCompression();
+    this.compressionLevel = fileStore.getCompressionLevel();
+  }
+
+  /**
+   * Creates a new DiskFileData.
+   * @param name The filename.
+   * @param file The File object representing the file on disk.
+   */
+  DiskFileData(String name, File file) {
     this.name = name;
-    Config fileStoreConfig = new Config(FILE_STORE_CONFIG_FILENAME);
-    fileStoreDirectoryPath = fileStoreConfig.getProperty(CONFIG_KEY_DIRECTORY_PATH);
-    dataFile = new File(fileStoreDirectoryPath, name);
+    this.dataFile = file;
+    this.fileStoreDirectoryPath = file.getParent();
   }
 
   public DiskFileData(File file) throws Exception {
@@ -71,11 +118,30 @@ public class DiskFileData  implements WritableFileData, Serializable {
     if (!dataFile.canRead()) {
       throw new Exception("Cannot read from file: " + fileStoreDirectoryPath + name);
     }
-    BufferedInputStream fileIn = new BufferedInputStream(new FileInputStream(dataFile));
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    MiscHelper.copyStream(fileIn, outputStream);
-    fileIn.close();
-    return outputStream.toByteArray();
+    InputStream fileIn = new FileInputStream(dataFile);
+    try {
+      Header header = null;
+      if (compression != Compression.NONE) {
+        fileIn = new BufferedInputStream(fileIn);
+        header = readHeader(fileIn);
+      }
+      InputStream dataIn = fileIn;
+      long size = dataFile.length();
+      if (header != null) {
+        dataIn = header.compression.decompress(fileIn);
+        size = header.originalSize;
+      }
+      ChunkedBuffer buffer = new ChunkedBuffer(size);
+      try {
+        buffer.readFrom(dataIn);
+        return buffer.toByteArray();
+      } finally {
+        buffer.release();
+        dataIn.close();
+      }
+    } finally {
+      fileIn.close();
+    }
   }
 
   @Override
@@ -83,24 +149,158 @@ public class DiskFileData  implements WritableFileData, Serializable {
     return name;
   }
 
+  /**
+   * Get the size of the data. For a compressed file this is the original size recorded in its
+   * header, rather than the size on disk.
+   * @return The size of the data in bytes, or 0 if the file doesn't exist.
+   */
   @Override
   public long getFileSize() {
-    return dataFile.length();
+    long length = dataFile.length();
+    if (compression == Compression.NONE || length < HEADER_LENGTH) {
+      return length;
+    }
+    try {
+      FileInputStream fileIn = new FileInputStream(dataFile);
+      try {
+        Header header = readHeader(new BufferedInputStream(fileIn, HEADER_LENGTH));
+        return header != null ? header.originalSize : length;
+      } finally {
+        fileIn.close();
+      }
+    } catch (IOException e) {
+      logger.debug("Failed to read header of file: " + dataFile, e);
+      return length;
+    }
+  }
+
+  /**
+   * Get the time the file was last modified.
+   * @return The modification time in milliseconds since the epoch, or 0 if the file doesn't exist.
+   */
+  public long getLastModified() {
+    return dataFile.lastModified();
+  }
+
+  /**
+   * Get the file on disk.
+   * @return the {@link #dataFile}.
+   */
+  public File getFile() {
+    return dataFile;
   }
 
   @Override
   public void setData(final byte[] data) throws Exception {
-    if (!dataFile.exists()) {
-      logger.debug("Data file does not yet exist: " + fileStoreDirectoryPath + name);
-      dataFile.createNewFile();
+    File target = prepareWrite();
+    FileOutputStream fileOut = new FileOutputStream(target);
+    try {
+      if (compression == Compression.NONE) {
+        fileOut.write(data);
+      } else {
+        writeHeader(fileOut, data.length);
+        DeflaterOutputStream compressedOut = compression.compress(fileOut, compressionLevel);
+        compressedOut.write(data);
+        compressedOut.finish();
+      }
+      finishWrite(fileOut, target);
+    } catch (Exception e) {
+      abortWrite(fileOut, target);
+      throw e;
     }
-    if (!dataFile.canWrite()) {
-      throw new Exception("Cannot write to file: " + fileStoreDirectoryPath + name);
+  }
+
+  /**
+   * Set the data for the file from a stream, writing it to disk as it is read rather than
+   * holding it in memory. The stream is read to the end and closed.
+   * @param dataIn The stream to read the file data from.
+   * @return The number of bytes written.
+   * @throws Exception If the data could not be written to the file.
+   */
+  public long setData(InputStream dataIn) throws Exception {
+    try {
+      File target = prepareWrite();
+      FileOutputStream fileOut = new FileOutputStream(target);
+      try {
+        long length;
+        if (compression == Compression.NONE) {
+          length = MiscHelper.copy(dataIn, new BufferedOutputStream(fileOut));
+        } else {
+          // The size isn't known until the data has been read, so it is filled in afterwards.
+          writeHeader(fileOut, -1);
+          DeflaterOutputStream compressedOut = compression.compress(fileOut, compressionLevel);
+          length = MiscHelper.copy(dataIn, compressedOut);
+          compressedOut.finish();
+          ByteBuffer size = ByteBuffer.allocate(8);
+          size.putLong(0, length);
+          fileOut.getChannel().write(size, HEADER_SIZE_OFFSET);
+        }
+        finishWrite(fileOut, target);
+        return length;
+      } catch (Exception e) {
+        abortWrite(fileOut, target);
+        throw e;
+      }
+    } finally {
+      dataIn.close();
     }
-    BufferedOutputStream fileOut = new BufferedOutputStream(new FileOutputStream(dataFile));
-    fileOut.write(data);
-    fileOut.flush();
-    fileOut.close();
+  }
+
+  /**
+   * Get the way new data is written over the file.
+   * @return the {@link #writeMode}.
+   */
+  public WriteMode getWriteMode() {
+    return writeMode;
+  }
+
+  /**
+   * Set the {@link #writeMode}.
+   * @param value
+   */
+  public void setWriteMode(WriteMode value) {
+    this.writeMode = value;
+  }
+
+  /**
+   * Get the codec new data is compressed with.
+   * @return the {@link #compression}.
+   */
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Get the level new data is compressed at.
+   * @return the {@link #compressionLevel}.
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * Set the {@link #compression} codec and {@link #compressionLevel} used by later writes. While
+   * a codec is set, data already on disk is read whichever way it was written; with
+   * {@link Compression#NONE} the file is always read as it is, so compressed files must be read
+   * with a codec set.
+   * @param codec The codec, or {@link Compression#NONE} to store the data as it is.
+   * @param level The compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+   */
+  public void setCompression(Compression codec, int level) {
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    this.compression = codec;
+    this.compressionLevel = level;
+  }
+
+  /**
+   * Set the {@link #syncer} used to sync {@link WriteMode#DURABLE} writes. If none is set each
+   * write syncs on its own.
+   * @param value
+   */
+  public void setSyncer(GroupCommitSyncer value) {
+    this.syncer = value;
   }
 
   @Override
@@ -108,8 +308,239 @@ public class DiskFileData  implements WritableFileData, Serializable {
     if (!dataFile.canRead()) {
       throw new Exception("Cannot read from file: " + fileStoreDirectoryPath + name);
     }
-    BufferedInputStream fileIn = new BufferedInputStream(new FileInputStream(dataFile));
-    return fileIn;
+    InputStream fileIn = new FileInputStream(dataFile);
+    if (compression == Compression.NONE) {
+      return fileIn;
+    }
+    try {
+      fileIn = new BufferedInputStream(fileIn);
+      Header header = readHeader(fileIn);
+      return header != null ? header.compression.decompress(fileIn) : fileIn;
+    } catch (IOException e) {
+      fileIn.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Copy the file to another location on disk. The data is transferred by the operating system
+   * without passing through the JVM, so a compressed file is copied as it is.
+   * @param target The file to copy to. It is replaced if it already exists.
+   * @return A DiskFileData for the copy.
+   * @throws Exception If the file could not be copied.
+   */
+  public DiskFileData copyTo(File target) throws Exception {
+    if (!dataFile.canRead()) {
+      throw new Exception("Cannot read from file: " + fileStoreDirectoryPath + name);
+    }
+    FileInputStream fileIn = new FileInputStream(dataFile);
+    try {
+      FileOutputStream fileOut = new FileOutputStream(target);
+      try {
+        MiscHelper.copy(fileIn.getChannel(), fileOut.getChannel());
+      } finally {
+        fileOut.close();
+      }
+    } finally {
+      fileIn.close();
+    }
+    return new DiskFileData(target);
+  }
+
+  /**
+   * Copy the data to a channel, such as a socket. Where the channel allows it, and the file isn't
+   * compressed, the data is transferred by the operating system without passing through the JVM.
+   * The channel is not closed.
+   * @param target The channel to write the file to.
+   * @return The number of bytes written.
+   * @throws Exception If the file could not be copied.
+   */
+  public long copyTo(WritableByteChannel target) throws Exception {
+    if (!dataFile.canRead()) {
+      throw new Exception("Cannot read from file: " + fileStoreDirectoryPath + name);
+    }
+    FileInputStream fileIn = new FileInputStream(dataFile);
+    try {
+      if (compression != Compression.NONE && dataFile.length() >= HEADER_LENGTH) {
+        BufferedInputStream bufferedIn = new BufferedInputStream(fileIn);
+        Header header = readHeader(bufferedIn);
+        if (header != null) {
+          return MiscHelper.copy(header.compression.decompress(bufferedIn), Channels.newOutputStream(target));
+        }
+      }
+      FileChannel channel = fileIn.getChannel();
+      return MiscHelper.copy(channel.position(0), target);
+    } finally {
+      fileIn.close();
+    }
+  }
+
+  /**
+   * Move the file to another location on disk. This is a rename where the file system allows it.
+   * Otherwise the file is copied to a temporary file beside the target, which is renamed over the
+   * target before the original is deleted, so the target is never left missing or half written.
+   * Afterwards this DiskFileData refers to the new location.
+   * @param target The file to move to. It is replaced if it already exists.
+   * @throws Exception If the file could not be moved.
+   */
+  public void moveTo(File target) throws Exception {
+    if (!dataFile.renameTo(target)) {
+      File tempFile = File.createTempFile("." + target.getName() + ".", TEMP_FILE_EXTENSION, target.getParentFile());
+      try {
+        copyTo(tempFile);
+        // Where a rename can't replace an existing file the target has to go first, but the
+        // original is still in place should the rename then fail.
+        if (!tempFile.renameTo(target) && !(target.delete() && tempFile.renameTo(target))) {
+          throw new Exception("Cannot replace file: " + target);
+        }
+      } catch (Exception e) {
+        tempFile.delete();
+        throw e;
+      }
+      if (!dataFile.delete()) {
+        logger.warn("Failed to delete file after copying it: " + dataFile);
+      }
+    }
+    dataFile = target;
+    name = target.getName();
+    fileStoreDirectoryPath = target.getParent();
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Get ready to write new data for the file according to the {@link #writeMode}.
+   * @return The file to write the new data to: the data file itself when writing in place, else a
+   * temporary file beside it.
+   * @throws Exception If the file could not be written to.
+   */
+  private File prepareWrite() throws Exception {
+    if (writeMode == WriteMode.IN_PLACE) {
+      if (!dataFile.exists()) {
+        logger.debug("Data file does not yet exist: " + fileStoreDirectoryPath + name);
+        createParentDirectory();
+        dataFile.createNewFile();
+      }
+      if (!dataFile.canWrite()) {
+        throw new Exception("Cannot write to file: " + fileStoreDirectoryPath + name);
+      }
+      return dataFile;
+    }
+    if (dataFile.exists() && !dataFile.canWrite()) {
+      throw new Exception("Cannot write to file: " + fileStoreDirectoryPath + name);
+    }
+    createParentDirectory();
+    return File.createTempFile("." + dataFile.getName() + ".", TEMP_FILE_EXTENSION, dataFile.getParentFile());
+  }
+
+  /**
+   * Complete a write once all of the new data has been written: sync it if the write is durable,
+   * close the file and move a temporary file over the data file.
+   * @param fileOut The stream the data was written to, which may have buffered streams over it.
+   * @param target The file returned by {@link #prepareWrite()}.
+   * @throws Exception If the write could not be completed.
+   */
+  private void finishWrite(FileOutputStream fileOut, File target) throws Exception {
+    if (writeMode == WriteMode.DURABLE) {
+      if (syncer != null) {
+        syncer.sync(fileOut.getChannel());
+      } else {
+        fileOut.getChannel().force(true);
+      }
+    }
+    fileOut.close();
+    if (target != dataFile && !target.renameTo(dataFile)) {
+      // Some platforms won't rename over an existing file. Readers may briefly see no file here.
+      if (!dataFile.delete() || !target.renameTo(dataFile)) {
+        throw new Exception("Cannot replace file: " + fileStoreDirectoryPath + name);
+      }
+    }
+  }
+
+  /**
+   * Clean up after a failed write, removing any temporary file.
+   * @param fileOut The stream the data was being written to.
+   * @param target The file returned by {@link #prepareWrite()}.
+   */
+  private void abortWrite(FileOutputStream fileOut, File target) {
+    try {
+      fileOut.close();
+    } catch (IOException e) {
+      logger.debug("Failed to close file after failed write: " + target, e);
+    }
+    if (target != dataFile && target.exists() && !target.delete()) {
+      logger.warn("Failed to delete temporary file: " + target);
+    }
+  }
+
+  /**
+   * Write the header of a compressed file.
+   * @param out The stream to write the header to.
+   * @param originalSize The size of the data before compression, or -1 if it will be filled in
+   * once the data has been written.
+   * @throws IOException If the header could not be written.
+   */
+  private void writeHeader(OutputStream out, long originalSize) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.putInt(HEADER_MAGIC);
+    header.put((byte) compression.getId());
+    header.putLong(originalSize);
+    out.write(header.array());
+  }
+
+  /**
+   * Read the header of a compressed file. If the file isn't compressed the stream is reset to the
+   * start of the data.
+   * @param in The stream of the file's contents, which must support mark and reset.
+   * @return The header, or null if the file isn't compressed.
+   * @throws IOException If the file could not be read.
+   */
+  private static Header readHeader(InputStream in) throws IOException {
+    in.mark(HEADER_LENGTH);
+    byte[] bytes = new byte[HEADER_LENGTH];
+    int length = 0;
+    int count;
+    while (length < HEADER_LENGTH && (count = in.read(bytes, length, HEADER_LENGTH - length)) != -1) {
+      length += count;
+    }
+    if (length == HEADER_LENGTH) {
+      ByteBuffer header = ByteBuffer.wrap(bytes);
+      Compression compression = header.getInt() == HEADER_MAGIC ? Compression.forId(header.get()) : null;
+      long originalSize = header.getLong();
+      if (compression != null && compression != Compression.NONE && originalSize >= 0) {
+        return new Header(compression, originalSize);
+      }
+    }
+    in.reset();
+    return null;
+  }
+
+  /**
+   * Create the directory the file belongs in if it doesn't exist yet, as it may be a shard
+   * directory that no other file has been written to.
+   * @throws Exception If the directory could not be created.
+   */
+  private void createParentDirectory() throws Exception {
+    File parent = dataFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new Exception("Cannot create directory: " + parent);
+    }
+  }
+
+  /**
+   * The header of a compressed file.
+   */
+  private static class Header {
+
+    /** The codec the data is compressed with. */
+    final Compression compression;
+    /** The size of the data before compression. */
+    final long originalSize;
+
+    Header(Compression compression, long originalSize) {
+      this.compression = compression;
+      this.originalSize = originalSize;
+    }
   }
 
 }
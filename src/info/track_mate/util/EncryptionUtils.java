@@ -31,6 +31,12 @@ public final class EncryptionUtils {
   /** The default algorithm used to encrypt Strings. */
   public static final String DEFAULT_ENCRYPTION_ALGORITHM = "MD5";
 
+  /** The SHA-256 algorithm, used to address content by its digest. */
+  public static final String SHA256_ALGORITHM = "SHA-256";
+
+  /** The digits used by {@link #toHexString(byte[])}. */
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
   /**
    * Encrypt the specified String. This method is equivalent to calling encryptString(toEncrypt, "MD5", true);
    * @param toEncrypt The String to encrypt.
@@ -66,4 +72,40 @@ public final class EncryptionUtils {
     return encryptedString;
   }
 
+  /**
+   * Encode the specified bytes, such as the output of a digest, as a lower case hex String.
+   * @param bytes The bytes to encode.
+   * @return The hex String, two characters per byte.
+   */
+  public static String toHexString(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * Get the SHA-256 digest of the specified bytes as a hex String.
+   * @param data The bytes to digest.
+   * @return The digest as a lower case hex String.
+   */
+  public static String sha256Hex(byte[] data) {
+    return toHexString(newSha256Digest().digest(data));
+  }
+
+  /**
+   * Create a new SHA-256 MessageDigest. Every Java platform is required to support SHA-256, so
+   * unlike {@link MessageDigest#getInstance(String)} this does not throw a checked exception.
+   * @return The digest.
+   */
+  public static MessageDigest newSha256Digest() {
+    try {
+      return MessageDigest.getInstance(SHA256_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
 }
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a batch of remote files from a single directory across a bounded number of
+ * concurrent sessions borrowed from an {@link FTPSessionPool}. Each worker keeps its session for
+ * as long as there are files left to download, so a batch costs at most one login per worker.
+ * <p>
+ * Files are transferred in binary mode, so the number of bytes written matches the size reported
+ * by the server.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPBulkDownloader {
+
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(FTPBulkDownloader.class);
+
+  /** The pool that sessions are borrowed from. */
+  private final FTPSessionPool sessionPool;
+  /** The host to download from. */
+  private final String hostname;
+  /** The user to log in as. */
+  private final String username;
+  /** The password to authenticate with. */
+  private final String password;
+  /** The maximum number of files downloaded at once. */
+  private final int concurrency;
+
+  /**
+   * Creates a new FTPBulkDownloader.
+   * @param sessionPool The pool to borrow sessions from. Its maximum sessions per key should be
+   * at least the concurrency, otherwise workers will wait for each other.
+   * @param hostname The host to download from.
+   * @param username The user to log in as.
+   * @param password The password to authenticate with.
+   * @param concurrency The maximum number of files to download at once.
+   */
+  public FTPBulkDownloader(FTPSessionPool sessionPool, String hostname, String username, String password, int concurrency) {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+    }
+    this.sessionPool = sessionPool;
+    this.hostname = hostname;
+    this.username = username;
+    this.password = password;
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Download the specified remote files into a local directory, each file keeping its remote
+   * name.
+   *
+   * @param remoteDirectory The remote directory holding the files, or null for the login directory.
+   * @param remoteFiles The remote files to download.
+   * @param targetDirectory The local directory to write the files to.
+   * @return A result for each remote file, in the order the files were supplied.
+   * @throws Exception If the batch was interrupted.
+   */
+  public List<FTPDownloadResult> downloadToDirectory(String remoteDirectory, Collection<FTPFile> remoteFiles, File targetDirectory) throws Exception {
+    if (!targetDirectory.isDirectory() && !targetDirectory.mkdirs()) {
+      throw new Exception("Cannot create target directory: " + targetDirectory);
+    }
+    return downloadAll(remoteDirectory, remoteFiles, targetDirectory, null);
+  }
+
+  /**
+   * Download the specified remote files, streaming the contents of each to the callback.
+   *
+   * @param remoteDirectory The remote directory holding the files, or null for the login directory.
+   * @param remoteFiles The remote files to download.
+   * @param callback The callback to stream each file to. This is called from several threads at once.
+   * @return A result for each remote file, in the order the files were supplied.
+   * @throws Exception If the batch was interrupted.
+   */
+  public List<FTPDownloadResult> download(String remoteDirectory, Collection<FTPFile> remoteFiles, FTPDownloadCallback callback) throws Exception {
+    return downloadAll(remoteDirectory, remoteFiles, null, callback);
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Download the remote files across the worker sessions.
+   * @param remoteDirectory The remote directory holding the files, or null.
+   * @param remoteFiles The remote files to download.
+   * @param targetDirectory The local directory to write to, or null if streaming to the callback.
+   * @param callback The callback to stream to, or null if writing to the target directory.
+   * @return A result for each remote file, in the order the files were supplied.
+   * @throws Exception If the batch was interrupted.
+   */
+  private List<FTPDownloadResult> downloadAll(final String remoteDirectory, Collection<FTPFile> remoteFiles,
+          final File targetDirectory, final FTPDownloadCallback callback) throws Exception {
+    final FTPFile[] files = remoteFiles.toArray(new FTPFile[remoteFiles.size()]);
+    final FTPDownloadResult[] results = new FTPDownloadResult[files.length];
+    if (files.length == 0) {
+      return new ArrayList<FTPDownloadResult>();
+    }
+    final AtomicInteger nextIndex = new AtomicInteger();
+    int workerCount = Math.min(concurrency, files.length);
+    List<Callable<Object>> workers = new ArrayList<Callable<Object>>(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      workers.add(new Callable<Object>() {
+        public Object call() {
+          runWorker(remoteDirectory, files, results, nextIndex, targetDirectory, callback);
+          return null;
+        }
+      });
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(workerCount, new WorkerThreadFactory());
+    try {
+      executor.invokeAll(workers);
+    } finally {
+      executor.shutdownNow();
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Take files from the shared batch and download them until none are left.
+   * @param remoteDirectory The remote directory holding the files, or null.
+   * @param files The batch of remote files.
+   * @param results The results, indexed as the batch.
+   * @param nextIndex The index of the next file in the batch to download.
+   * @param targetDirectory The local directory to write to, or null.
+   * @param callback The callback to stream to, or null.
+   */
+  private void runWorker(String remoteDirectory, FTPFile[] files, FTPDownloadResult[] results, AtomicInteger nextIndex,
+          File targetDirectory, FTPDownloadCallback callback) {
+    FTPSession session = null;
+    int index;
+    while ((index = nextIndex.getAndIncrement()) < files.length) {
+      FTPFile remoteFile = files[index];
+      if (Thread.currentThread().isInterrupted()) {
+        results[index] = new FTPDownloadResult(remoteFile, null, 0, new InterruptedException("Bulk download interrupted"));
+        continue;
+      }
+      try {
+        if (session == null) {
+          session = openSession(remoteDirectory);
+        }
+        results[index] = downloadFile(session, remoteFile, targetDirectory, callback);
+      } catch (IOException e) {
+        logger.warn("Failed to download file: " + remoteFile.getName(), e);
+        results[index] = new FTPDownloadResult(remoteFile, null, 0, e);
+        if (session != null) {
+          sessionPool.invalidateSession(session);
+          session = null;
+        }
+      } catch (Exception e) {
+        logger.warn("Failed to download file: " + remoteFile.getName(), e);
+        results[index] = new FTPDownloadResult(remoteFile, null, 0, e);
+      }
+    }
+    if (session != null) {
+      sessionPool.returnSession(session);
+    }
+  }
+
+  /**
+   * Borrow a session and move it into the remote directory.
+   * @param remoteDirectory The remote directory holding the files, or null.
+   * @return The session.
+   * @throws Exception If the session could not be borrowed or prepared.
+   */
+  private FTPSession openSession(String remoteDirectory) throws Exception {
+    FTPSession session = sessionPool.borrowSession(hostname, username, password);
+    try {
+      if (remoteDirectory != null && !session.changeWorkingDirectory(remoteDirectory)) {
+        throw new Exception("Failed to change working directory: " + session.getReplyString());
+      }
+      if (!session.setFileType(org.apache.commons.net.ftp.FTP.BINARY_FILE_TYPE)) {
+        throw new Exception("Failed to set binary file type: " + session.getReplyString());
+      }
+    } catch (Exception e) {
+      sessionPool.returnSession(session);
+      throw e;
+    }
+    return session;
+  }
+
+  /**
+   * Download a single file over the specified session.
+   * @param session The session to download over.
+   * @param remoteFile The file to download.
+   * @param targetDirectory The local directory to write to, or null.
+   * @param callback The callback to stream to, or null.
+   * @return The result of the download.
+   * @throws IOException If the download failed and left the session unusable.
+   * @throws Exception If the download failed.
+   */
+  private FTPDownloadResult downloadFile(FTPSession session, FTPFile remoteFile, File targetDirectory,
+          FTPDownloadCallback callback) throws Exception {
+    if (targetDirectory != null) {
+      File localFile = toLocalFile(targetDirectory, remoteFile.getName());
+      boolean retrieved = false;
+      try {
+        OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(localFile));
+        try {
+          retrieved = session.retrieveFile(remoteFile.getName(), fileOut);
+        } finally {
+          fileOut.close();
+        }
+      } finally {
+        if (!retrieved) {
+          localFile.delete();
+        }
+      }
+      if (!retrieved) {
+        throw new Exception("Failed to download file: " + session.getReplyString());
+      }
+      return new FTPDownloadResult(remoteFile, localFile, localFile.length(), null);
+    }
+
+    InputStream dataIn = session.retrieveFileStream(remoteFile.getName());
+    if (dataIn == null) {
+      throw new Exception("Failed to download file: " + session.getReplyString());
+    }
+    CountingInputStream countingIn = new CountingInputStream(dataIn);
+    try {
+      callback.fileDownloaded(remoteFile, countingIn);
+    } catch (Exception e) {
+      // The transfer has been abandoned part way through, so the session can't be reused.
+      throw new IOException("Callback failed for file: " + remoteFile.getName(), e);
+    } finally {
+      countingIn.close();
+    }
+    if (!session.completePendingCommand()) {
+      throw new IOException("Failed to complete download: " + session.getReplyString());
+    }
+    return new FTPDownloadResult(remoteFile, null, countingIn.getCount(), null);
+  }
+
+  /**
+   * Get the local file a remote file is downloaded to. The name comes from the server, so it is
+   * rejected unless it names a file directly inside the target directory.
+   * @param directory The local directory.
+   * @param name The name of the remote file.
+   * @return The local file.
+   * @throws Exception If the name could refer to a file outside the directory.
+   */
+  static File toLocalFile(File directory, String name) throws Exception {
+    if (name == null || name.length() == 0 || name.equals(".") || name.equals("..")
+            || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+      throw new Exception("Refusing to download file with unsafe name: " + name);
+    }
+    File file = new File(directory, name);
+    if (!directory.getCanonicalFile().equals(file.getCanonicalFile().getParentFile())) {
+      throw new Exception("Refusing to download file outside " + directory + ": " + name);
+    }
+    return file;
+  }
+
+  /**
+   * Creates the daemon worker threads for a batch.
+   */
+  private static final class WorkerThreadFactory implements ThreadFactory {
+
+    /** The number of threads created so far. */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "FTPBulkDownloader-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
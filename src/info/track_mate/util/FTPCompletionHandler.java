@@ -0,0 +1,38 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+/**
+ * Receives the outcome of an asynchronous FTP operation.
+ * @param <T> The type of the operation's result.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public interface FTPCompletionHandler<T> {
+
+  /** Called when the operation completes successfully.
+   *
+   * @param result The result of the operation.
+   */
+  void completed(T result);
+
+  /** Called when the operation fails, times out or is cancelled.
+   *
+   * @param failure The reason the operation did not complete. This is a
+   * {@link java.util.concurrent.TimeoutException} if the operation timed out and a
+   * {@link java.util.concurrent.CancellationException} if it was cancelled.
+   */
+  void failed(Throwable failure);
+}
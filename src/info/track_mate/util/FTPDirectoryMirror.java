@@ -0,0 +1,312 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Keeps a local directory in step with a remote FTP directory, downloading only the files that
+ * are new or whose size or modification time have changed since the last synchronisation.
+ * <p>
+ * What was last downloaded is recorded in a manifest file inside the local directory. Changed
+ * files are downloaded into a staging directory and moved into place once complete, and the
+ * manifest is replaced atomically at the end of each synchronisation, so an interrupted run
+ * simply downloads the same files again next time. Files that fail to download keep their old
+ * manifest entry and are retried on the next run.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPDirectoryMirror {
+
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(FTPDirectoryMirror.class);
+
+  /** The name of the manifest file within the local directory. */
+  public static final String MANIFEST_FILENAME = ".ftpmirror.manifest";
+
+  /** The name of the staging directory within the local directory. */
+  private static final String STAGING_DIRECTORY_NAME = ".ftpmirror.staging";
+
+  /** The local directory being kept in step. */
+  private final File localDirectory;
+  /** The manifest file recording what was last downloaded. */
+  private final File manifestFile;
+  /** The directory new and changed files are downloaded into before being moved into place. */
+  private final File stagingDirectory;
+  /** If true then local copies of files removed from the remote directory are deleted. */
+  private boolean deleteRemoved;
+
+  /**
+   * Creates a new FTPDirectoryMirror.
+   * @param localDirectory The local directory to keep in step with the remote directory.
+   */
+  public FTPDirectoryMirror(File localDirectory) {
+    this.localDirectory = localDirectory;
+    this.manifestFile = new File(localDirectory, MANIFEST_FILENAME);
+    this.stagingDirectory = new File(localDirectory, STAGING_DIRECTORY_NAME);
+  }
+
+  /**
+   * Set the {@link #deleteRemoved} flag.
+   * @param value
+   */
+  public void setDeleteRemoved(boolean value) {
+    this.deleteRemoved = value;
+  }
+
+  /**
+   * Synchronise with the current working directory of the specified client, downloading the
+   * changed files one at a time over the same client.
+   *
+   * @param client A connected client whose working directory is the remote directory to mirror.
+   * @return The outcome of the synchronisation.
+   * @throws Exception If the remote directory could not be listed or the manifest could not be
+   * read or written.
+   */
+  public FTPMirrorResult synchronize(DefaultFTPClient client) throws Exception {
+    Properties manifest = loadManifest();
+    List<FTPFile> changed = new ArrayList<FTPFile>();
+    Map<String, FTPFile> remoteFiles = compare(client, manifest, changed);
+
+    prepareStagingDirectory();
+    List<FTPDownloadResult> downloads = new ArrayList<FTPDownloadResult>();
+    for (FTPFile remoteFile : changed) {
+      File stagedFile = new File(stagingDirectory, remoteFile.getName());
+      stagedFile.delete();
+      try {
+        // Nothing has been staged, so resuming transfers the whole file in binary mode.
+        client.resumeDownloadToDisk(remoteFile.getName(), stagedFile.getPath());
+        downloads.add(new FTPDownloadResult(remoteFile, stagedFile, stagedFile.length(), null));
+      } catch (Exception e) {
+        logger.warn("Failed to download file: " + remoteFile.getName(), e);
+        downloads.add(new FTPDownloadResult(remoteFile, null, 0, e));
+      }
+    }
+    return commit(manifest, remoteFiles, changed.size(), downloads);
+  }
+
+  /**
+   * Synchronise with a remote directory, listing it over the specified client and downloading
+   * the changed files concurrently with the bulk downloader.
+   *
+   * @param client A connected client used to list the remote directory.
+   * @param downloader The downloader to fetch changed files with. It must connect to the same
+   * host as the client.
+   * @param remoteDirectory The remote directory to mirror, or null for the client's working
+   * directory and the downloader's login directory.
+   * @return The outcome of the synchronisation.
+   * @throws Exception If the remote directory could not be listed or the manifest could not be
+   * read or written.
+   */
+  public FTPMirrorResult synchronize(FTPClient client, FTPBulkDownloader downloader, String remoteDirectory) throws Exception {
+    if (remoteDirectory != null) {
+      client.changeDirectory(remoteDirectory);
+    }
+    Properties manifest = loadManifest();
+    List<FTPFile> changed = new ArrayList<FTPFile>();
+    Map<String, FTPFile> remoteFiles = compare(client, manifest, changed);
+
+    prepareStagingDirectory();
+    List<FTPDownloadResult> downloads = changed.isEmpty() ? new ArrayList<FTPDownloadResult>()
+            : downloader.downloadToDirectory(remoteDirectory, changed, stagingDirectory);
+    return commit(manifest, remoteFiles, changed.size(), downloads);
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * List the remote directory and work out which files are new or changed. Files whose names
+   * could refer to somewhere outside the local directory are left out.
+   * @param client The client to list the remote directory with.
+   * @param manifest The manifest from the last synchronisation.
+   * @param changed The list to add the new or changed files to.
+   * @return All the remote files, keyed by name.
+   * @throws Exception If the remote directory could not be listed.
+   */
+  private Map<String, FTPFile> compare(FTPClient client, Properties manifest, List<FTPFile> changed) throws Exception {
+    Map<String, FTPFile> remoteFiles = new HashMap<String, FTPFile>();
+    for (FTPFile remoteFile : client.listFiles()) {
+      if (isDirectory(remoteFile) || remoteFile.getName().startsWith(".ftpmirror.")) {
+        continue;
+      }
+      try {
+        FTPBulkDownloader.toLocalFile(localDirectory, remoteFile.getName());
+      } catch (Exception e) {
+        logger.warn("Skipping remote file: " + e.getMessage());
+        continue;
+      }
+      remoteFiles.put(remoteFile.getName(), remoteFile);
+      String entry = manifest.getProperty(remoteFile.getName());
+      if (!toManifestEntry(remoteFile).equals(entry) || !new File(localDirectory, remoteFile.getName()).exists()) {
+        changed.add(remoteFile);
+      }
+    }
+    return remoteFiles;
+  }
+
+  /**
+   * Move the downloaded files into place, remove files that have gone from the remote directory
+   * and atomically replace the manifest.
+   * @param manifest The manifest from the last synchronisation.
+   * @param remoteFiles All the remote files, keyed by name.
+   * @param changedCount The number of files that were new or changed.
+   * @param downloads The results of downloading the new or changed files.
+   * @return The outcome of the synchronisation.
+   * @throws Exception If the manifest could not be written.
+   */
+  private FTPMirrorResult commit(Properties manifest, Map<String, FTPFile> remoteFiles, int changedCount,
+          List<FTPDownloadResult> downloads) throws Exception {
+    List<FTPDownloadResult> results = new ArrayList<FTPDownloadResult>();
+    Properties updated = new Properties();
+    Set<String> failed = new HashSet<String>();
+    for (FTPDownloadResult download : downloads) {
+      FTPFile remoteFile = download.getRemoteFile();
+      if (!download.isSuccessful()) {
+        failed.add(remoteFile.getName());
+        results.add(download);
+        continue;
+      }
+      File localFile = new File(localDirectory, remoteFile.getName());
+      if (!replaceFile(download.getLocalFile(), localFile)) {
+        failed.add(remoteFile.getName());
+        results.add(new FTPDownloadResult(remoteFile, null, download.getBytesTransferred(),
+                new IOException("Failed to move downloaded file into place: " + localFile)));
+        continue;
+      }
+      updated.setProperty(remoteFile.getName(), toManifestEntry(remoteFile));
+      results.add(new FTPDownloadResult(remoteFile, localFile, download.getBytesTransferred(), null));
+    }
+
+    for (String name : remoteFiles.keySet()) {
+      String entry = manifest.getProperty(name);
+      if (!updated.containsKey(name) && entry != null && (failed.contains(name) || entry.equals(toManifestEntry(remoteFiles.get(name))))) {
+        updated.setProperty(name, entry);
+      }
+    }
+
+    List<String> removed = new ArrayList<String>();
+    for (String name : manifest.stringPropertyNames()) {
+      if (!remoteFiles.containsKey(name)) {
+        removed.add(name);
+        if (deleteRemoved && !new File(localDirectory, name).delete()) {
+          logger.warn("Failed to delete local copy of removed file: " + name);
+        }
+      }
+    }
+
+    saveManifest(updated);
+    FTPMirrorResult result = new FTPMirrorResult(results, removed, remoteFiles.size() - changedCount);
+    logger.info("Synchronised " + localDirectory + ": " + result);
+    return result;
+  }
+
+  /**
+   * Build the manifest entry recording the state of a remote file. Files listed by clients other
+   * than DefaultFTPClient carry no modification time, so only their size is compared.
+   * @param remoteFile The remote file.
+   * @return The manifest entry.
+   */
+  private static String toManifestEntry(FTPFile remoteFile) {
+    long lastModified = remoteFile instanceof DefaultFTPFile ? ((DefaultFTPFile) remoteFile).getLastModified() : 0;
+    return remoteFile.getSize() + "," + lastModified;
+  }
+
+  /**
+   * Check whether a remote file is a directory, which only files listed by DefaultFTPClient record.
+   * @param remoteFile The remote file.
+   * @return true if the remote file is known to be a directory, else false.
+   */
+  private static boolean isDirectory(FTPFile remoteFile) {
+    return remoteFile instanceof DefaultFTPFile && ((DefaultFTPFile) remoteFile).isDirectory();
+  }
+
+  /**
+   * Make sure the local and staging directories exist.
+   * @throws IOException If a directory could not be created.
+   */
+  private void prepareStagingDirectory() throws IOException {
+    if (!stagingDirectory.isDirectory() && !stagingDirectory.mkdirs()) {
+      throw new IOException("Cannot create staging directory: " + stagingDirectory);
+    }
+  }
+
+  /**
+   * Read the manifest from the last synchronisation.
+   * @return The manifest, which is empty if there has been no synchronisation yet.
+   * @throws IOException If the manifest could not be read.
+   */
+  private Properties loadManifest() throws IOException {
+    Properties manifest = new Properties();
+    if (manifestFile.exists()) {
+      InputStream manifestIn = new BufferedInputStream(new FileInputStream(manifestFile));
+      try {
+        manifest.load(manifestIn);
+      } finally {
+        manifestIn.close();
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * Atomically replace the manifest by writing and syncing a temporary file and then renaming
+   * it over the old manifest.
+   * @param manifest The new manifest.
+   * @throws IOException If the manifest could not be written.
+   */
+  private void saveManifest(Properties manifest) throws IOException {
+    File tempFile = new File(localDirectory, MANIFEST_FILENAME + ".tmp");
+    FileOutputStream fileOut = new FileOutputStream(tempFile);
+    try {
+      BufferedOutputStream bufferedOut = new BufferedOutputStream(fileOut);
+      manifest.store(bufferedOut, "FTP mirror manifest");
+      bufferedOut.flush();
+      fileOut.getFD().sync();
+    } finally {
+      fileOut.close();
+    }
+    if (!replaceFile(tempFile, manifestFile)) {
+      throw new IOException("Failed to replace manifest file: " + manifestFile);
+    }
+  }
+
+  /**
+   * Rename a file over another. The rename is atomic where the platform supports replacing an
+   * existing file; elsewhere the target is deleted first.
+   * @param source The file to rename.
+   * @param target The file to replace.
+   * @return true if the file was renamed, else false.
+   */
+  private static boolean replaceFile(File source, File target) {
+    if (source.renameTo(target)) {
+      return true;
+    }
+    return target.delete() && source.renameTo(target);
+  }
+}
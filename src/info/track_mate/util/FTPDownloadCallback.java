@@ -0,0 +1,34 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.InputStream;
+
+/**
+ * Receives the contents of remote files as they are downloaded.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public interface FTPDownloadCallback {
+
+  /** Consume the contents of a downloaded file. Implementations may be called from several
+   * threads at once, and should read the stream but not close it.
+   *
+   * @param remoteFile The remote file being downloaded.
+   * @param inputStream A stream over the contents of the remote file.
+   * @throws Exception If the contents could not be consumed.
+   */
+  void fileDownloaded(FTPFile remoteFile, InputStream inputStream) throws Exception;
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.File;
+
+/**
+ * The outcome of downloading a single file as part of a bulk download.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPDownloadResult {
+
+  /** The remote file that was downloaded. */
+  private final FTPFile remoteFile;
+  /** The local file the remote file was written to, or null if it was streamed to a callback. */
+  private final File localFile;
+  /** The number of bytes transferred. */
+  private final long bytesTransferred;
+  /** The reason the download failed, or null if it succeeded. */
+  private final Exception failure;
+
+  /**
+   * Creates a new FTPDownloadResult.
+   * @param remoteFile The remote file that was downloaded.
+   * @param localFile The local file the remote file was written to, or null.
+   * @param bytesTransferred The number of bytes transferred.
+   * @param failure The reason the download failed, or null if it succeeded.
+   */
+  public FTPDownloadResult(FTPFile remoteFile, File localFile, long bytesTransferred, Exception failure) {
+    this.remoteFile = remoteFile;
+    this.localFile = localFile;
+    this.bytesTransferred = bytesTransferred;
+    this.failure = failure;
+  }
+
+  /**
+   * Get the remote file that was downloaded.
+   * @return the {@link #remoteFile}.
+   */
+  public FTPFile getRemoteFile() {
+    return remoteFile;
+  }
+
+  /**
+   * Get the local file the remote file was written to.
+   * @return the {@link #localFile}, or null if the file was streamed to a callback.
+   */
+  public File getLocalFile() {
+    return localFile;
+  }
+
+  /**
+   * Get the number of bytes transferred.
+   * @return the {@link #bytesTransferred}.
+   */
+  public long getBytesTransferred() {
+    return bytesTransferred;
+  }
+
+  /**
+   * Get the reason the download failed.
+   * @return the {@link #failure}, or null if the download succeeded.
+   */
+  public Exception getFailure() {
+    return failure;
+  }
+
+  /**
+   * Check whether the download succeeded.
+   * @return true if the download succeeded, else false.
+   */
+  public boolean isSuccessful() {
+    return failure == null;
+  }
+
+  @Override
+  public String toString() {
+    return remoteFile.getName() + (failure == null ? ": " + bytesTransferred + " bytes" : ": failed - " + failure.getMessage());
+  }
+}
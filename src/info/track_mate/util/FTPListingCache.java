@@ -0,0 +1,205 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe, size-bounded cache of remote directory listings, keyed by host, user and absolute
+ * path. Entries expire after a fixed time to live, the least recently used entry is evicted once
+ * the cache is full, and entries can be invalidated explicitly, for example after uploading to a
+ * directory. A single cache can be shared by any number of {@link DefaultFTPClient}s.
+ * <p>
+ * Listings are keyed by user as well as host, as users on the same host may see different
+ * directory trees, or different files in the same directory.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPListingCache {
+
+  /** The time in milliseconds a listing stays valid for. */
+  private final long ttlMillis;
+  /** The maximum number of listings held. */
+  private final int maxEntries;
+  /** The cached listings, in least recently used order. Guarded by this. */
+  private final Map<String, CachedListing> entries;
+  /** The number of lookups answered from the cache. */
+  private final AtomicLong hitCount = new AtomicLong();
+  /** The number of lookups that were not. */
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Creates a new FTPListingCache.
+   * @param ttlMillis The time in milliseconds a listing stays valid for.
+   * @param maxEntries The maximum number of listings to hold.
+   */
+  public FTPListingCache(long ttlMillis, final int maxEntries) {
+    this.ttlMillis = ttlMillis;
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, CachedListing>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedListing> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Get the cached listing of a remote directory.
+   * @param hostname The host.
+   * @param username The user the directory was listed as.
+   * @param path The absolute path of the directory.
+   * @return The cached listing, or null if there is no valid listing cached.
+   */
+  public Collection<FTPFile> get(String hostname, String username, String path) {
+    String key = toKey(hostname, username, path);
+    synchronized (this) {
+      CachedListing entry = entries.get(key);
+      if (entry != null) {
+        if (System.currentTimeMillis() < entry.expiresAtMillis) {
+          hitCount.incrementAndGet();
+          return entry.files;
+        }
+        entries.remove(key);
+      }
+    }
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Cache the listing of a remote directory.
+   * @param hostname The host.
+   * @param username The user the directory was listed as.
+   * @param path The absolute path of the directory.
+   * @param files The listing.
+   */
+  public void put(String hostname, String username, String path, Collection<FTPFile> files) {
+    CachedListing entry = new CachedListing(hostname, path, Collections.unmodifiableList(new ArrayList<FTPFile>(files)),
+        System.currentTimeMillis() + ttlMillis);
+    synchronized (this) {
+      entries.put(toKey(hostname, username, path), entry);
+    }
+  }
+
+  /**
+   * Remove the cached listings of a remote directory, for every user.
+   * @param hostname The host.
+   * @param path The absolute path of the directory.
+   */
+  public synchronized void invalidate(String hostname, String path) {
+    for (Iterator<CachedListing> listings = entries.values().iterator(); listings.hasNext();) {
+      CachedListing listing = listings.next();
+      if (listing.hostname.equals(hostname) && listing.path.equals(path)) {
+        listings.remove();
+      }
+    }
+  }
+
+  /**
+   * Remove all cached listings for a host, for every user.
+   * @param hostname The host.
+   */
+  public synchronized void invalidateHost(String hostname) {
+    for (Iterator<CachedListing> listings = entries.values().iterator(); listings.hasNext();) {
+      if (listings.next().hostname.equals(hostname)) {
+        listings.remove();
+      }
+    }
+  }
+
+  /**
+   * Remove all cached listings.
+   */
+  public synchronized void invalidateAll() {
+    entries.clear();
+  }
+
+  /**
+   * Get the number of listings currently cached, including any that have expired but not yet
+   * been removed.
+   * @return The number of cached listings.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Get the maximum number of listings held.
+   * @return the {@link #maxEntries}.
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * Get the number of lookups answered from the cache.
+   * @return the {@link #hitCount}.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Get the number of lookups that could not be answered from the cache.
+   * @return the {@link #missCount}.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Build the cache key for a remote directory. The parts are separated by newlines, which
+   * can't appear in an FTP command.
+   * @param hostname The host.
+   * @param username The user.
+   * @param path The absolute path of the directory.
+   * @return The cache key.
+   */
+  private static String toKey(String hostname, String username, String path) {
+    return hostname + "\n" + username + "\n" + path;
+  }
+
+  /**
+   * A cached listing and the time it expires.
+   */
+  private static final class CachedListing {
+
+    /** The host the listing came from. */
+    private final String hostname;
+    /** The absolute path of the directory. */
+    private final String path;
+    /** The listing. */
+    private final Collection<FTPFile> files;
+    /** The time in milliseconds since the epoch at which the listing expires. */
+    private final long expiresAtMillis;
+
+    private CachedListing(String hostname, String path, Collection<FTPFile> files, long expiresAtMillis) {
+      this.hostname = hostname;
+      this.path = path;
+      this.files = files;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.regex.Pattern;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+
+/**
+ * Reads a directory listing from an FTP data connection one entry at a time, parsing each entry
+ * as it arrives rather than holding the whole listing in memory. An optional name filter is
+ * applied as each entry is parsed, so entries that don't match never reach the caller.
+ * <p>
+ * The reader is closed automatically once the last entry has been read, and must be closed
+ * explicitly if it is abandoned early, to release the FTP session. Listing parsers that rely on
+ * seeing the whole listing before parsing it, such as the VMS versioning parser, can't be used.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPListingReader implements Closeable {
+
+  /** The stream over the data connection. */
+  private final InputStream listingStream;
+  /** The reader over the data connection. */
+  private final BufferedReader listingReader;
+  /** The parser for the server's listing format. */
+  private final FTPFileEntryParser entryParser;
+  /** The pattern names must match, or null to accept every entry. */
+  private final Pattern nameFilter;
+  /** True once the reader has been closed. */
+  private boolean closed;
+
+  /**
+   * Creates a new FTPListingReader.
+   * @param listingStream The stream over the data connection. Closing it must release the session.
+   * @param entryParser The parser for the server's listing format.
+   * @param nameFilter The pattern names must match, or null to accept every entry.
+   */
+  public FTPListingReader(InputStream listingStream, FTPFileEntryParser entryParser, Pattern nameFilter) {
+    this.listingStream = listingStream;
+    this.listingReader = new BufferedReader(new InputStreamReader(listingStream));
+    this.entryParser = entryParser;
+    this.nameFilter = nameFilter;
+  }
+
+  /**
+   * Read the next entry of the listing.
+   * @return The next entry, or null if the end of the listing has been reached.
+   * @throws IOException If the listing could not be read.
+   */
+  public FTPFile read() throws IOException {
+    org.apache.commons.net.ftp.FTPFile entry = nextEntry();
+    if (entry == null) {
+      return null;
+    }
+    return new DefaultFTPFile(entry.getName(), entry.getSize(), getLastModified(entry), entry.isDirectory());
+  }
+
+  /**
+   * Read the rest of the listing into a compact, columnar listing and close the reader.
+   * @return The remaining entries of the listing.
+   * @throws IOException If the listing could not be read.
+   */
+  public CompactFTPListing readCompact() throws IOException {
+    CompactFTPListing listing = new CompactFTPListing();
+    org.apache.commons.net.ftp.FTPFile entry;
+    while ((entry = nextEntry()) != null) {
+      listing.add(entry.getName(), entry.getSize(), getLastModified(entry), entry.isDirectory());
+    }
+    listing.trimToSize();
+    return listing;
+  }
+
+  /**
+   * Close the data connection, completing the LIST command.
+   * @throws IOException If the data connection could not be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      listingStream.close();
+    }
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Parse entries until one matches the name filter, closing the reader at the end of the listing.
+   * @return The next matching entry, or null if the end of the listing has been reached.
+   * @throws IOException If the listing could not be read.
+   */
+  private org.apache.commons.net.ftp.FTPFile nextEntry() throws IOException {
+    if (closed) {
+      return null;
+    }
+    String line;
+    while ((line = entryParser.readNextEntry(listingReader)) != null) {
+      org.apache.commons.net.ftp.FTPFile entry = entryParser.parseFTPEntry(line);
+      // Lines such as "total 1234" don't parse to an entry.
+      if (entry != null && entry.getName() != null
+              && (nameFilter == null || nameFilter.matcher(entry.getName()).matches())) {
+        return entry;
+      }
+    }
+    close();
+    return null;
+  }
+
+  /**
+   * Get the modification time of a parsed entry.
+   * @param entry The entry.
+   * @return The modification time in milliseconds since the epoch, or 0 if not known.
+   */
+  private static long getLastModified(org.apache.commons.net.ftp.FTPFile entry) {
+    return entry.getTimestamp() == null ? 0 : entry.getTimestamp().getTimeInMillis();
+  }
+}
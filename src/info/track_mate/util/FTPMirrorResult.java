@@ -0,0 +1,95 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of one {@link FTPDirectoryMirror} synchronisation.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPMirrorResult {
+
+  /** The results of the files that were new or changed and so were downloaded. */
+  private final List<FTPDownloadResult> downloads;
+  /** The names of the files that have been removed from the remote directory. */
+  private final List<String> removed;
+  /** The number of files that were unchanged and so were skipped. */
+  private final int unchangedCount;
+
+  /**
+   * Creates a new FTPMirrorResult.
+   * @param downloads The results of the files that were downloaded.
+   * @param removed The names of the files removed from the remote directory.
+   * @param unchangedCount The number of files that were skipped.
+   */
+  public FTPMirrorResult(List<FTPDownloadResult> downloads, List<String> removed, int unchangedCount) {
+    this.downloads = Collections.unmodifiableList(new ArrayList<FTPDownloadResult>(downloads));
+    this.removed = Collections.unmodifiableList(new ArrayList<String>(removed));
+    this.unchangedCount = unchangedCount;
+  }
+
+  /**
+   * Get the results of the files that were new or changed and so were downloaded.
+   * @return the {@link #downloads}, including any that failed.
+   */
+  public List<FTPDownloadResult> getDownloads() {
+    return downloads;
+  }
+
+  /**
+   * Get the names of the files that have been removed from the remote directory.
+   * @return the {@link #removed} file names.
+   */
+  public List<String> getRemoved() {
+    return removed;
+  }
+
+  /**
+   * Get the number of files that were unchanged and so were skipped.
+   * @return the {@link #unchangedCount}.
+   */
+  public int getUnchangedCount() {
+    return unchangedCount;
+  }
+
+  /**
+   * Check whether every new or changed file was downloaded.
+   * @return true if no download failed, else false.
+   */
+  public boolean isSuccessful() {
+    for (FTPDownloadResult download : downloads) {
+      if (!download.isSuccessful()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    int failed = 0;
+    for (FTPDownloadResult download : downloads) {
+      if (!download.isSuccessful()) {
+        failed++;
+      }
+    }
+    return (downloads.size() - failed) + " downloaded, " + failed + " failed, " + removed.size() + " removed, "
+            + unchangedCount + " unchanged";
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+/**
+ * The timing of a single completed FTP operation.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPOperationEvent {
+
+  /** The kind of operation. */
+  private final FTPOperationType type;
+  /** The host the operation was performed against. */
+  private final String hostname;
+  /** The file or directory the operation acted on, or null if there was none. */
+  private final String target;
+  /** The number of bytes transferred, or -1 if the operation doesn't transfer data. */
+  private final long bytesTransferred;
+  /** How long the operation took in nanoseconds. */
+  private final long durationNanos;
+  /** True if the operation succeeded. */
+  private final boolean successful;
+
+  /**
+   * Creates a new FTPOperationEvent.
+   * @param type The kind of operation.
+   * @param hostname The host the operation was performed against.
+   * @param target The file or directory the operation acted on, or null.
+   * @param bytesTransferred The number of bytes transferred, or -1.
+   * @param durationNanos How long the operation took in nanoseconds.
+   * @param successful True if the operation succeeded.
+   */
+  public FTPOperationEvent(FTPOperationType type, String hostname, String target, long bytesTransferred,
+          long durationNanos, boolean successful) {
+    this.type = type;
+    this.hostname = hostname;
+    this.target = target;
+    this.bytesTransferred = bytesTransferred;
+    this.durationNanos = durationNanos;
+    this.successful = successful;
+  }
+
+  /**
+   * Get the kind of operation.
+   * @return the {@link #type}.
+   */
+  public FTPOperationType getType() {
+    return type;
+  }
+
+  /**
+   * Get the host the operation was performed against.
+   * @return the {@link #hostname}.
+   */
+  public String getHostname() {
+    return hostname;
+  }
+
+  /**
+   * Get the file or directory the operation acted on.
+   * @return the {@link #target}, or null if there was none.
+   */
+  public String getTarget() {
+    return target;
+  }
+
+  /**
+   * Get the number of bytes transferred.
+   * @return the {@link #bytesTransferred}, or -1 if the operation doesn't transfer data.
+   */
+  public long getBytesTransferred() {
+    return bytesTransferred;
+  }
+
+  /**
+   * Get how long the operation took.
+   * @return the {@link #durationNanos}.
+   */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  /**
+   * Check whether the operation succeeded.
+   * @return the {@link #successful} flag.
+   */
+  public boolean isSuccessful() {
+    return successful;
+  }
+
+  /**
+   * Get the transfer rate of the operation.
+   * @return The bytes transferred per second, or 0 if no data was transferred.
+   */
+  public double getBytesPerSecond() {
+    if (bytesTransferred <= 0 || durationNanos <= 0) {
+      return 0;
+    }
+    return bytesTransferred * 1000000000.0 / durationNanos;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(type).append(' ').append(hostname);
+    if (target != null) {
+      sb.append(' ').append(target);
+    }
+    sb.append(successful ? " ok " : " failed ").append(durationNanos / 1000000).append("ms");
+    if (bytesTransferred >= 0) {
+      sb.append(' ').append(bytesTransferred).append(" bytes");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+/**
+ * Receives timing information for each operation an {@link FTPSession} performs. Listeners are
+ * called on the thread that performed the operation, straight after it completes, so they must
+ * be thread safe and should return quickly.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public interface FTPOperationListener {
+
+  /** Called when an operation completes, whether or not it succeeded.
+   *
+   * @param event The details of the operation.
+   */
+  void operationCompleted(FTPOperationEvent event);
+}
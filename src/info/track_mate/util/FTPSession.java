@@ -0,0 +1,471 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import org.apache.commons.net.ftp.FTPCommand;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+import org.apache.commons.net.ftp.parser.DefaultFTPFileEntryParserFactory;
+
+/**
+ * A single FTP control connection, along with the state needed to hand it from one user to the
+ * next: the host and user it is logged in as, the directory it started in and whether its
+ * working directory or transfer type have been changed since.
+ * <p>
+ * If an {@link FTPOperationListener} is set, the session times its connect, login, directory
+ * changes, listings and downloads and reports each one to the listener. With no listener set the
+ * only cost is a field read per operation.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPSession extends org.apache.commons.net.ftp.FTPClient {
+
+  /** The logger for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(FTPSession.class);
+
+  /** The timeout in milliseconds for the socket connection (value = 2 minutes). */
+  public static final int SOCKET_TIMEOUT_MILLIS = 120000;
+
+  /** The reply code for a successful SIZE or MDTM command (213). */
+  private static final int SIZE_REPLY_CODE = 213;
+
+  /** The host this session is connected to. */
+  private final String hostname;
+  /** The user this session is logged in as. */
+  private final String username;
+  /** The working directory of the session straight after login. */
+  private String homeDirectory;
+  /** True if the working directory has been changed since the last {@link #reset()}. */
+  private boolean directoryChanged;
+  /** True if the file type has been changed since the last {@link #reset()}. */
+  private boolean fileTypeChanged;
+  /** The time at which this session was last handed back to its owner. */
+  private volatile long lastUsedMillis;
+  /** The parser for this server's directory listings, or null if it has not been created yet. */
+  private FTPFileEntryParser entryParser;
+  /** The data connection most recently opened by this session. */
+  private volatile Socket dataSocket;
+  /** The listener to report operation timings to, or null if timings aren't being recorded. */
+  private volatile FTPOperationListener operationListener;
+  /** The listing or download currently in progress, if it is being timed. */
+  private PendingTransfer pendingTransfer;
+  /** The stream counting the bytes of a {@link #retrieveFile} call that is about to start. */
+  private CountingOutputStream pendingOutput;
+
+  /**
+   * Creates a new, unconnected FTPSession.
+   * @param hostname The host the session will connect to.
+   * @param username The user the session will log in as.
+   */
+  public FTPSession(String hostname, String username) {
+    this.hostname = hostname;
+    this.username = username;
+    this.lastUsedMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Connect to {@link #hostname} and log in as {@link #username}.
+   * @param password The password to authenticate with.
+   * @return true if the login was accepted by the server, else false.
+   * @throws IOException If the connection could not be established.
+   */
+  public boolean open(String password) throws IOException {
+    FTPOperationListener listener = operationListener;
+    if (listener == null) {
+      connect(hostname);
+      setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+      return login(username, password);
+    }
+    long start = System.nanoTime();
+    boolean successful = false;
+    try {
+      connect(hostname);
+      setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+      successful = true;
+    } finally {
+      fireOperationCompleted(listener, FTPOperationType.CONNECT, null, -1, start, successful);
+    }
+    start = System.nanoTime();
+    successful = false;
+    try {
+      successful = login(username, password);
+      return successful;
+    } finally {
+      fireOperationCompleted(listener, FTPOperationType.LOGIN, username, -1, start, successful);
+    }
+  }
+
+  /**
+   * Check that the session is still usable by sending a NOOP to the server.
+   * @return true if the server acknowledged the NOOP, else false.
+   */
+  public boolean validate() {
+    if (!isConnected()) {
+      return false;
+    }
+    try {
+      return sendNoOp();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Ask the server for the size of a remote file using the SIZE command.
+   * @param remoteFileName The name of the remote file.
+   * @return The size of the file in bytes, or -1 if the server could not report it.
+   * @throws IOException If the command could not be sent.
+   */
+  public long getRemoteSize(String remoteFileName) throws IOException {
+    if (sendCommand("SIZE", remoteFileName) != SIZE_REPLY_CODE) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(getReplyString().substring(4).trim());
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Send a LIST command and open the data connection carrying the listing, without reading it.
+   * The caller must close the stream and then call {@link #completePendingCommand()}.
+   * @param pathname The directory to list, or null for the working directory.
+   * @return A stream over the raw listing, or null if the server refused the command.
+   * @throws IOException If the data connection could not be opened.
+   */
+  public InputStream openListStream(String pathname) throws IOException {
+    Socket socket = _openDataConnection_(FTPCommand.LIST, pathname);
+    if (socket == null) {
+      return null;
+    }
+    return countTransfer(socket.getInputStream());
+  }
+
+  /**
+   * Get the parser for this server's directory listings, chosen from the server's SYST reply
+   * the first time it is needed.
+   * @return The listing entry parser.
+   * @throws IOException If the server's system type could not be requested.
+   */
+  public FTPFileEntryParser getEntryParser() throws IOException {
+    if (entryParser == null) {
+      entryParser = new DefaultFTPFileEntryParserFactory().createFileEntryParser(getSystemName());
+    }
+    return entryParser;
+  }
+
+  /**
+   * Close the data connection and the control connection straight away, from any thread. A
+   * transfer blocked on either connection fails immediately rather than waiting for the server.
+   * The session can't be used afterwards.
+   */
+  public void forceClose() {
+    Socket socket = dataSocket;
+    try {
+      if (socket != null) {
+        socket.close();
+      }
+    } catch (IOException e) {
+      // Closing is best effort; the control connection is still closed below.
+    }
+    try {
+      if (isConnected()) {
+        disconnect();
+      }
+    } catch (IOException e) {
+      // As above.
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected Socket _openDataConnection_(int command, String arg) throws IOException {
+    FTPOperationListener listener = operationListener;
+    FTPOperationType type = null;
+    if (listener != null) {
+      if (command == FTPCommand.RETR) {
+        type = FTPOperationType.DOWNLOAD;
+      } else if (command == FTPCommand.LIST || command == FTPCommand.NLST) {
+        type = FTPOperationType.LIST;
+      }
+    }
+    if (type == null) {
+      Socket socket = super._openDataConnection_(command, arg);
+      dataSocket = socket;
+      return socket;
+    }
+    PendingTransfer transfer = new PendingTransfer(listener, type, arg, pendingOutput);
+    pendingOutput = null;
+    pendingTransfer = transfer;
+    Socket socket = null;
+    try {
+      socket = super._openDataConnection_(command, arg);
+    } finally {
+      if (socket == null) {
+        finishTransfer(false);
+      }
+    }
+    dataSocket = socket;
+    return socket;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean retrieveFile(String remote, OutputStream local) throws IOException {
+    if (operationListener == null) {
+      return super.retrieveFile(remote, local);
+    }
+    pendingOutput = new CountingOutputStream(local);
+    try {
+      return super.retrieveFile(remote, pendingOutput);
+    } catch (IOException e) {
+      finishTransfer(false);
+      throw e;
+    } finally {
+      pendingOutput = null;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream retrieveFileStream(String remote) throws IOException {
+    return countTransfer(super.retrieveFileStream(remote));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean completePendingCommand() throws IOException {
+    boolean successful = false;
+    try {
+      successful = super.completePendingCommand();
+      return successful;
+    } finally {
+      finishTransfer(successful);
+    }
+  }
+
+  /**
+   * Put the session back into the state it was in straight after login, so that the next user
+   * of the session doesn't see the previous user's working directory or transfer type.
+   * @throws IOException If the server rejected the commands needed to restore the state.
+   */
+  public void reset() throws IOException {
+    if (directoryChanged && homeDirectory != null) {
+      if (!changeWorkingDirectory(homeDirectory)) {
+        throw new IOException("Failed to restore working directory: " + getReplyString());
+      }
+    }
+    if (fileTypeChanged) {
+      if (!setFileType(ASCII_FILE_TYPE)) {
+        throw new IOException("Failed to restore file type: " + getReplyString());
+      }
+    }
+    setRestartOffset(0);
+    directoryChanged = false;
+    fileTypeChanged = false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean changeWorkingDirectory(String pathname) throws IOException {
+    directoryChanged = true;
+    FTPOperationListener listener = operationListener;
+    if (listener == null) {
+      return super.changeWorkingDirectory(pathname);
+    }
+    long start = System.nanoTime();
+    boolean successful = false;
+    try {
+      successful = super.changeWorkingDirectory(pathname);
+      return successful;
+    } finally {
+      fireOperationCompleted(listener, FTPOperationType.CHANGE_DIRECTORY, pathname, -1, start, successful);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean changeToParentDirectory() throws IOException {
+    directoryChanged = true;
+    return super.changeToParentDirectory();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean setFileType(int fileType) throws IOException {
+    fileTypeChanged = fileType != ASCII_FILE_TYPE;
+    return super.setFileType(fileType);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean setFileType(int fileType, int formatOrByteSize) throws IOException {
+    fileTypeChanged = true;
+    return super.setFileType(fileType, formatOrByteSize);
+  }
+
+  /**
+   * Get the host this session is connected to.
+   * @return the {@link #hostname}.
+   */
+  public String getHostname() {
+    return hostname;
+  }
+
+  /**
+   * Get the user this session is logged in as.
+   * @return the {@link #username}.
+   */
+  public String getUsername() {
+    return username;
+  }
+
+  /**
+   * Get the working directory of the session straight after login.
+   * @return the {@link #homeDirectory}, or null if it has not been recorded.
+   */
+  public String getHomeDirectory() {
+    return homeDirectory;
+  }
+
+  /**
+   * Set the {@link #homeDirectory}.
+   * @param value
+   */
+  public void setHomeDirectory(String value) {
+    this.homeDirectory = value;
+  }
+
+  /**
+   * Get the time at which this session was last handed back to its owner.
+   * @return the {@link #lastUsedMillis}.
+   */
+  public long getLastUsedMillis() {
+    return lastUsedMillis;
+  }
+
+  /**
+   * Record that the session has just been handed back to its owner.
+   */
+  public void touch() {
+    lastUsedMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Get the listener operation timings are reported to.
+   * @return the {@link #operationListener}, or null if timings aren't being recorded.
+   */
+  public FTPOperationListener getOperationListener() {
+    return operationListener;
+  }
+
+  /**
+   * Set the {@link #operationListener}. Set it to null to stop recording timings.
+   * @param value
+   */
+  public void setOperationListener(FTPOperationListener value) {
+    this.operationListener = value;
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Count the bytes read from the data stream of the transfer in progress, if it is being timed.
+   * @param in The data stream, or null if the transfer didn't start.
+   * @return The stream to hand to the caller.
+   */
+  private InputStream countTransfer(InputStream in) {
+    PendingTransfer transfer = pendingTransfer;
+    if (in == null || transfer == null) {
+      return in;
+    }
+    transfer.input = new CountingInputStream(in);
+    return transfer.input;
+  }
+
+  /**
+   * Report the listing or download in progress to its listener, if it is being timed.
+   * @param successful True if the transfer succeeded.
+   */
+  private void finishTransfer(boolean successful) {
+    PendingTransfer transfer = pendingTransfer;
+    if (transfer == null) {
+      return;
+    }
+    pendingTransfer = null;
+    long bytes = -1;
+    if (transfer.output != null) {
+      bytes = transfer.output.getCount();
+    } else if (transfer.input != null) {
+      bytes = transfer.input.getCount();
+    }
+    fireOperationCompleted(transfer.listener, transfer.type, transfer.target, bytes, transfer.startNanos, successful);
+  }
+
+  /**
+   * Report a completed operation to a listener. A listener that throws is logged and otherwise
+   * ignored, so that it can't break the operation it is observing.
+   * @param listener The listener.
+   * @param type The kind of operation.
+   * @param target The file or directory the operation acted on, or null.
+   * @param bytes The number of bytes transferred, or -1.
+   * @param startNanos The value of {@link System#nanoTime()} when the operation started.
+   * @param successful True if the operation succeeded.
+   */
+  private void fireOperationCompleted(FTPOperationListener listener, FTPOperationType type, String target,
+          long bytes, long startNanos, boolean successful) {
+    try {
+      listener.operationCompleted(new FTPOperationEvent(type, hostname, target, bytes,
+              System.nanoTime() - startNanos, successful));
+    } catch (RuntimeException e) {
+      logger.warn("FTP operation listener failed", e);
+    }
+  }
+
+  /**
+   * A listing or download that is being timed, from opening its data connection to the server's
+   * final reply.
+   */
+  private static final class PendingTransfer {
+
+    /** The listener to report the transfer to. */
+    private final FTPOperationListener listener;
+    /** The kind of transfer. */
+    private final FTPOperationType type;
+    /** The file or directory being transferred, or null. */
+    private final String target;
+    /** The value of {@link System#nanoTime()} when the transfer started. */
+    private final long startNanos;
+    /** The stream counting the bytes written by {@link #retrieveFile}, or null. */
+    private final CountingOutputStream output;
+    /** The stream counting the bytes read by the caller, or null. */
+    private CountingInputStream input;
+
+    private PendingTransfer(FTPOperationListener listener, FTPOperationType type, String target,
+            CountingOutputStream output) {
+      this.listener = listener;
+      this.type = type;
+      this.target = target;
+      this.output = output;
+      this.startNanos = System.nanoTime();
+    }
+  }
+
+}
@@ -0,0 +1,581 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe pool of logged-in {@link FTPSession}s, keyed by host, user and password.
+ * <p>
+ * The password is part of the key (as a SHA-256 digest) so a caller can only ever be handed a
+ * session that was logged in with the credentials it supplied.
+ * <p>
+ * Sessions are validated with a NOOP before being handed out, idle sessions are kept alive with
+ * a NOOP and evicted once they have been idle for longer than {@link #idleTimeoutMillis}, and
+ * callers wait at most {@link #borrowTimeoutMillis} for a session when the pool for their key is
+ * exhausted. Each thread should borrow its own session, normally through a
+ * {@link PooledFTPClient}.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPSessionPool {
+
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(FTPSessionPool.class);
+
+  /** The sessions held by this pool, keyed by host, user and password digest. */
+  private final ConcurrentMap<String, KeyedPool> pools = new ConcurrentHashMap<String, KeyedPool>();
+  /** The pool each open session belongs to. */
+  private final ConcurrentMap<FTPSession, KeyedPool> owners = new ConcurrentHashMap<FTPSession, KeyedPool>();
+
+  /** The maximum number of sessions, idle or borrowed, for a single host and user. */
+  private volatile int maxTotalPerKey = 8;
+  /** The maximum number of idle sessions kept for a single host and user. */
+  private volatile int maxIdlePerKey = 8;
+  /** The number of idle sessions the evictor tries to keep open for a single host and user. */
+  private volatile int minIdlePerKey = 0;
+  /** The maximum time in milliseconds to wait for a session when the pool is exhausted. */
+  private volatile long borrowTimeoutMillis = 30000;
+  /** The time in milliseconds after which an idle session is closed. */
+  private volatile long idleTimeoutMillis = 300000;
+  /** The time in milliseconds between runs of the idle session evictor. */
+  private volatile long evictionIntervalMillis = 30000;
+  /** If true then idle sessions are validated with a NOOP before being handed out. */
+  private volatile boolean validateOnBorrow = true;
+  /** The listener given to each session the pool opens, or null. */
+  private volatile FTPOperationListener operationListener;
+
+  /** The timer running the idle session evictor, or null if it has not been started. */
+  private Timer evictionTimer;
+  /** True once {@link #close()} has been called. */
+  private volatile boolean closed;
+
+  /**
+   * Borrow a logged-in session for the specified host and user, creating one if no idle session
+   * is available. The session must be handed back with {@link #returnSession(FTPSession)} or
+   * {@link #invalidateSession(FTPSession)}.
+   *
+   * @param hostname The hostname to connect to.
+   * @param username The username to authenticate with.
+   * @param password The password to authenticate with.
+   * @return A logged-in session.
+   * @throws Exception If a session could not be created, or none became available within the
+   * borrow timeout.
+   */
+  public FTPSession borrowSession(String hostname, String username, String password) throws Exception {
+    if (closed) {
+      throw new Exception("FTP session pool has been closed");
+    }
+    startEvictor();
+    KeyedPool pool = getPool(hostname, username, password);
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+    while (true) {
+      FTPSession session = null;
+      boolean create = false;
+      pool.lock.lock();
+      try {
+        while (session == null && !create && !pool.retired) {
+          session = pool.idle.pollFirst();
+          if (session == null) {
+            if (pool.total < maxTotalPerKey) {
+              pool.total++;
+              create = true;
+            } else {
+              long remaining = deadline - System.nanoTime();
+              if (remaining <= 0) {
+                throw new Exception("Timed out waiting for an FTP session for " + pool.name);
+              }
+              pool.available.awaitNanos(remaining);
+            }
+          }
+        }
+      } finally {
+        pool.lock.unlock();
+      }
+
+      if (session == null && !create) {
+        // The evictor removed the pool while it was empty, so use the one that replaces it.
+        pool = getPool(hostname, username, password);
+        continue;
+      }
+      if (create) {
+        try {
+          return createSession(pool);
+        } catch (Exception e) {
+          pool.release();
+          throw e;
+        }
+      }
+      if (!validateOnBorrow || session.validate()) {
+        return session;
+      }
+      logger.debug("Discarding stale FTP session for " + pool.name);
+      destroySession(session);
+      pool.release();
+    }
+  }
+
+  /**
+   * Hand a borrowed session back to the pool. The session's working directory and file type are
+   * restored; if that fails, or the pool already holds enough idle sessions, it is closed.
+   *
+   * @param session The session to return.
+   */
+  public void returnSession(FTPSession session) {
+    KeyedPool pool = getOwner(session);
+    boolean keep = !closed && session.isConnected();
+    if (keep) {
+      try {
+        session.reset();
+      } catch (Exception e) {
+        logger.debug("Failed to reset FTP session for " + pool.name, e);
+        keep = false;
+      }
+    }
+    if (keep) {
+      session.touch();
+      pool.lock.lock();
+      try {
+        if (pool.idle.size() < maxIdlePerKey) {
+          pool.idle.offerFirst(session);
+          pool.available.signal();
+          return;
+        }
+      } finally {
+        pool.lock.unlock();
+      }
+    }
+    destroySession(session);
+    pool.release();
+  }
+
+  /**
+   * Close a borrowed session that is known to be broken instead of returning it to the pool.
+   *
+   * @param session The session to close.
+   */
+  public void invalidateSession(FTPSession session) {
+    KeyedPool pool = getOwner(session);
+    destroySession(session);
+    pool.release();
+  }
+
+  /**
+   * Get the number of idle sessions held for the specified host and user, whatever password
+   * they were opened with.
+   * @param hostname The host.
+   * @param username The user.
+   * @return The number of idle sessions.
+   */
+  public int getIdleCount(String hostname, String username) {
+    int count = 0;
+    for (KeyedPool pool : pools.values()) {
+      if (pool.matches(hostname, username)) {
+        pool.lock.lock();
+        try {
+          count += pool.idle.size();
+        } finally {
+          pool.lock.unlock();
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get the number of sessions currently borrowed for the specified host and user, whatever
+   * password they were opened with.
+   * @param hostname The host.
+   * @param username The user.
+   * @return The number of borrowed sessions.
+   */
+  public int getActiveCount(String hostname, String username) {
+    int count = 0;
+    for (KeyedPool pool : pools.values()) {
+      if (pool.matches(hostname, username)) {
+        pool.lock.lock();
+        try {
+          count += pool.total - pool.idle.size();
+        } finally {
+          pool.lock.unlock();
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Close all idle sessions and stop the evictor. Sessions that are still borrowed are closed
+   * when they are returned.
+   */
+  public void close() {
+    closed = true;
+    synchronized (this) {
+      if (evictionTimer != null) {
+        evictionTimer.cancel();
+        evictionTimer = null;
+      }
+    }
+    for (KeyedPool pool : pools.values()) {
+      for (FTPSession session : pool.drainIdle()) {
+        destroySession(session);
+        pool.release();
+      }
+    }
+  }
+
+  /**
+   * Set the {@link #maxTotalPerKey}.
+   * @param value
+   */
+  public void setMaxTotalPerKey(int value) {
+    this.maxTotalPerKey = value;
+  }
+
+  /**
+   * Set the {@link #maxIdlePerKey}.
+   * @param value
+   */
+  public void setMaxIdlePerKey(int value) {
+    this.maxIdlePerKey = value;
+  }
+
+  /**
+   * Set the {@link #minIdlePerKey}.
+   * @param value
+   */
+  public void setMinIdlePerKey(int value) {
+    this.minIdlePerKey = value;
+  }
+
+  /**
+   * Set the {@link #borrowTimeoutMillis}.
+   * @param value
+   */
+  public void setBorrowTimeoutMillis(long value) {
+    this.borrowTimeoutMillis = value;
+  }
+
+  /**
+   * Set the {@link #idleTimeoutMillis}.
+   * @param value
+   */
+  public void setIdleTimeoutMillis(long value) {
+    this.idleTimeoutMillis = value;
+  }
+
+  /**
+   * Set the {@link #evictionIntervalMillis}. This must be called before the first session is
+   * borrowed; a value of zero or less disables the evictor.
+   * @param value
+   */
+  public void setEvictionIntervalMillis(long value) {
+    this.evictionIntervalMillis = value;
+  }
+
+  /**
+   * Set the {@link #validateOnBorrow} flag.
+   * @param value
+   */
+  public void setValidateOnBorrow(boolean value) {
+    this.validateOnBorrow = value;
+  }
+
+  /**
+   * Set the {@link #operationListener}. This applies to sessions opened after the call; sessions
+   * that are already open keep the listener they were opened with.
+   * @param value
+   */
+  public void setOperationListener(FTPOperationListener value) {
+    this.operationListener = value;
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Build the pool key for the specified host, user and password. Only a digest of the password
+   * goes into the key.
+   * @param hostname The host.
+   * @param username The user.
+   * @param password The password.
+   * @return The pool key.
+   */
+  private static String toKey(String hostname, String username, String password) {
+    String digest;
+    try {
+      digest = EncryptionUtils.sha256Hex(String.valueOf(password).getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is not supported", e);
+    }
+    return username + "@" + hostname + "#" + digest;
+  }
+
+  /**
+   * Get the pool for the specified host, user and password, creating it if necessary.
+   * @param hostname The host.
+   * @param username The user.
+   * @param password The password.
+   * @return The pool.
+   */
+  private KeyedPool getPool(String hostname, String username, String password) {
+    String key = toKey(hostname, username, password);
+    KeyedPool pool = pools.get(key);
+    if (pool == null) {
+      KeyedPool newPool = new KeyedPool(key, hostname, username, password);
+      pool = pools.putIfAbsent(key, newPool);
+      if (pool == null) {
+        pool = newPool;
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Get the pool the specified session was borrowed from.
+   * @param session The session.
+   * @return The pool.
+   * @throws IllegalArgumentException If the session was not opened by this pool, or has already
+   * been closed.
+   */
+  private KeyedPool getOwner(FTPSession session) {
+    KeyedPool pool = owners.get(session);
+    if (pool == null) {
+      throw new IllegalArgumentException("FTP session was not borrowed from this pool");
+    }
+    return pool;
+  }
+
+  /**
+   * Open and log in a new session. The caller must already have reserved a slot in the pool.
+   * @param pool The pool the session belongs to.
+   * @return The logged-in session.
+   * @throws Exception If the session could not be opened.
+   */
+  private FTPSession createSession(KeyedPool pool) throws Exception {
+    FTPSession session = new FTPSession(pool.hostname, pool.username);
+    session.setOperationListener(operationListener);
+    try {
+      if (!session.open(pool.password)) {
+        throw new Exception("FTP server rejected login: " + session.getReplyString());
+      }
+      session.setHomeDirectory(session.printWorkingDirectory());
+    } catch (Exception e) {
+      destroySession(session);
+      throw new Exception("Failed to open FTP session for " + pool.name, e);
+    }
+    owners.put(session, pool);
+    logger.debug("Opened FTP session for " + pool.name);
+    return session;
+  }
+
+  /**
+   * Log out and disconnect the specified session, ignoring any errors.
+   * @param session The session to close.
+   */
+  private void destroySession(FTPSession session) {
+    owners.remove(session);
+    try {
+      if (session.isConnected()) {
+        session.logout();
+      }
+    } catch (Exception e) {
+      logger.debug("Failed to log out of FTP session", e);
+    }
+    try {
+      if (session.isConnected()) {
+        session.disconnect();
+      }
+    } catch (Exception e) {
+      logger.debug("Failed to disconnect FTP session", e);
+    }
+  }
+
+  /**
+   * Start the idle session evictor if it is enabled and not already running.
+   */
+  private synchronized void startEvictor() {
+    if (evictionTimer != null || evictionIntervalMillis <= 0) {
+      return;
+    }
+    evictionTimer = new Timer("FTPSessionPool-evictor", true);
+    evictionTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        evict();
+      }
+    }, evictionIntervalMillis, evictionIntervalMillis);
+  }
+
+  /**
+   * Close sessions that have been idle for too long, send a NOOP to keep the remaining idle
+   * sessions alive and open new sessions until each pool holds {@link #minIdlePerKey}. Pools left
+   * without any sessions are removed, so credentials that are no longer used don't pile up.
+   */
+  private void evict() {
+    long now = System.currentTimeMillis();
+    for (KeyedPool pool : pools.values()) {
+      List<FTPSession> candidates = pool.drainIdle();
+      List<FTPSession> survivors = new ArrayList<FTPSession>();
+      int retained = 0;
+      for (FTPSession session : candidates) {
+        boolean expired = now - session.getLastUsedMillis() > idleTimeoutMillis && retained >= minIdlePerKey;
+        if (!expired && session.validate()) {
+          survivors.add(session);
+          retained++;
+        } else {
+          destroySession(session);
+          pool.release();
+        }
+      }
+      pool.lock.lock();
+      try {
+        for (FTPSession session : survivors) {
+          pool.idle.offerLast(session);
+          pool.available.signal();
+        }
+      } finally {
+        pool.lock.unlock();
+      }
+      fillIdle(pool);
+      pool.lock.lock();
+      try {
+        if (pool.total == 0) {
+          pool.retired = true;
+          pools.remove(pool.key, pool);
+        }
+      } finally {
+        pool.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Open sessions until the pool holds {@link #minIdlePerKey} idle sessions.
+   * @param pool The pool to fill.
+   */
+  private void fillIdle(KeyedPool pool) {
+    while (!closed) {
+      pool.lock.lock();
+      try {
+        if (pool.idle.size() >= minIdlePerKey || pool.total >= maxTotalPerKey) {
+          return;
+        }
+        pool.total++;
+      } finally {
+        pool.lock.unlock();
+      }
+      try {
+        FTPSession session = createSession(pool);
+        pool.lock.lock();
+        try {
+          pool.idle.offerLast(session);
+          pool.available.signal();
+        } finally {
+          pool.lock.unlock();
+        }
+      } catch (Exception e) {
+        logger.warn("Failed to open idle FTP session for " + pool.name, e);
+        pool.release();
+        return;
+      }
+    }
+  }
+
+  /**
+   * The sessions held for a single host, user and password.
+   */
+  private static final class KeyedPool {
+
+    /** The key of the pool in {@link FTPSessionPool#pools}. */
+    private final String key;
+    /** The name of the pool in log and error messages; this leaves out the password digest. */
+    private final String name;
+    /** The host the sessions connect to. */
+    private final String hostname;
+    /** The user the sessions log in as. */
+    private final String username;
+    /** The password the sessions log in with. */
+    private final String password;
+    /** Guards {@link #idle}, {@link #total} and {@link #retired}. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when a session is returned or a slot is freed. */
+    private final Condition available = lock.newCondition();
+    /** The idle sessions, most recently used first. */
+    private final Deque<FTPSession> idle = new ArrayDeque<FTPSession>();
+    /** The number of sessions, idle or borrowed, that this pool has open. */
+    private int total;
+    /** True once the pool has been removed for being empty; borrowers must look it up again. */
+    private boolean retired;
+
+    private KeyedPool(String key, String hostname, String username, String password) {
+      this.key = key;
+      this.name = username + "@" + hostname;
+      this.hostname = hostname;
+      this.username = username;
+      this.password = password;
+    }
+
+    /**
+     * Check whether this pool holds sessions for the specified host and user.
+     * @param host The host.
+     * @param user The user.
+     * @return True if the host and user match.
+     */
+    private boolean matches(String host, String user) {
+      return hostname.equals(host) && username.equals(user);
+    }
+
+    /**
+     * Free the slot held by a session that has been closed.
+     */
+    private void release() {
+      lock.lock();
+      try {
+        total--;
+        available.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Remove and return all idle sessions.
+     * @return The idle sessions, most recently used first.
+     */
+    private List<FTPSession> drainIdle() {
+      lock.lock();
+      try {
+        List<FTPSession> drained = new ArrayList<FTPSession>(idle);
+        idle.clear();
+        return drained;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.InputStream;
+
+/**
+ * An implementation of the FileData interface that reads the file straight from an FTP data
+ * connection rather than holding it in memory, so files of any size can be processed in
+ * constant memory. The data can only be read once, either through {@link #getInputStream()} or
+ * {@link #getData()}, and the input stream must be closed to release the FTP session.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPStreamFileData implements FileData {
+
+  /** The name of the file. */
+  private final String name;
+  /** The size of the file in bytes, or -1 if it is not known. */
+  private final long size;
+  /** The stream over the data connection, or null once it has been handed out. */
+  private InputStream dataStream;
+
+  /**
+   * Creates a new FTPStreamFileData.
+   * @param name The name of the file.
+   * @param size The size of the file in bytes, or -1 if it is not known.
+   * @param dataStream The stream over the data connection.
+   */
+  public FTPStreamFileData(String name, long size, InputStream dataStream) {
+    this.name = name;
+    this.size = size;
+    this.dataStream = dataStream;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Get the size of the file data.
+   * @return The size of the file data, or -1 if the server did not report it.
+   */
+  @Override
+  public long getFileSize() {
+    return size;
+  }
+
+  /**
+   * Read the whole file into memory and close the data connection. Prefer
+   * {@link #getInputStream()} for large files.
+   * @return The contents of the file.
+   * @throws Exception If the file could not be read, or has already been read.
+   */
+  @Override
+  public byte[] getData() throws Exception {
+    InputStream dataIn = getInputStream();
+    // The reported size is only a hint, since ASCII transfers translate line endings.
+    ChunkedBuffer buffer = new ChunkedBuffer(size);
+    try {
+      buffer.readFrom(dataIn);
+      return buffer.toByteArray();
+    } finally {
+      buffer.release();
+      dataIn.close();
+    }
+  }
+
+  /**
+   * Get the stream over the data connection. The stream must be closed once it has been read.
+   * @return The stream over the data connection.
+   * @throws Exception If the stream has already been handed out.
+   */
+  @Override
+  public synchronized InputStream getInputStream() throws Exception {
+    if (dataStream == null) {
+      throw new Exception("The data for file '" + name + "' has already been read");
+    }
+    InputStream toReturn = dataStream;
+    dataStream = null;
+    return toReturn;
+  }
+
+}
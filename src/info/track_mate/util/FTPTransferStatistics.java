@@ -0,0 +1,255 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An {@link FTPOperationListener} that aggregates operation timings per host: operation and
+ * failure counts, download throughput and a latency histogram for each kind of operation.
+ * <p>
+ * Latencies are recorded in power-of-two buckets of microseconds, so bucket <code>i</code> counts
+ * the operations that took between 2<sup>i</sup> and 2<sup>i+1</sup> microseconds (bucket 0 also
+ * holds anything faster). Recording an event is lock free.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FTPTransferStatistics implements FTPOperationListener {
+
+  /** The number of latency histogram buckets; the last covers about 36 minutes and upwards. */
+  public static final int HISTOGRAM_BUCKETS = 32;
+
+  /** The statistics for each host, keyed on host name. */
+  private final ConcurrentMap<String, HostStatistics> hosts = new ConcurrentHashMap<String, HostStatistics>();
+
+  /** {@inheritDoc} */
+  public void operationCompleted(FTPOperationEvent event) {
+    HostStatistics host = hosts.get(event.getHostname());
+    if (host == null) {
+      HostStatistics created = new HostStatistics();
+      host = hosts.putIfAbsent(event.getHostname(), created);
+      if (host == null) {
+        host = created;
+      }
+    }
+    host.operations.get(event.getType()).record(event);
+  }
+
+  /**
+   * Get the hosts that operations have been recorded for.
+   * @return The host names, in alphabetical order.
+   */
+  public Set<String> getHosts() {
+    return Collections.unmodifiableSet(new TreeSet<String>(hosts.keySet()));
+  }
+
+  /**
+   * Get the number of operations of a kind recorded for a host.
+   * @param hostname The host.
+   * @param type The kind of operation.
+   * @return The number of operations, including failures.
+   */
+  public long getOperationCount(String hostname, FTPOperationType type) {
+    OperationStatistics stats = getStatistics(hostname, type);
+    return stats == null ? 0 : stats.count.get();
+  }
+
+  /**
+   * Get the number of failed operations of a kind recorded for a host.
+   * @param hostname The host.
+   * @param type The kind of operation.
+   * @return The number of failed operations.
+   */
+  public long getFailureCount(String hostname, FTPOperationType type) {
+    OperationStatistics stats = getStatistics(hostname, type);
+    return stats == null ? 0 : stats.failures.get();
+  }
+
+  /**
+   * Get the total number of file bytes downloaded from a host.
+   * @param hostname The host.
+   * @return The number of bytes.
+   */
+  public long getBytesDownloaded(String hostname) {
+    OperationStatistics stats = getStatistics(hostname, FTPOperationType.DOWNLOAD);
+    return stats == null ? 0 : stats.bytes.get();
+  }
+
+  /**
+   * Get the average download rate from a host, measured over the time spent in transfers only.
+   * @param hostname The host.
+   * @return The bytes downloaded per second, or 0 if nothing has been downloaded.
+   */
+  public double getBytesPerSecond(String hostname) {
+    OperationStatistics stats = getStatistics(hostname, FTPOperationType.DOWNLOAD);
+    if (stats == null) {
+      return 0;
+    }
+    long nanos = stats.transferNanos.get();
+    return nanos <= 0 ? 0 : stats.bytes.get() * 1000000000.0 / nanos;
+  }
+
+  /**
+   * Get a copy of the latency histogram for a kind of operation on a host.
+   * @param hostname The host.
+   * @param type The kind of operation.
+   * @return An array of {@link #HISTOGRAM_BUCKETS} counts, as described in the class comment.
+   */
+  public long[] getLatencyHistogram(String hostname, FTPOperationType type) {
+    long[] histogram = new long[HISTOGRAM_BUCKETS];
+    OperationStatistics stats = getStatistics(hostname, type);
+    if (stats != null) {
+      for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+        histogram[i] = stats.latencies.get(i);
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Estimate a latency percentile for a kind of operation on a host from its histogram. The
+   * result is the upper bound of the bucket holding the percentile, so it is accurate to within a
+   * factor of two.
+   * @param hostname The host.
+   * @param type The kind of operation.
+   * @param percentile The percentile to estimate, between 0 and 100.
+   * @return The estimated latency in milliseconds, or 0 if no operations have been recorded.
+   */
+  public double getLatencyPercentileMillis(String hostname, FTPOperationType type, double percentile) {
+    long[] histogram = getLatencyHistogram(hostname, type);
+    long total = 0;
+    for (long count : histogram) {
+      total += count;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+    long seen = 0;
+    for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+      seen += histogram[i];
+      if (seen >= rank && seen > 0) {
+        return (1L << (i + 1)) / 1000.0;
+      }
+    }
+    return (1L << HISTOGRAM_BUCKETS) / 1000.0;
+  }
+
+  /**
+   * Discard everything recorded so far.
+   */
+  public void reset() {
+    hosts.clear();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (String hostname : getHosts()) {
+      sb.append(hostname).append(": ");
+      sb.append(String.format("%.0f bytes/s", getBytesPerSecond(hostname)));
+      for (FTPOperationType type : FTPOperationType.values()) {
+        long count = getOperationCount(hostname, type);
+        if (count > 0) {
+          sb.append(String.format(", %s %d (%d failed, p50 %.1fms, p99 %.1fms)", type, count,
+                  getFailureCount(hostname, type), getLatencyPercentileMillis(hostname, type, 50),
+                  getLatencyPercentileMillis(hostname, type, 99)));
+        }
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Get the statistics for a kind of operation on a host.
+   * @param hostname The host.
+   * @param type The kind of operation.
+   * @return The statistics, or null if nothing has been recorded for the host.
+   */
+  private OperationStatistics getStatistics(String hostname, FTPOperationType type) {
+    HostStatistics host = hosts.get(hostname);
+    return host == null ? null : host.operations.get(type);
+  }
+
+  /**
+   * Get the histogram bucket for a duration.
+   * @param durationNanos The duration in nanoseconds.
+   * @return The bucket index.
+   */
+  private static int toBucket(long durationNanos) {
+    long micros = durationNanos / 1000;
+    if (micros <= 1) {
+      return 0;
+    }
+    return Math.min(63 - Long.numberOfLeadingZeros(micros), HISTOGRAM_BUCKETS - 1);
+  }
+
+  /**
+   * The statistics for every kind of operation on a single host.
+   */
+  private static final class HostStatistics {
+
+    /** The statistics for each kind of operation. Filled once and never modified afterwards. */
+    private final Map<FTPOperationType, OperationStatistics> operations =
+            new EnumMap<FTPOperationType, OperationStatistics>(FTPOperationType.class);
+
+    private HostStatistics() {
+      for (FTPOperationType type : FTPOperationType.values()) {
+        operations.put(type, new OperationStatistics());
+      }
+    }
+  }
+
+  /**
+   * The statistics for a single kind of operation on a single host.
+   */
+  private static final class OperationStatistics {
+
+    /** The number of operations. */
+    private final AtomicLong count = new AtomicLong();
+    /** The number of failed operations. */
+    private final AtomicLong failures = new AtomicLong();
+    /** The number of bytes transferred. */
+    private final AtomicLong bytes = new AtomicLong();
+    /** The time spent in operations that transferred data. */
+    private final AtomicLong transferNanos = new AtomicLong();
+    /** The latency histogram. */
+    private final AtomicLongArray latencies = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    private void record(FTPOperationEvent event) {
+      count.incrementAndGet();
+      if (!event.isSuccessful()) {
+        failures.incrementAndGet();
+      }
+      if (event.getBytesTransferred() > 0) {
+        bytes.addAndGet(event.getBytesTransferred());
+        transferNanos.addAndGet(event.getDurationNanos());
+      }
+      latencies.incrementAndGet(toBucket(event.getDurationNanos()));
+    }
+  }
+}
@@ -0,0 +1,534 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe cache of file contents in memory, bounded by the total number of bytes held
+ * rather than the number of files. It suits small, frequently read files such as lookup tables and
+ * templates, which would otherwise be read from disk and copied into a new array on every use.
+ * <p>
+ * A cached entry is checked against its source before it is used: if the source's size, or for a
+ * {@link DiskFileData} its modification time, has changed the entry is discarded and the source
+ * read again. Checks can be limited to one per {@link #setValidationIntervalMillis(long) interval}
+ * to save the cost of a stat on every hit.
+ * <p>
+ * When the cache is full the least recently used entries are evicted. If a spill directory is
+ * set, evicted entries are written there instead of being discarded, up to a separate byte budget,
+ * and promoted back into memory on their next use.
+ * <p>
+ * The contents returned by the cache are shared between callers and must not be modified. Two
+ * threads missing on the same file at once may both read it.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FileDataCache {
+
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(FileDataCache.class);
+
+  /** The maximum number of bytes held in memory. */
+  private final long maxBytes;
+  /** The entries held in memory, in least recently used order. Guarded by this. */
+  private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+  /** The entries held in the spill directory, in least recently used order. Guarded by this. */
+  private final LinkedHashMap<String, CacheEntry> spilledEntries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+  /** The number of bytes held in memory. Guarded by this. */
+  private long currentBytes;
+  /** The number of bytes held in the spill directory. Guarded by this. */
+  private long currentSpillBytes;
+  /** The directory evicted entries are spilled to, or null if they are discarded. */
+  private File spillDirectory;
+  /** The maximum number of bytes held in the spill directory. */
+  private long maxSpillBytes;
+  /** The minimum time between checks of an entry against its source. */
+  private volatile long validationIntervalMillis;
+  /** The number of lookups answered from memory. */
+  private final AtomicLong hitCount = new AtomicLong();
+  /** The number of lookups answered from the spill directory. */
+  private final AtomicLong spillHitCount = new AtomicLong();
+  /** The number of lookups that read the source. */
+  private final AtomicLong missCount = new AtomicLong();
+  /** The number of entries evicted from memory. */
+  private final AtomicLong evictionCount = new AtomicLong();
+  /** The number of entries evicted from the spill directory. */
+  private final AtomicLong spillEvictionCount = new AtomicLong();
+  /** The number of entries discarded because their source had changed. */
+  private final AtomicLong invalidationCount = new AtomicLong();
+
+  /**
+   * Creates a new FileDataCache with no spill directory.
+   * @param maxBytes The maximum number of bytes to hold in memory.
+   */
+  public FileDataCache(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Byte budget must not be negative: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Get the contents of a file on disk through the cache, keyed on the file's absolute path.
+   * Other kinds of file have no name that is unique to them, so must be given a key with
+   * {@link #get(String, FileData)}.
+   * @param source The file.
+   * @return The file's contents, from the cache if they are still valid.
+   * @throws IllegalArgumentException If the file is not a {@link DiskFileData}.
+   * @throws Exception If the file had to be read and could not be.
+   */
+  public FileData get(FileData source) throws Exception {
+    if (!(source instanceof DiskFileData)) {
+      throw new IllegalArgumentException("A key is needed to cache " + source.getName());
+    }
+    return get(((DiskFileData) source).getFile().getAbsolutePath(), source);
+  }
+
+  /**
+   * Get the contents of a file through the cache.
+   * @param key The key to cache the file under, unique to the file.
+   * @param source The file.
+   * @return The file's contents, from the cache if they are still valid.
+   * @throws Exception If the file had to be read and could not be.
+   */
+  public FileData get(String key, FileData source) throws Exception {
+    CacheEntry entry;
+    boolean spilled = false;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = spilledEntries.get(key);
+        spilled = entry != null;
+      }
+    }
+    if (entry != null && isValid(entry, source)) {
+      if (!spilled) {
+        hitCount.incrementAndGet();
+        return entry.fileData;
+      }
+      byte[] data = readSpilled(entry);
+      if (data != null) {
+        spillHitCount.incrementAndGet();
+        CacheEntry promoted = new CacheEntry(key, source.getName(), data, data.length, entry.sourceSize, entry.lastModified);
+        promoted.validatedAtMillis = entry.validatedAtMillis;
+        store(promoted);
+        return promoted.fileData;
+      }
+    } else if (entry != null) {
+      invalidationCount.incrementAndGet();
+      invalidate(key);
+    }
+    missCount.incrementAndGet();
+    // Capture the validators before reading, so that a change made during the read is noticed.
+    long sourceSize = source.getFileSize();
+    long lastModified = getLastModified(source);
+    byte[] data = source.getData();
+    CacheEntry loaded = new CacheEntry(key, source.getName(), data, data.length, sourceSize, lastModified);
+    if (data.length <= maxBytes) {
+      store(loaded);
+    }
+    return loaded.fileData;
+  }
+
+  /**
+   * Discard the entry cached under a key, from memory and from the spill directory.
+   * @param key The key.
+   */
+  public void invalidate(String key) {
+    CacheEntry spilled;
+    synchronized (this) {
+      CacheEntry entry = entries.remove(key);
+      if (entry != null) {
+        currentBytes -= entry.fileSize;
+      }
+      spilled = spilledEntries.remove(key);
+      if (spilled != null) {
+        currentSpillBytes -= spilled.fileSize;
+      }
+    }
+    deleteSpilled(spilled);
+  }
+
+  /**
+   * Discard every entry.
+   */
+  public void invalidateAll() {
+    List<CacheEntry> spilled;
+    synchronized (this) {
+      entries.clear();
+      currentBytes = 0;
+      spilled = new ArrayList<CacheEntry>(spilledEntries.values());
+      spilledEntries.clear();
+      currentSpillBytes = 0;
+    }
+    for (CacheEntry entry : spilled) {
+      deleteSpilled(entry);
+    }
+  }
+
+  /**
+   * Set the directory that entries evicted from memory are spilled to. Anything already spilled
+   * is discarded.
+   * @param directory The spill directory, or null to discard evicted entries.
+   * @param maxSpillBytes The maximum number of bytes to hold in the spill directory.
+   * @throws IOException If the directory could not be created.
+   */
+  public void setSpillDirectory(File directory, long maxSpillBytes) throws IOException {
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create directory: " + directory);
+    }
+    List<CacheEntry> spilled;
+    synchronized (this) {
+      spilled = new ArrayList<CacheEntry>(spilledEntries.values());
+      spilledEntries.clear();
+      currentSpillBytes = 0;
+      this.spillDirectory = directory;
+      this.maxSpillBytes = maxSpillBytes;
+    }
+    for (CacheEntry entry : spilled) {
+      deleteSpilled(entry);
+    }
+  }
+
+  /**
+   * Set the {@link #validationIntervalMillis}. Within the interval after an entry was checked
+   * against its source it is used without checking again, so a change to the source may go
+   * unnoticed for up to the interval. The default of 0 checks on every lookup.
+   * @param value
+   */
+  public void setValidationIntervalMillis(long value) {
+    this.validationIntervalMillis = value;
+  }
+
+  /**
+   * Get the number of bytes held in memory.
+   * @return The number of bytes.
+   */
+  public synchronized long getCurrentBytes() {
+    return currentBytes;
+  }
+
+  /**
+   * Get the number of bytes held in the spill directory.
+   * @return The number of bytes.
+   */
+  public synchronized long getCurrentSpillBytes() {
+    return currentSpillBytes;
+  }
+
+  /**
+   * Get the number of entries held in memory.
+   * @return The number of entries.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Get the maximum number of bytes held in memory.
+   * @return the {@link #maxBytes}.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Get the number of lookups answered from memory.
+   * @return the {@link #hitCount}.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Get the number of lookups answered from the spill directory.
+   * @return the {@link #spillHitCount}.
+   */
+  public long getSpillHitCount() {
+    return spillHitCount.get();
+  }
+
+  /**
+   * Get the number of lookups that read the source.
+   * @return the {@link #missCount}.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Get the number of entries evicted from memory, whether spilled or discarded.
+   * @return the {@link #evictionCount}.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Get the number of entries evicted from the spill directory.
+   * @return the {@link #spillEvictionCount}.
+   */
+  public long getSpillEvictionCount() {
+    return spillEvictionCount.get();
+  }
+
+  /**
+   * Get the number of entries discarded because their source had changed.
+   * @return the {@link #invalidationCount}.
+   */
+  public long getInvalidationCount() {
+    return invalidationCount.get();
+  }
+
+  /**
+   * Get the proportion of lookups answered without reading the source.
+   * @return The hit rate between 0 and 1, or 0 if there have been no lookups.
+   */
+  public double getHitRate() {
+    long hits = hitCount.get() + spillHitCount.get();
+    long total = hits + missCount.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("FileDataCache[%d/%d bytes, %d entries, hit rate %.3f, %d hits, %d spill hits, %d misses, "
+            + "%d evictions, %d spill evictions, %d invalidations]", getCurrentBytes(), maxBytes, size(), getHitRate(),
+            getHitCount(), getSpillHitCount(), getMissCount(), getEvictionCount(), getSpillEvictionCount(),
+            getInvalidationCount());
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Check whether an entry still matches its source.
+   * @param entry The cached entry.
+   * @param source The source it was read from.
+   * @return true if the entry can be used, else false.
+   */
+  private boolean isValid(CacheEntry entry, FileData source) {
+    long now = System.currentTimeMillis();
+    if (now - entry.validatedAtMillis < validationIntervalMillis) {
+      return true;
+    }
+    if (source.getFileSize() != entry.sourceSize || getLastModified(source) != entry.lastModified) {
+      return false;
+    }
+    entry.validatedAtMillis = now;
+    return true;
+  }
+
+  /**
+   * Get the modification time of a source, where it has one.
+   * @param source The source.
+   * @return The modification time, or 0 if the source doesn't record one.
+   */
+  private static long getLastModified(FileData source) {
+    if (source instanceof DiskFileData) {
+      return ((DiskFileData) source).getLastModified();
+    }
+    return 0;
+  }
+
+  /**
+   * Add an entry to memory, replacing any entry under the same key in either tier, then evict
+   * least recently used entries until the cache is within its budget.
+   * @param entry The entry to add.
+   */
+  private void store(CacheEntry entry) {
+    List<CacheEntry> toSpill = new ArrayList<CacheEntry>();
+    CacheEntry replacedSpill;
+    synchronized (this) {
+      CacheEntry replaced = entries.put(entry.key, entry);
+      if (replaced != null) {
+        currentBytes -= replaced.fileSize;
+      }
+      replacedSpill = spilledEntries.remove(entry.key);
+      if (replacedSpill != null) {
+        currentSpillBytes -= replacedSpill.fileSize;
+      }
+      currentBytes += entry.fileSize;
+      Iterator<CacheEntry> eldest = entries.values().iterator();
+      while (currentBytes > maxBytes && eldest.hasNext()) {
+        CacheEntry evicted = eldest.next();
+        eldest.remove();
+        currentBytes -= evicted.fileSize;
+        evictionCount.incrementAndGet();
+        if (spillDirectory != null && evicted.fileSize <= maxSpillBytes) {
+          toSpill.add(evicted);
+        }
+      }
+    }
+    deleteSpilled(replacedSpill);
+    for (CacheEntry evicted : toSpill) {
+      spill(evicted);
+    }
+  }
+
+  /**
+   * Write an entry evicted from memory to the spill directory, then evict least recently used
+   * spilled entries until the spill directory is within its budget.
+   * @param entry The evicted entry.
+   */
+  private void spill(CacheEntry entry) {
+    File directory;
+    synchronized (this) {
+      directory = spillDirectory;
+    }
+    if (directory == null) {
+      return;
+    }
+    try {
+      File spillFile = File.createTempFile("spill", ".dat", directory);
+      FileOutputStream spillOut = new FileOutputStream(spillFile);
+      try {
+        spillOut.write(entry.data);
+      } finally {
+        spillOut.close();
+      }
+      CacheEntry spilled = new CacheEntry(entry.key, entry.fileData.getName(), null, entry.fileSize, entry.sourceSize,
+              entry.lastModified);
+      spilled.validatedAtMillis = entry.validatedAtMillis;
+      spilled.spillFile = spillFile;
+      List<CacheEntry> toDelete = new ArrayList<CacheEntry>();
+      synchronized (this) {
+        if (entries.containsKey(entry.key) || directory != spillDirectory) {
+          // The entry was reloaded, or the spill directory changed, while it was being written.
+          toDelete.add(spilled);
+        } else {
+          CacheEntry replaced = spilledEntries.put(entry.key, spilled);
+          if (replaced != null) {
+            currentSpillBytes -= replaced.fileSize;
+            toDelete.add(replaced);
+          }
+          currentSpillBytes += spilled.fileSize;
+          Iterator<CacheEntry> eldest = spilledEntries.values().iterator();
+          while (currentSpillBytes > maxSpillBytes && eldest.hasNext()) {
+            CacheEntry evicted = eldest.next();
+            eldest.remove();
+            currentSpillBytes -= evicted.fileSize;
+            spillEvictionCount.incrementAndGet();
+            toDelete.add(evicted);
+          }
+        }
+      }
+      for (CacheEntry evicted : toDelete) {
+        deleteSpilled(evicted);
+      }
+    } catch (IOException e) {
+      logger.warn("Failed to spill cache entry " + entry.key + " to " + directory, e);
+    }
+  }
+
+  /**
+   * Read a spilled entry back from the spill directory.
+   * @param entry The spilled entry.
+   * @return The entry's contents, or null if they could not be read.
+   */
+  private byte[] readSpilled(CacheEntry entry) {
+    try {
+      return new DiskFileData(entry.spillFile).getData();
+    } catch (Exception e) {
+      logger.debug("Failed to read spilled cache entry " + entry.key, e);
+      return null;
+    }
+  }
+
+  /**
+   * Delete the spill file of an entry.
+   * @param entry The spilled entry, or null.
+   */
+  private static void deleteSpilled(CacheEntry entry) {
+    if (entry != null && entry.spillFile != null && !entry.spillFile.delete() && entry.spillFile.exists()) {
+      logger.warn("Failed to delete spill file: " + entry.spillFile);
+    }
+  }
+
+  /**
+   * A file held by the cache, in memory or in the spill directory.
+   */
+  private static final class CacheEntry {
+
+    /** The key the entry is cached under. */
+    private final String key;
+    /** The contents, or null if the entry is spilled. */
+    private final byte[] data;
+    /** The view of the contents handed to callers. */
+    private final FileData fileData;
+    /** The number of bytes the entry holds. */
+    private final long fileSize;
+    /** The size of the source when it was read. */
+    private final long sourceSize;
+    /** The modification time of the source when it was read, or 0. */
+    private final long lastModified;
+    /** The time the entry was last checked against its source. */
+    private volatile long validatedAtMillis;
+    /** The file holding the contents of a spilled entry, or null. */
+    private File spillFile;
+
+    private CacheEntry(String key, String name, byte[] data, long fileSize, long sourceSize, long lastModified) {
+      this.key = key;
+      this.data = data;
+      this.fileData = new CachedFileData(name, data);
+      this.fileSize = fileSize;
+      this.sourceSize = sourceSize;
+      this.lastModified = lastModified;
+      this.validatedAtMillis = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * A read-only view of cached contents.
+   */
+  private static final class CachedFileData implements FileData {
+
+    /** The name of the file. */
+    private final String name;
+    /** The contents, shared with the cache. */
+    private final byte[] data;
+
+    private CachedFileData(String name, byte[] data) {
+      this.name = name;
+      this.data = data;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getFileSize() {
+      return data == null ? 0 : data.length;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    public InputStream getInputStream() {
+      return new ByteArrayInputStream(data);
+    }
+  }
+}
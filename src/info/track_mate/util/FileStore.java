@@ -0,0 +1,465 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * A directory of files addressed by name, such as the store behind {@link DiskFileData}.
+ * <p>
+ * A store can be flat, holding every file directly in its root directory, or sharded, spreading
+ * files over a tree of subdirectories chosen from a hash of the file name, so that no directory
+ * grows too large. <code>fanOut</code> is the number of subdirectories at each level and
+ * <code>depth</code> the number of levels; a depth of 0 is a flat store. For example, with a
+ * fan-out of 256 and a depth of 2, "report.csv" might be stored as <code>root/3f/a0/report.csv</code>.
+ * <p>
+ * FileStores are immutable and thread safe. The default store is configured once from
+ * <code>fileStoreConfig.properties</code>:
+ * <ul>
+ *   <li><code>fileStore.directory.path</code> - the root directory (required).</li>
+ *   <li><code>fileStore.shard.fanOut</code> - the fan-out (default 256).</li>
+ *   <li><code>fileStore.shard.depth</code> - the depth (default 0, flat).</li>
+ *   <li><code>fileStore.write.mode</code> - the {@link WriteMode} of the store's files (default
+ *   IN_PLACE).</li>
+ *   <li><code>fileStore.compression.codec</code> - the {@link Compression} of newly written data
+ *   (default NONE). Files are only decompressed while a codec is set, so a store holding
+ *   compressed files must keep one.</li>
+ *   <li><code>fileStore.compression.level</code> - the compression level, from 0 to 9 (default
+ *   -1, the codec's default).</li>
+ * </ul>
+ * Changing the layout of an existing store requires running {@link #migrate(int)}, or this
+ * class's main method, to move the files into their new places.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class FileStore {
+
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(FileStore.class);
+
+  /** The name of the properties file containing the config values for the default store. */
+  public static final String CONFIG_FILENAME = "fileStoreConfig.properties";
+  /** The key to extract the path to the store's root directory. */
+  public static final String CONFIG_KEY_DIRECTORY_PATH = "fileStore.directory.path";
+  /** The key to extract the number of subdirectories at each level of a sharded store. */
+  public static final String CONFIG_KEY_SHARD_FAN_OUT = "fileStore.shard.fanOut";
+  /** The key to extract the number of levels of subdirectories of a sharded store. */
+  public static final String CONFIG_KEY_SHARD_DEPTH = "fileStore.shard.depth";
+
+  /** The key to extract the write mode of the store's files. */
+  public static final String CONFIG_KEY_WRITE_MODE = "fileStore.write.mode";
+  /** The key to extract the codec newly written data is compressed with. */
+  public static final String CONFIG_KEY_COMPRESSION_CODEC = "fileStore.compression.codec";
+  /** The key to extract the level newly written data is compressed at. */
+  public static final String CONFIG_KEY_COMPRESSION_LEVEL = "fileStore.compression.level";
+
+  /** The fan-out used when none is configured. */
+  public static final int DEFAULT_FAN_OUT = 256;
+  /** The depth used when none is configured, which makes the store flat. */
+  public static final int DEFAULT_DEPTH = 0;
+
+  /** The FNV-1a 64 bit offset basis. */
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  /** The FNV-1a 64 bit prime. */
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /** The default store, or null if it has not been configured yet. */
+  private static FileStore defaultStore;
+
+  /** The root directory of the store. */
+  private final File rootDirectory;
+  /** The number of subdirectories at each level. */
+  private final int fanOut;
+  /** The number of levels of subdirectories. */
+  private final int depth;
+  /** The number of hex digits in each subdirectory name. */
+  private final int shardNameLength;
+  /** The way new data is written over the store's files. */
+  private final WriteMode writeMode;
+  /** The syncer shared by durable writes to the store, or null. */
+  private final GroupCommitSyncer syncer;
+  /** The codec newly written data is compressed with. */
+  private final Compression compression;
+  /** The level newly written data is compressed at. */
+  private final int compressionLevel;
+
+  /**
+   * Creates a new flat FileStore.
+   * @param rootDirectory The root directory of the store.
+   */
+  public FileStore(File rootDirectory) {
+    this(rootDirectory, DEFAULT_FAN_OUT, DEFAULT_DEPTH);
+  }
+
+  /**
+   * Creates a new FileStore.
+   * @param rootDirectory The root directory of the store.
+   * @param fanOut The number of subdirectories at each level.
+   * @param depth The number of levels of subdirectories, or 0 for a flat store.
+   */
+  public FileStore(File rootDirectory, int fanOut, int depth) {
+    this(rootDirectory, fanOut, depth, WriteMode.IN_PLACE, null);
+  }
+
+  /**
+   * Creates a new FileStore.
+   * @param rootDirectory The root directory of the store.
+   * @param fanOut The number of subdirectories at each level.
+   * @param depth The number of levels of subdirectories, or 0 for a flat store.
+   * @param writeMode The way new data is written over the store's files.
+   * @param syncer The syncer for durable writes, or null to sync each write on its own. Durable
+   * writes each sync their own temporary file, so a syncer can't share their syncs.
+   */
+  public FileStore(File rootDirectory, int fanOut, int depth, WriteMode writeMode, GroupCommitSyncer syncer) {
+    this(rootDirectory, fanOut, depth, writeMode, syncer, Compression.NONE, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Creates a new FileStore.
+   * @param rootDirectory The root directory of the store.
+   * @param fanOut The number of subdirectories at each level.
+   * @param depth The number of levels of subdirectories, or 0 for a flat store.
+   * @param writeMode The way new data is written over the store's files.
+   * @param syncer The syncer for durable writes, or null to sync each write on its own. Durable
+   * writes each sync their own temporary file, so a syncer can't share their syncs.
+   * @param compression The codec newly written data is compressed with.
+   * @param compressionLevel The level newly written data is compressed at, from 0 to 9, or
+   * {@link Deflater#DEFAULT_COMPRESSION}.
+   */
+  public FileStore(File rootDirectory, int fanOut, int depth, WriteMode writeMode, GroupCommitSyncer syncer,
+      Compression compression, int compressionLevel) {
+    if (fanOut < 2 || depth < 0) {
+      throw new IllegalArgumentException("Invalid shard layout: fanOut=" + fanOut + ", depth=" + depth);
+    }
+    if (depth * Math.log(fanOut) > 63 * Math.log(2)) {
+      throw new IllegalArgumentException("Too many shards: fanOut=" + fanOut + ", depth=" + depth);
+    }
+    if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+    }
+    this.rootDirectory = rootDirectory;
+    this.fanOut = fanOut;
+    this.depth = depth;
+    this.shardNameLength = Integer.toHexString(fanOut - 1).length();
+    this.writeMode = writeMode;
+    this.syncer = syncer;
+    this.compression = compression;
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * Get the default store, reading its configuration from {@link #CONFIG_FILENAME} the first
+   * time it is needed.
+   * @return The default store.
+   * @throws Exception If the configuration could not be read or is invalid.
+   */
+  public static synchronized FileStore getDefault() throws Exception {
+    if (defaultStore == null) {
+      defaultStore = fromConfig(new Config(CONFIG_FILENAME));
+    }
+    return defaultStore;
+  }
+
+  /**
+   * Create a store from a configuration file, using the keys described in the class comment.
+   * @param config The configuration.
+   * @return The configured store.
+   * @throws Exception If the configuration could not be read or is invalid.
+   */
+  public static FileStore fromConfig(Config config) throws Exception {
+    String directoryPath = config.getProperty(CONFIG_KEY_DIRECTORY_PATH);
+    if (directoryPath == null) {
+      throw new Exception("No file store directory configured: " + CONFIG_KEY_DIRECTORY_PATH);
+    }
+    int fanOut = config.getInt(CONFIG_KEY_SHARD_FAN_OUT, DEFAULT_FAN_OUT);
+    int depth = config.getInt(CONFIG_KEY_SHARD_DEPTH, DEFAULT_DEPTH);
+    WriteMode writeMode = config.getEnum(CONFIG_KEY_WRITE_MODE, WriteMode.class, WriteMode.IN_PLACE);
+    Compression compression = config.getEnum(CONFIG_KEY_COMPRESSION_CODEC, Compression.class, Compression.NONE);
+    int compressionLevel = config.getInt(CONFIG_KEY_COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION,
+        Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION);
+    // Each durable write syncs its own temporary file, so a syncer would have nothing to share.
+    return new FileStore(new File(directoryPath), fanOut, depth, writeMode, null, compression, compressionLevel);
+  }
+
+  /**
+   * Get the location of a file in the store. The file may not exist yet, and neither may its
+   * directory; {@link DiskFileData} creates the directory when the file is first written.
+   * @param name The name of the file.
+   * @return The location of the file.
+   */
+  public File getFile(String name) {
+    if (depth == 0) {
+      return new File(rootDirectory, name);
+    }
+    return new File(getShardDirectory(name), name);
+  }
+
+  /**
+   * Get a DiskFileData for a file in the store.
+   * @param name The name of the file.
+   * @return The DiskFileData, which may not exist on disk yet.
+   */
+  public DiskFileData getFileData(String name) {
+    return new DiskFileData(name, this);
+  }
+
+  /**
+   * Migrate a store laid out with this store's depth. See {@link #migrate(int)}.
+   * @return The number of files moved.
+   * @throws Exception If the store could not be migrated.
+   */
+  public int migrate() throws Exception {
+    return migrate(depth);
+  }
+
+  /**
+   * Move every file that isn't where this store's layout puts it into its proper place, then
+   * remove the shard directories left empty. This converts a flat store into a sharded one, or a
+   * store from one shard layout to another. The store must not be in use while it is migrated.
+   * <p>
+   * Only the root and shard directories are searched: directories named with hex digits, at most
+   * <code>fromDepth</code> levels below the root. Any other directory is part of the names of the
+   * files beneath it, so a file stored as <code>reports/2009.csv</code> keeps that name. Every move
+   * is planned before any is made, and if two files would land in the same place, or a file's new
+   * place is already taken, nothing is moved.
+   * @param fromDepth The number of levels of shard directories in the store's current layout.
+   * @return The number of files moved.
+   * @throws Exception If the store could not be migrated.
+   */
+  public int migrate(int fromDepth) throws Exception {
+    if (!rootDirectory.isDirectory()) {
+      throw new Exception("File store directory does not exist: " + rootDirectory);
+    }
+    List<File> shardDirectories = new ArrayList<File>();
+    Map<File, File> moves = new LinkedHashMap<File, File>();
+    planMoves(rootDirectory, 0, "", fromDepth, shardDirectories, moves);
+    Map<File, File> sources = new HashMap<File, File>();
+    for (Map.Entry<File, File> move : moves.entrySet()) {
+      File target = move.getValue();
+      File other = sources.put(target, move.getKey());
+      if (other != null) {
+        throw new Exception("Cannot migrate " + rootDirectory + ", " + other + " and " + move.getKey()
+            + " both belong at " + target);
+      }
+      if (target.exists()) {
+        throw new Exception("Cannot migrate " + move.getKey() + ", " + target + " already exists");
+      }
+    }
+    int moved = 0;
+    for (Map.Entry<File, File> move : moves.entrySet()) {
+      File targetDirectory = move.getValue().getParentFile();
+      if (!targetDirectory.isDirectory() && !targetDirectory.mkdirs()) {
+        throw new Exception("Cannot create directory: " + targetDirectory);
+      }
+      new DiskFileData(move.getKey()).moveTo(move.getValue());
+      moved++;
+      if (moved % 10000 == 0) {
+        logger.info("Migrated " + moved + " of " + moves.size() + " files");
+      }
+    }
+    // Children were added after their parents, so deleting in reverse removes empty trees.
+    for (int i = shardDirectories.size() - 1; i >= 0; i--) {
+      String[] remaining = shardDirectories.get(i).list();
+      if (remaining != null && remaining.length == 0) {
+        shardDirectories.get(i).delete();
+      }
+    }
+    logger.info("Migrated " + moved + " files in " + rootDirectory);
+    return moved;
+  }
+
+  /**
+   * Get the root directory of the store.
+   * @return the {@link #rootDirectory}.
+   */
+  public File getRootDirectory() {
+    return rootDirectory;
+  }
+
+  /**
+   * Get the number of subdirectories at each level.
+   * @return the {@link #fanOut}.
+   */
+  public int getFanOut() {
+    return fanOut;
+  }
+
+  /**
+   * Get the number of levels of subdirectories.
+   * @return the {@link #depth}, which is 0 for a flat store.
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Get the way new data is written over the store's files.
+   * @return the {@link #writeMode}.
+   */
+  public WriteMode getWriteMode() {
+    return writeMode;
+  }
+
+  /**
+   * Get the syncer shared by durable writes to the store.
+   * @return the {@link #syncer}, or null if each write syncs on its own.
+   */
+  public GroupCommitSyncer getSyncer() {
+    return syncer;
+  }
+
+  /**
+   * Get the codec newly written data is compressed with.
+   * @return the {@link #compression}.
+   */
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Get the level newly written data is compressed at.
+   * @return the {@link #compressionLevel}.
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  @Override
+  public String toString() {
+    return "FileStore[" + rootDirectory + ", fanOut=" + fanOut + ", depth=" + depth + ", writeMode=" + writeMode
+        + ", compression=" + compression + "]";
+  }
+
+  /**
+   * Migrate the default store, or the store described by the specified properties file, to the
+   * layout in its configuration.
+   * @param args An optional path to a properties file in place of {@link #CONFIG_FILENAME}, then
+   *          optionally the depth of the store's current layout if it differs from the configured
+   *          depth.
+   * @throws Exception If the migration failed.
+   */
+  public static void main(String[] args) throws Exception {
+    FileStore store = args.length > 0 ? fromConfig(new Config(args[0])) : getDefault();
+    System.out.println("Migrating " + store);
+    int moved = args.length > 1 ? store.migrate(Integer.parseInt(args[1])) : store.migrate();
+    System.out.println("Moved " + moved + " files");
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Plan the moves for the files in a directory and, recursively, beneath it.
+   * @param directory The directory to search.
+   * @param level How many shard directories below the root the directory is.
+   * @param prefix The part of their names the files in the directory share, empty in the root and
+   *          shard directories.
+   * @param fromDepth The number of levels of shard directories in the current layout.
+   * @param shardDirectories Receives the shard directories searched, parents first.
+   * @param moves Receives each file that must move, mapped to where it belongs.
+   * @throws Exception If a directory could not be listed.
+   */
+  private void planMoves(File directory, int level, String prefix, int fromDepth, List<File> shardDirectories,
+      Map<File, File> moves) throws Exception {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      throw new Exception("Cannot list directory: " + directory);
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        if (prefix.length() == 0 && level < fromDepth && isShardName(child.getName())) {
+          shardDirectories.add(child);
+          planMoves(child, level + 1, prefix, fromDepth, shardDirectories, moves);
+        } else {
+          planMoves(child, level, prefix + child.getName() + '/', fromDepth, shardDirectories, moves);
+        }
+        continue;
+      }
+      File target = getFile(prefix + child.getName());
+      if (!target.equals(child)) {
+        moves.put(child, target);
+      }
+    }
+  }
+
+  /**
+   * Check whether a directory name could be a shard's, that is up to 8 lower case hex digits.
+   * @param name The directory name.
+   * @return True if the name could be a shard's.
+   */
+  private static boolean isShardName(String name) {
+    if (name.length() == 0 || name.length() > 8) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the directory a file belongs in under a sharded layout.
+   * @param name The name of the file.
+   * @return The shard directory.
+   */
+  private File getShardDirectory(String name) {
+    long hash = hash(name) & Long.MAX_VALUE;
+    StringBuilder path = new StringBuilder(depth * (shardNameLength + 1));
+    for (int level = 0; level < depth; level++) {
+      if (level > 0) {
+        path.append(File.separatorChar);
+      }
+      String shard = Integer.toHexString((int) (hash % fanOut));
+      for (int i = shard.length(); i < shardNameLength; i++) {
+        path.append('0');
+      }
+      path.append(shard);
+      hash /= fanOut;
+    }
+    return new File(rootDirectory, path.toString());
+  }
+
+  /**
+   * Hash a file name with 64 bit FNV-1a over its UTF-8 bytes, which is stable across JVMs and
+   * spreads similar names well.
+   * @param name The name to hash.
+   * @return The hash.
+   */
+  private static long hash(String name) {
+    byte[] bytes;
+    try {
+      bytes = name.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is not supported", e);
+    }
+    long hash = FNV_OFFSET_BASIS;
+    for (byte b : bytes) {
+      hash ^= b & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded, thread safe list of free objects for reuse, shared by the buffer pools in this
+ * package. It never blocks and never allocates: callers create an object when {@link #poll()}
+ * finds none, and an object offered while the list is full is left for the garbage collector.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+final class FreeList<T> {
+
+  /** The maximum number of free objects kept. */
+  private final int maxSize;
+  /** The free objects. */
+  private final Queue<T> free = new ConcurrentLinkedQueue<T>();
+  /** The number of objects in {@link #free}, tracked separately as the queue's size() is slow. */
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * Creates a new, empty FreeList.
+   * @param maxSize The maximum number of free objects to keep.
+   */
+  FreeList(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Take a free object.
+   * @return A free object, or null if there is none.
+   */
+  T poll() {
+    T object = free.poll();
+    if (object != null) {
+      size.decrementAndGet();
+    }
+    return object;
+  }
+
+  /**
+   * Hand an object back for reuse. The caller must not use the object afterwards.
+   * @param object The object.
+   * @return true if the object was kept, or false if the list was full.
+   */
+  boolean offer(T object) {
+    if (size.incrementAndGet() > maxSize) {
+      size.decrementAndGet();
+      return false;
+    }
+    free.offer(object);
+    return true;
+  }
+
+  /**
+   * Get the number of free objects held.
+   * @return The number of free objects.
+   */
+  int size() {
+    return size.get();
+  }
+}
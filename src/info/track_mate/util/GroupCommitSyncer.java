@@ -0,0 +1,161 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares fsyncs of the same file between concurrent writers. This is group commit for files that
+ * many writers append to, such as a journal or index log: a writer asking for a sync becomes the
+ * leader if no sync of that file is in progress and syncs everything appended so far, for itself
+ * and every writer that asked before the sync began. Writers that ask while a sync is in progress
+ * wait for it to finish and then share the next one, so however many writers append to the file
+ * at once, it is synced at most twice per writer and usually far less.
+ * <p>
+ * Writers to different files cannot share a sync, so each of those files is synced on its own
+ * with no added delay.
+ * <p>
+ * Instances are thread safe, and one instance is normally shared by every writer to a disk.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class GroupCommitSyncer {
+
+  /** Guards {@link #journals} and the counters. */
+  private final ReentrantLock lock = new ReentrantLock();
+  /** Signalled when a sync finishes. */
+  private final Condition synced = lock.newCondition();
+  /** The state of each file that writers are waiting to sync, by channel. */
+  private final Map<FileChannel, Journal> journals = new IdentityHashMap<FileChannel, Journal>();
+  /** The number of sync requests so far. */
+  private long requestCount;
+  /** The number of syncs performed so far. */
+  private long syncCount;
+
+  /**
+   * Sync a file's data and metadata to disk. Everything written to the channel before the call is
+   * durable once it returns; the sync may be shared with other writers to the same channel.
+   * @param channel The channel of the file to sync.
+   * @throws IOException If the file could not be synced, or the wait was interrupted.
+   */
+  public void sync(FileChannel channel) throws IOException {
+    lock.lock();
+    try {
+      requestCount++;
+      Journal journal = journals.get(channel);
+      if (journal == null) {
+        journal = new Journal();
+        journals.put(channel, journal);
+      }
+      long ticket = ++journal.requested;
+      journal.waiters++;
+      try {
+        while (journal.completed < ticket) {
+          if (journal.syncing) {
+            synced.await();
+          } else {
+            lead(channel, journal);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for group commit");
+      } finally {
+        if (--journal.waiters == 0) {
+          journals.remove(channel);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of sync requests so far.
+   * @return The number of calls to {@link #sync(FileChannel)}.
+   */
+  public long getRequestCount() {
+    lock.lock();
+    try {
+      return requestCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of syncs performed so far. Divided into {@link #getRequestCount()} this gives
+   * the average number of writers sharing each sync.
+   * @return The number of syncs.
+   */
+  public long getSyncCount() {
+    lock.lock();
+    try {
+      return syncCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Sync a file on behalf of every writer that has asked so far. Must be called with the lock
+   * held and no sync of the file in progress; the lock is released during the sync.
+   * @param channel The channel of the file.
+   * @param journal The file's state.
+   * @throws IOException If the file could not be synced. The writers waiting on it will try again.
+   */
+  private void lead(FileChannel channel, Journal journal) throws IOException {
+    long target = journal.requested;
+    journal.syncing = true;
+    boolean done = false;
+    lock.unlock();
+    try {
+      channel.force(true);
+      done = true;
+    } finally {
+      lock.lock();
+      journal.syncing = false;
+      if (done) {
+        journal.completed = target;
+        syncCount++;
+      }
+      synced.signalAll();
+    }
+  }
+
+  /**
+   * The sync state of a single file.
+   */
+  private static final class Journal {
+
+    /** The number of sync requests made for the file. */
+    private long requested;
+    /** The number of requests covered by a finished sync. */
+    private long completed;
+    /** True while a writer is syncing the file. */
+    private boolean syncing;
+    /** The number of writers waiting on the file. */
+    private int waiters;
+  }
+}
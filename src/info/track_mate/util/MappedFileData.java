@@ -0,0 +1,306 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An implementation of the FileData interface that memory-maps a file on disk, so that large files
+ * can be scanned through a ByteBuffer or an InputStream without first being copied onto the heap.
+ * <p>
+ * A single mapping can't exceed 2GB, so the file is mapped as a series of chunks. Views that fall
+ * inside one chunk share its mapping; views that cross a chunk boundary get a mapping of their
+ * own. The file must not be truncated while it is mapped.
+ * <p>
+ * Buffers and streams handed out remain valid after {@link #close()}, which only releases the file
+ * handle. Each buffer is a read-only view with its own position and limit, so several threads can
+ * read through their own views at once.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class MappedFileData implements FileData, Closeable {
+
+  /** The default size of each mapped chunk in bytes (value = 1GB). */
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+  /** The name of the file. */
+  private final String name;
+  /** The size of the file in bytes, fixed when it was mapped. */
+  private final long fileSize;
+  /** The size of each chunk in bytes; only the last chunk may be smaller. */
+  private final int chunkSize;
+  /** The mapped chunks, in file order. */
+  private final ByteBuffer[] chunks;
+  /** The open file, kept so that views across chunk boundaries can be mapped. */
+  private final RandomAccessFile file;
+
+  /**
+   * Creates a new MappedFileData mapping the whole of the specified file.
+   * @param file The file to map.
+   * @throws IOException If the file could not be opened or mapped.
+   */
+  public MappedFileData(File file) throws IOException {
+    this(file, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Creates a new MappedFileData mapping the whole of the specified file.
+   * @param file The file to map.
+   * @param chunkSize The size of each mapped chunk in bytes.
+   * @throws IOException If the file could not be opened or mapped.
+   */
+  public MappedFileData(File file, int chunkSize) throws IOException {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+    }
+    this.name = file.getName();
+    this.chunkSize = chunkSize;
+    this.file = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = this.file.getChannel();
+      this.fileSize = channel.size();
+      int chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+      this.chunks = new ByteBuffer[chunkCount];
+      for (int i = 0; i < chunkCount; i++) {
+        long offset = (long) i * chunkSize;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(chunkSize, fileSize - offset))
+                .asReadOnlyBuffer();
+      }
+    } catch (IOException e) {
+      this.file.close();
+      throw e;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  /**
+   * Get a copy of the contents of the file on the heap. Prefer {@link #getByteBuffer()} or
+   * {@link #getInputStream()} for large files.
+   * @return The contents of the file.
+   * @throws Exception If the file is too large to fit in a byte[].
+   */
+  @Override
+  public byte[] getData() throws Exception {
+    if (fileSize > Integer.MAX_VALUE) {
+      throw new Exception("File is too large to load into memory: " + name + " (" + fileSize + " bytes)");
+    }
+    byte[] data = new byte[(int) fileSize];
+    int position = 0;
+    for (ByteBuffer chunk : chunks) {
+      ByteBuffer view = chunk.duplicate();
+      int length = view.remaining();
+      view.get(data, position, length);
+      position += length;
+    }
+    return data;
+  }
+
+  /**
+   * Get a stream over the mapping. Reading it copies straight from the mapping into the caller's
+   * buffer, with no intermediate copy.
+   * @return A stream over the file data.
+   */
+  @Override
+  public InputStream getInputStream() {
+    return new MappedInputStream();
+  }
+
+  /**
+   * Get a read-only view of the whole file.
+   * @return The view, positioned at the start of the file.
+   * @throws IOException If the file is larger than 2GB, so can't be viewed as one buffer, or the
+   * view could not be mapped.
+   */
+  public ByteBuffer getByteBuffer() throws IOException {
+    if (fileSize > Integer.MAX_VALUE) {
+      throw new IOException("File is too large for a single buffer, use slice() instead: " + name);
+    }
+    return slice(0, (int) fileSize);
+  }
+
+  /**
+   * Get a read-only view of part of the file.
+   * @param offset The offset of the first byte of the view within the file.
+   * @param length The number of bytes in the view.
+   * @return The view, positioned at its first byte.
+   * @throws IOException If the range crosses a chunk boundary and could not be mapped.
+   */
+  public ByteBuffer slice(long offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > fileSize) {
+      throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is outside file of " + fileSize + " bytes");
+    }
+    if (length == 0) {
+      return ByteBuffer.allocate(0).asReadOnlyBuffer();
+    }
+    int index = (int) (offset / chunkSize);
+    int chunkOffset = (int) (offset % chunkSize);
+    if (chunkOffset + length <= chunks[index].capacity()) {
+      ByteBuffer view = chunks[index].duplicate();
+      view.position(chunkOffset);
+      view.limit(chunkOffset + length);
+      return view.slice();
+    }
+    return file.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length).asReadOnlyBuffer();
+  }
+
+  /**
+   * Get the number of chunks the file is mapped as.
+   * @return The number of chunks.
+   */
+  public int getChunkCount() {
+    return chunks.length;
+  }
+
+  /**
+   * Get a read-only view of one of the chunks the file is mapped as. Scanning a file chunk by
+   * chunk never needs a new mapping.
+   * @param index The index of the chunk.
+   * @return The view, positioned at the start of the chunk.
+   */
+  public ByteBuffer getChunk(int index) {
+    return chunks[index].duplicate();
+  }
+
+  /**
+   * Release the file handle. Views already handed out remain readable; views across chunk
+   * boundaries can no longer be created.
+   * @throws IOException If the file could not be closed.
+   */
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * A stream that reads through the chunks of the mapping in order.
+   */
+  private final class MappedInputStream extends InputStream {
+
+    /** The index of the chunk being read. */
+    private int index;
+    /** The view of the chunk being read, or null once every chunk has been read. */
+    private ByteBuffer current;
+    /** The file position saved by {@link #mark(int)}. */
+    private long markPosition;
+
+    private MappedInputStream() {
+      current = chunks.length > 0 ? chunks[0].duplicate() : null;
+    }
+
+    @Override
+    public int read() {
+      if (!advance()) {
+        return -1;
+      }
+      return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!advance()) {
+        return -1;
+      }
+      int length = Math.min(len, current.remaining());
+      current.get(b, off, length);
+      return length;
+    }
+
+    @Override
+    public long skip(long n) {
+      long target = Math.min(position() + Math.max(n, 0), fileSize);
+      long skipped = target - position();
+      seek(target);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(fileSize - position(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+      markPosition = position();
+    }
+
+    @Override
+    public void reset() {
+      seek(markPosition);
+    }
+
+    /**
+     * Move on to the next chunk if the current one has been read.
+     * @return true if there are bytes left to read, else false.
+     */
+    private boolean advance() {
+      while (current != null && !current.hasRemaining()) {
+        index++;
+        current = index < chunks.length ? chunks[index].duplicate() : null;
+      }
+      return current != null;
+    }
+
+    /**
+     * Get the position of the stream within the file.
+     * @return The file position.
+     */
+    private long position() {
+      if (current == null) {
+        return fileSize;
+      }
+      return (long) index * chunkSize + current.position();
+    }
+
+    /**
+     * Move the stream to a position within the file.
+     * @param position The file position.
+     */
+    private void seek(long position) {
+      if (position >= fileSize) {
+        index = chunks.length;
+        current = null;
+        return;
+      }
+      index = (int) (position / chunkSize);
+      current = chunks[index].duplicate();
+      current.position((int) (position % chunkSize));
+    }
+  }
+}
@@ -15,12 +15,19 @@
  */
 package info.track_mate.util;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
+import java.util.regex.Pattern;
 
 /**
  *
@@ -48,6 +55,15 @@ public class MiscHelper {
   /** Decimal format with a comma as the thousands delimiter and 2 decimal places (#,##0.##). */
   public static final DecimalFormat BRITISH_TWO_DECIMALS_FORMAT = new DecimalFormat("#,##0.##");
 
+  /** The size of the heap buffer used to copy between streams. */
+  private static final int COPY_BUFFER_SIZE = 8192;
+  /** The maximum number of free copy buffers kept. */
+  private static final int MAX_POOLED_COPY_BUFFERS = 16;
+  /** The free heap buffers used to copy between streams, so that each copy needn't allocate one. */
+  private static final FreeList<byte[]> copyBufferPool = new FreeList<byte[]>(MAX_POOLED_COPY_BUFFERS);
+  /** The most bytes requested from a single FileChannel.transferFrom call (value = 8MB). */
+  private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+
   /**
    * Copy the data from the InputStream to the OutputStream. This method will close the output stream after the copy is complete.
    * @param inputStream The inputStream to get the data from.
@@ -55,15 +71,124 @@ public class MiscHelper {
    * @throws java.io.IOException If the streams could not be manipulated.
    */
   public static void copyStream(InputStream inputStream, OutputStream outputStream) throws IOException {
-    byte[] buffer = new byte[8192];
-    int length = 0;
-    while ((length = inputStream.read(buffer)) != -1) {
-      outputStream.write(buffer, 0, length);
-    }
-    outputStream.flush();
+    copy(inputStream, outputStream);
     outputStream.close();
   }
 
+  /**
+   * Copy the data from the InputStream to the OutputStream. If both are file streams the data is
+   * transferred by the operating system without passing through the JVM. Neither stream is
+   * closed; the output stream is flushed.
+   * @param inputStream The stream to read the data from, from its current position.
+   * @param outputStream The stream to write the data to.
+   * @return The number of bytes copied.
+   * @throws IOException If the streams could not be read or written.
+   */
+  public static long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+    if (inputStream instanceof FileInputStream && outputStream instanceof FileOutputStream) {
+      return copy(((FileInputStream) inputStream).getChannel(), ((FileOutputStream) outputStream).getChannel());
+    }
+    byte[] buffer = copyBufferPool.poll();
+    if (buffer == null) {
+      buffer = new byte[COPY_BUFFER_SIZE];
+    }
+    try {
+      long total = 0;
+      int length;
+      while ((length = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, length);
+        total += length;
+      }
+      outputStream.flush();
+      return total;
+    } finally {
+      copyBufferPool.offer(buffer);
+    }
+  }
+
+  /**
+   * Copy the data from one channel to another until the source is exhausted. If either side is a
+   * FileChannel the data is transferred by the operating system where it can be; anything the
+   * transfer doesn't cover, or all of it otherwise, is moved through a pooled direct buffer.
+   * Neither channel is closed, and both must be blocking.
+   * @param source The channel to read the data from, from its current position.
+   * @param target The channel to write the data to, from its current position.
+   * @return The number of bytes copied.
+   * @throws IOException If the channels could not be read or written.
+   */
+  public static long copy(ReadableByteChannel source, WritableByteChannel target) throws IOException {
+    long total = 0;
+    if (source instanceof FileChannel) {
+      FileChannel sourceFile = (FileChannel) source;
+      long start = sourceFile.position();
+      long size = sourceFile.size();
+      long position = start;
+      while (position < size) {
+        long transferred = sourceFile.transferTo(position, size - position, target);
+        if (transferred <= 0) {
+          break;
+        }
+        position += transferred;
+      }
+      sourceFile.position(position);
+      total = position - start;
+    } else if (target instanceof FileChannel) {
+      FileChannel targetFile = (FileChannel) target;
+      long start = targetFile.position();
+      long position = start;
+      long transferred;
+      while ((transferred = targetFile.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+        position += transferred;
+      }
+      targetFile.position(position);
+      total = position - start;
+    }
+    // Finish with reads until the end of the source. A transfer stops short for files with no
+    // size of their own, such as /proc files, pipes and devices, and for files that are growing;
+    // after a complete transfer this is a single read that finds the end.
+    DirectBufferPool pool = DirectBufferPool.getDefault();
+    ByteBuffer buffer = pool.acquire();
+    try {
+      while (source.read(buffer) != -1) {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          total += target.write(buffer);
+        }
+        buffer.clear();
+      }
+      return total;
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Convert a file name glob into a regular expression. A '*' matches any run of characters and
+   * a '?' matches any single character; everything else matches itself.
+   * @param glob The glob to convert, such as "*.csv" or "report-????.txt".
+   * @return The equivalent pattern.
+   */
+  public static Pattern globToPattern(String glob) {
+    StringBuilder regex = new StringBuilder(glob.length() + 8);
+    StringBuilder literal = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        if (literal.length() > 0) {
+          regex.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        regex.append(c == '*' ? ".*" : ".");
+      } else {
+        literal.append(c);
+      }
+    }
+    if (literal.length() > 0) {
+      regex.append(Pattern.quote(literal.toString()));
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+
   /**
    * Return the maximum value from the specified arguments
    * @param values The values to return the maximum from.
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+/**
+ * An FTPClient that borrows its session from a shared {@link FTPSessionPool} on
+ * {@link #connect(String, String, String)} and hands it back on {@link #disconnect()}, so that
+ * repeated connections to the same host, user and password reuse a warm, logged-in session.
+ * <p>
+ * Like {@link DefaultFTPClient}, an instance holds a single session at a time and should not be
+ * shared between threads; create one instance per thread over the same pool instead.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class PooledFTPClient extends DefaultFTPClient {
+
+  /** The pool that sessions are borrowed from. */
+  private final FTPSessionPool sessionPool;
+
+  /**
+   * Creates a new PooledFTPClient.
+   * @param sessionPool The pool to borrow sessions from.
+   */
+  public PooledFTPClient(FTPSessionPool sessionPool) {
+    this.sessionPool = sessionPool;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected FTPSession openSession(String hostname, String username, String password) throws Exception {
+    return sessionPool.borrowSession(hostname, username, password);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void closeSession(FTPSession session) throws Exception {
+    sessionPool.returnSession(session);
+  }
+
+}
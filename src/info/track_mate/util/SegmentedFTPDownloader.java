@@ -0,0 +1,382 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a single large remote file as several byte ranges fetched at once over separate
+ * sessions borrowed from an {@link FTPSessionPool}. Each range is requested with a REST offset
+ * and written straight into its place in a preallocated local file.
+ * <p>
+ * Completed segments are recorded in a sidecar file next to the local file (named with the
+ * {@link #SIDECAR_EXTENSION}), so a download that is interrupted, or whose segments fail more
+ * than {@link #maxAttempts} times, can be resumed later by calling
+ * {@link #download(String, FTPFile, File)} again with the same arguments. The sidecar is removed
+ * once every segment has been written.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class SegmentedFTPDownloader {
+
+  /** Logger instance for this class. */
+  private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(SegmentedFTPDownloader.class);
+
+  /** The extension appended to the local file name to name the sidecar file. */
+  public static final String SIDECAR_EXTENSION = ".segments";
+
+  /** The smallest segment worth opening a separate session for (value = 1MB). */
+  private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+  /** The size of the buffer used to copy each segment (value = 64KB). */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The pool that sessions are borrowed from. */
+  private final FTPSessionPool sessionPool;
+  /** The host to download from. */
+  private final String hostname;
+  /** The user to log in as. */
+  private final String username;
+  /** The password to authenticate with. */
+  private final String password;
+  /** The number of segments to split each file into. */
+  private final int segmentCount;
+  /** The number of times a segment is attempted before the download fails. */
+  private int maxAttempts = 3;
+
+  /**
+   * Creates a new SegmentedFTPDownloader.
+   * @param sessionPool The pool to borrow sessions from.
+   * @param hostname The host to download from.
+   * @param username The user to log in as.
+   * @param password The password to authenticate with.
+   * @param segmentCount The number of segments to split each file into, which is also the
+   * number of sessions used at once.
+   */
+  public SegmentedFTPDownloader(FTPSessionPool sessionPool, String hostname, String username, String password, int segmentCount) {
+    if (segmentCount < 1) {
+      throw new IllegalArgumentException("Segment count must be at least 1: " + segmentCount);
+    }
+    this.sessionPool = sessionPool;
+    this.hostname = hostname;
+    this.username = username;
+    this.password = password;
+    this.segmentCount = segmentCount;
+  }
+
+  /**
+   * Set the {@link #maxAttempts}.
+   * @param value
+   */
+  public void setMaxAttempts(int value) {
+    this.maxAttempts = value;
+  }
+
+  /**
+   * Download the specified remote file to a local file, resuming from the sidecar file if a
+   * previous attempt was interrupted.
+   *
+   * @param remoteDirectory The remote directory holding the file, or null for the login directory.
+   * @param remoteFile The remote file to download. If its size is not known the server is asked for it.
+   * @param localFile The local file to write to.
+   * @return The local file.
+   * @throws Exception If any segment could not be downloaded.
+   */
+  public File download(final String remoteDirectory, final FTPFile remoteFile, File localFile) throws Exception {
+    long size = remoteFile.getSize() > 0 ? remoteFile.getSize() : querySize(remoteDirectory, remoteFile.getName());
+    List<long[]> segments = planSegments(size);
+    File sidecarFile = new File(localFile.getPath() + SIDECAR_EXTENSION);
+    Set<Integer> completed = readSidecar(sidecarFile, size, segments.size(), localFile);
+
+    RandomAccessFile fileOut = new RandomAccessFile(localFile, "rw");
+    try {
+      if (completed.isEmpty()) {
+        fileOut.setLength(0);
+        writeSidecarHeader(sidecarFile, size, segments.size());
+      }
+      fileOut.setLength(size);
+      final FileChannel channel = fileOut.getChannel();
+      final FileOutputStream sidecarOut = new FileOutputStream(sidecarFile, true);
+      try {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < segments.size(); i++) {
+          if (completed.contains(i)) {
+            continue;
+          }
+          final int index = i;
+          final long[] segment = segments.get(i);
+          tasks.add(new Callable<Object>() {
+            public Object call() throws Exception {
+              downloadSegment(remoteDirectory, remoteFile.getName(), index, segment[0], segment[1], channel, sidecarOut);
+              return null;
+            }
+          });
+        }
+        runAll(tasks, remoteFile.getName());
+      } finally {
+        sidecarOut.close();
+      }
+    } finally {
+      fileOut.close();
+    }
+
+    if (!sidecarFile.delete()) {
+      logger.warn("Failed to delete sidecar file: " + sidecarFile);
+    }
+    return localFile;
+  }
+
+  // ------ Private Helpers ------
+
+  /**
+   * Split a file of the specified size into segments of roughly equal length.
+   * @param size The size of the file.
+   * @return The segments, each as a {start, end} pair where end is exclusive.
+   */
+  private List<long[]> planSegments(long size) {
+    long count = Math.max(1, Math.min(segmentCount, size / MIN_SEGMENT_SIZE));
+    long segmentSize = (size + count - 1) / count;
+    List<long[]> segments = new ArrayList<long[]>();
+    for (long start = 0; start < size; start += segmentSize) {
+      segments.add(new long[] {start, Math.min(size, start + segmentSize)});
+    }
+    return segments;
+  }
+
+  /**
+   * Ask the server for the size of the remote file.
+   * @param remoteDirectory The remote directory holding the file, or null.
+   * @param remoteFileName The name of the remote file.
+   * @return The size of the remote file.
+   * @throws Exception If the size could not be determined.
+   */
+  private long querySize(String remoteDirectory, String remoteFileName) throws Exception {
+    FTPSession session = openSession(remoteDirectory);
+    try {
+      long size = session.getRemoteSize(remoteFileName);
+      if (size < 0) {
+        throw new Exception("Server could not report size of file: " + remoteFileName);
+      }
+      return size;
+    } finally {
+      sessionPool.returnSession(session);
+    }
+  }
+
+  /**
+   * Read the indexes of the completed segments from the sidecar file. The sidecar is ignored if
+   * it was written for a different remote size or segment plan, or the local file is missing.
+   * @param sidecarFile The sidecar file.
+   * @param size The size of the remote file.
+   * @param count The number of segments planned.
+   * @param localFile The local file being downloaded to.
+   * @return The indexes of the completed segments.
+   * @throws IOException If the sidecar file could not be read.
+   */
+  private Set<Integer> readSidecar(File sidecarFile, long size, int count, File localFile) throws IOException {
+    Set<Integer> completed = new HashSet<Integer>();
+    if (!sidecarFile.exists() || localFile.length() != size) {
+      return completed;
+    }
+    BufferedReader reader = new BufferedReader(new FileReader(sidecarFile));
+    try {
+      String header = reader.readLine();
+      if (header == null || !header.equals(size + " " + count)) {
+        logger.info("Ignoring sidecar written for a different download: " + sidecarFile);
+        return completed;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        try {
+          completed.add(Integer.valueOf(line.trim()));
+        } catch (NumberFormatException e) {
+          // A torn final line from a crash mid-write; the segment is simply fetched again.
+          logger.debug("Ignoring malformed sidecar line: " + line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    logger.info("Resuming download with " + completed.size() + " of " + count + " segments complete");
+    return completed;
+  }
+
+  /**
+   * Start a new sidecar file for the specified download.
+   * @param sidecarFile The sidecar file.
+   * @param size The size of the remote file.
+   * @param count The number of segments planned.
+   * @throws IOException If the sidecar file could not be written.
+   */
+  private void writeSidecarHeader(File sidecarFile, long size, int count) throws IOException {
+    FileOutputStream sidecarOut = new FileOutputStream(sidecarFile, false);
+    try {
+      sidecarOut.write((size + " " + count + "\n").getBytes("US-ASCII"));
+      sidecarOut.getFD().sync();
+    } finally {
+      sidecarOut.close();
+    }
+  }
+
+  /**
+   * Run the segment downloads concurrently, retrying failed segments.
+   * @param tasks The segment downloads.
+   * @param remoteFileName The name of the remote file, for error messages.
+   * @throws Exception If any segment still failed after {@link #maxAttempts} attempts.
+   */
+  private void runAll(List<Callable<Object>> tasks, String remoteFileName) throws Exception {
+    if (tasks.isEmpty()) {
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), new SegmentThreadFactory());
+    try {
+      List<Callable<Object>> remaining = tasks;
+      Exception lastFailure = null;
+      for (int attempt = 1; attempt <= maxAttempts && !remaining.isEmpty(); attempt++) {
+        List<Future<Object>> futures = executor.invokeAll(remaining);
+        List<Callable<Object>> failed = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < futures.size(); i++) {
+          try {
+            futures.get(i).get();
+          } catch (Exception e) {
+            logger.warn("Segment download failed (attempt " + attempt + " of " + maxAttempts + ")", e);
+            lastFailure = e;
+            failed.add(remaining.get(i));
+          }
+        }
+        remaining = failed;
+      }
+      if (!remaining.isEmpty()) {
+        throw new Exception("Failed to download " + remaining.size() + " segment(s) of file: " + remoteFileName, lastFailure);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Download one segment into its place in the local file, then record it in the sidecar.
+   * @param remoteDirectory The remote directory holding the file, or null.
+   * @param remoteFileName The name of the remote file.
+   * @param index The index of the segment.
+   * @param start The offset of the first byte of the segment.
+   * @param end The offset after the last byte of the segment.
+   * @param channel The channel to the local file.
+   * @param sidecarOut The stream to the sidecar file.
+   * @throws Exception If the segment could not be downloaded.
+   */
+  private void downloadSegment(String remoteDirectory, String remoteFileName, int index, long start, long end,
+          FileChannel channel, FileOutputStream sidecarOut) throws Exception {
+    FTPSession session = openSession(remoteDirectory);
+    boolean reusable = false;
+    try {
+      session.setRestartOffset(start);
+      InputStream dataIn = session.retrieveFileStream(remoteFileName);
+      if (dataIn == null) {
+        throw new Exception("Server refused transfer: " + session.getReplyString());
+      }
+      long position = start;
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (position < end) {
+          int length = dataIn.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+          if (length == -1) {
+            throw new IOException("Transfer ended early at offset " + position + " of segment " + index);
+          }
+          ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+          while (byteBuffer.hasRemaining()) {
+            position += channel.write(byteBuffer, position);
+          }
+        }
+        // The last segment runs to the end of the file, so its transfer finishes cleanly; the
+        // others are cut short and leave the control connection in an unknown state.
+        reusable = dataIn.read() == -1;
+      } finally {
+        dataIn.close();
+      }
+      if (reusable) {
+        reusable = session.completePendingCommand();
+      }
+    } finally {
+      if (reusable) {
+        sessionPool.returnSession(session);
+      } else {
+        sessionPool.invalidateSession(session);
+      }
+    }
+
+    channel.force(false);
+    synchronized (sidecarOut) {
+      sidecarOut.write((index + "\n").getBytes("US-ASCII"));
+      sidecarOut.getFD().sync();
+    }
+  }
+
+  /**
+   * Borrow a session, move it into the remote directory and switch it to binary mode.
+   * @param remoteDirectory The remote directory holding the file, or null.
+   * @return The session.
+   * @throws Exception If the session could not be borrowed or prepared.
+   */
+  private FTPSession openSession(String remoteDirectory) throws Exception {
+    FTPSession session = sessionPool.borrowSession(hostname, username, password);
+    try {
+      if (remoteDirectory != null && !session.changeWorkingDirectory(remoteDirectory)) {
+        throw new Exception("Failed to change working directory: " + session.getReplyString());
+      }
+      if (!session.setFileType(org.apache.commons.net.ftp.FTP.BINARY_FILE_TYPE)) {
+        throw new Exception("Failed to set binary file type: " + session.getReplyString());
+      }
+    } catch (Exception e) {
+      sessionPool.returnSession(session);
+      throw e;
+    }
+    return session;
+  }
+
+  /**
+   * Creates the daemon threads that download segments.
+   */
+  private static final class SegmentThreadFactory implements ThreadFactory {
+
+    /** The number of threads created so far. */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "SegmentedFTPDownloader-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
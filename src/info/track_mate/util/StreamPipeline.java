@@ -0,0 +1,130 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chain of {@link StreamStage}s that transforms a stream in a single pass, so that a payload can
+ * be fetched, unzipped, hashed and stored without ever being held in memory as a whole. For
+ * example, to unzip a download and store it on disk along with its MD5:
+ * <pre>
+ *   DigestStage md5 = new DigestStage("MD5");
+ *   StreamPipeline pipeline = new StreamPipeline().then(StreamPipeline.unzip()).then(md5);
+ *   FileData download = ftpClient.downloadStream(remoteFile);
+ *   diskFileData.setData(pipeline.open(download.getInputStream()));
+ *   String checksum = md5.getDigestString(true);
+ * </pre>
+ * Stages run on the thread reading the pipeline unless an {@link AsyncStage} is added, which moves
+ * everything before it onto a separate thread with a bounded read-ahead between the two.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public class StreamPipeline {
+
+  /** The size of the buffer used by {@link #run(InputStream, OutputStream)}. */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** The stages, in the order the bytes pass through them. */
+  private final List<StreamStage> stages = new ArrayList<StreamStage>();
+
+  /**
+   * Get a stage that unzips a zipped stream holding a single file.
+   * @return The unzip stage.
+   * @see ZipHelper#openZippedFile(InputStream)
+   */
+  public static StreamStage unzip() {
+    return new StreamStage() {
+      public InputStream open(InputStream in) throws IOException {
+        return ZipHelper.openZippedFile(in);
+      }
+    };
+  }
+
+  /**
+   * Add a stage to the end of the pipeline.
+   * @param stage The stage to add.
+   * @return This pipeline.
+   */
+  public StreamPipeline then(StreamStage stage) {
+    stages.add(stage);
+    return this;
+  }
+
+  /**
+   * Feed a stream into the pipeline.
+   * @param source The stream to transform.
+   * @return The output of the last stage. Closing it closes the source and every stage.
+   * @throws IOException If a stage could not be started.
+   */
+  public InputStream open(InputStream source) throws IOException {
+    InputStream in = source;
+    try {
+      for (StreamStage stage : stages) {
+        in = stage.open(in);
+      }
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    } catch (RuntimeException e) {
+      in.close();
+      throw e;
+    }
+    return in;
+  }
+
+  /**
+   * Feed a channel into the pipeline.
+   * @param source The channel to transform.
+   * @return The output of the last stage. Closing it closes the channel and every stage.
+   * @throws IOException If a stage could not be started.
+   */
+  public InputStream open(ReadableByteChannel source) throws IOException {
+    return open(Channels.newInputStream(source));
+  }
+
+  /**
+   * Run a stream through the pipeline into a sink. The source is closed afterwards; the sink is
+   * flushed but left open.
+   * @param source The stream to transform.
+   * @param sink The stream to write the output of the last stage to.
+   * @return The number of bytes written to the sink.
+   * @throws IOException If the source could not be read, a stage failed or the sink could not be
+   * written to.
+   */
+  public long run(InputStream source, OutputStream sink) throws IOException {
+    InputStream in = open(source);
+    long total = 0;
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        sink.write(buffer, 0, length);
+        total += length;
+      }
+      sink.flush();
+    } finally {
+      in.close();
+    }
+    return total;
+  }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A single step of a {@link StreamPipeline}: it transforms a stream of bytes as they are read,
+ * rather than reading the whole input first.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public interface StreamStage {
+
+  /** Wrap the output of the previous stage.
+   *
+   * @param in The output of the previous stage.
+   * @return The output of this stage. Closing it must close <code>in</code>.
+   * @throws IOException If the stage could not be started.
+   */
+  InputStream open(InputStream in) throws IOException;
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+/**
+ * How {@link DiskFileData} writes new data over a file.
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+public enum WriteMode {
+
+  /**
+   * Truncate the file and write the new data into it. Fastest, but a crash part way through
+   * leaves a torn file.
+   */
+  IN_PLACE,
+
+  /**
+   * Write the new data to a temporary file beside the target and rename it over the target, so
+   * that readers see either the old data or the new. A crash may still lose the new data, or
+   * leave an empty file on file systems that reorder the rename before the data is written.
+   */
+  ATOMIC,
+
+  /**
+   * As {@link #ATOMIC}, but sync the temporary file to disk before the rename, so that once the
+   * write returns the new data survives a crash.
+   * <p>
+   * Concurrent durable writes do not share fsyncs. Java 6 can only sync one file at a time and
+   * each durable write goes to its own temporary file, so every write costs a full fsync and the
+   * rate of durable writes is bounded by the disk's fsync rate. Where that is too slow,
+   * {@link #ATOMIC} keeps writes atomic but gives up durability.
+   */
+  DURABLE
+}
@@ -16,7 +16,8 @@
 package info.track_mate.util;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -50,44 +51,110 @@ public class ZipHelper {
    * @throws java.lang.Exception If the byte[] could not be unzipped.
    */
   public static byte[] unzipBytes(InputStream inStream) throws Exception {
+    ZippedFileInputStream unzippedIn = (ZippedFileInputStream) openZippedFile(inStream);
+    ChunkedBuffer buffer = new ChunkedBuffer(unzippedIn.entrySize);
+    try {
+      buffer.readFrom(unzippedIn);
+      return buffer.toByteArray();
+    } finally {
+      buffer.release();
+      unzippedIn.close();
+    }
+  }
+
+  /**
+   * Open a stream over the single file held in a zipped stream, so that it can be unzipped as it
+   * is read rather than all at once. Directory entries are skipped. If the zip holds no file the
+   * stream is empty; if it holds more than one, reading past the end of the first fails.
+   * Closing the returned stream closes the zipped stream.
+   * @param inStream The zipped stream.
+   * @return A stream over the unzipped file contents.
+   * @throws IOException If the zipped stream could not be read.
+   */
+  public static InputStream openZippedFile(InputStream inStream) throws IOException {
     ZipInputStream zipIn = new ZipInputStream(inStream);
-    byte[] toReturn = loadZippedFile(zipIn);
-    return toReturn;
+    ZipEntry zipEntry = nextFileEntry(zipIn);
+    return new ZippedFileInputStream(zipIn, zipEntry);
   }
 
   // ------ Private Helpers ------
 
   /**
-   * Read the contents of the supplied input stream into a byte array.
-   * @param zipInputStream The input stream to read the data from.
-   * @return The unzipped file contents.
-   * @throws java.lang.Exception If the data couldn't be unzipped.
-   * @todo Currently this method expects exactly 1 file inside the zip.
+   * Move the zip stream on to its next file entry, skipping directories.
+   * @param zipInputStream The zip stream.
+   * @return The file entry the stream is now positioned on, or null if there are no more files.
+   * @throws IOException If the zip stream could not be read.
    */
-  private static byte[] loadZippedFile(ZipInputStream zipInputStream) throws Exception {
-    boolean foundFile = false;
-    ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+  private static ZipEntry nextFileEntry(ZipInputStream zipInputStream) throws IOException {
     ZipEntry zipEntry = zipInputStream.getNextEntry();
     while (zipEntry != null) {
       if (logger.isDebugEnabled()) {
         logger.debug("Found zipped " + (zipEntry.isDirectory()? "directory" : "file") + ": " + zipEntry.getName());
       }
-      if (zipEntry.isDirectory()) {
-        logger.debug("  Ignoring directory.");
-        continue;
+      if (!zipEntry.isDirectory()) {
+        return zipEntry;
+      }
+      logger.debug("  Ignoring directory.");
+      zipEntry = zipInputStream.getNextEntry();
+    }
+    return null;
+  }
+
+  /**
+   * A stream over the single file entry of a zip stream, which checks that no further file
+   * follows once the entry is exhausted.
+   */
+  private static final class ZippedFileInputStream extends FilterInputStream {
+
+    /** The uncompressed size of the file entry, or -1 if the zip doesn't record it up front. */
+    private final long entrySize;
+    /** True once the end of the file entry has been reached and checked. */
+    private boolean finished;
+
+    private ZippedFileInputStream(ZipInputStream in, ZipEntry zipEntry) {
+      super(in);
+      this.entrySize = zipEntry == null ? 0 : zipEntry.getSize();
+      this.finished = zipEntry == null;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (finished) {
+        return -1;
+      }
+      int b = in.read();
+      if (b == -1) {
+        finish();
       }
+      return b;
+    }
 
-      if (foundFile) {
-        throw new Exception("Found multiple zipped file entries in zip file.");
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (finished) {
+        return -1;
       }
-      foundFile = true;
+      int length = in.read(b, off, len);
+      if (length == -1) {
+        finish();
+      }
+      return length;
+    }
 
-      MiscHelper.copyStream(zipInputStream, bytesOut);
-      zipEntry = zipInputStream.getNextEntry();
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    /**
+     * Check that the zip holds no further files once the first has been read.
+     * @throws IOException If another file follows.
+     */
+    private void finish() throws IOException {
+      finished = true;
+      if (nextFileEntry((ZipInputStream) in) != null) {
+        throw new IOException("Found multiple zipped file entries in zip file.");
+      }
     }
-    zipInputStream.close();
-    bytesOut.flush();
-    bytesOut.close();
-    return bytesOut.toByteArray();
   }
 }
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2000-2012 TrackMate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.track_mate.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+
+/**
+ * A precomputed table of the instants at which a timezone's offset from UTC changes, used by
+ * {@link DateHelper}'s bulk methods to find the local day of many timestamps without asking the
+ * timezone about each one. Within the years the table covers, the transitions are indexed by
+ * buckets of time, about twice as many as there are transitions, so finding a timestamp's offset
+ * is a shift to pick its bucket and a comparison or two against the transitions in it; outside
+ * them the timezone is asked directly. Tables are built the first time a timezone is used, and
+ * the most recently used {@link #MAX_TABLES} are kept for reuse.
+ *
+ * @author Gareth Smith <gareth@track-mate.info>
+ */
+final class ZoneTransitionTable {
+
+  /** The first year covered by the tables. */
+  static final int FIRST_YEAR = 1900;
+  /** The year after the last year covered by the tables. */
+  static final int END_YEAR = 2101;
+
+  /**
+   * The interval at which the timezone is sampled for changes, which must be shorter than the
+   * time between any two transitions.
+   */
+  private static final long SCAN_STEP_MILLIS = 6L * 60 * 60 * 1000;
+  /** The maximum number of tables kept for reuse. */
+  static final int MAX_TABLES = 64;
+
+  /** The most recently used tables, keyed by a copy of their timezone. Guarded by itself. */
+  private static final Map<TimeZone, ZoneTransitionTable> TABLES = new LinkedHashMap<TimeZone, ZoneTransitionTable>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<TimeZone, ZoneTransitionTable> eldest) {
+      return size() > MAX_TABLES;
+    }
+  };
+
+  /** The timezone, copied so that changes to the caller's instance can't invalidate the table. */
+  private final TimeZone timezone;
+  /** True if local times resolve as a SimpleTimeZone does, else as the zoneinfo zones do. */
+  private final boolean standardTimeRule;
+  /** The first instant covered by the table. */
+  private final long rangeStart;
+  /** The instant after the last instant covered by the table. */
+  private final long rangeEnd;
+  /** The instants at which the offset changes, in order. */
+  private final long[] transitions;
+  /** The offset in force before each transition, followed by the offset after the last one. */
+  private final int[] offsets;
+  /** The local time at which each transition takes effect, read with its new offset. */
+  private final long[] wallTransitions;
+  /** The log2 of the length of the buckets indexing the transitions. */
+  private final int bucketShift;
+  /** The number of transitions before the start of each bucket of time. */
+  private final int[] transitionBuckets;
+  /** The number of wall transitions before the start of each bucket of local time. */
+  private final int[] wallTransitionBuckets;
+
+  /**
+   * Creates a new ZoneTransitionTable by sampling a timezone.
+   * @param timezone The timezone, which must not be changed afterwards.
+   */
+  private ZoneTransitionTable(TimeZone timezone) {
+    this.timezone = timezone;
+    this.standardTimeRule = timezone instanceof SimpleTimeZone;
+    this.rangeStart = DateHelper.toDay(FIRST_YEAR, 1, 1) * DateHelper.MILLISECONDS_PER_DAY;
+    this.rangeEnd = DateHelper.toDay(END_YEAR, 1, 1) * DateHelper.MILLISECONDS_PER_DAY;
+    long[] foundTransitions = new long[16];
+    int[] foundOffsets = new int[17];
+    int count = 0;
+    int current = timezone.getOffset(rangeStart);
+    foundOffsets[0] = current;
+    if (!DateHelper.isFixedOffset(timezone)) {
+      long time = rangeStart;
+      while (time < rangeEnd) {
+        long next = Math.min(time + SCAN_STEP_MILLIS, rangeEnd);
+        if (timezone.getOffset(next) == current) {
+          time = next;
+          continue;
+        }
+        // Narrow down to the first millisecond with the new offset.
+        long low = time;
+        long high = next;
+        while (high - low > 1) {
+          long middle = low + (high - low) / 2;
+          if (timezone.getOffset(middle) == current) {
+            low = middle;
+          } else {
+            high = middle;
+          }
+        }
+        if (count == foundTransitions.length) {
+          foundTransitions = Arrays.copyOf(foundTransitions, count * 2);
+          foundOffsets = Arrays.copyOf(foundOffsets, count * 2 + 1);
+        }
+        current = timezone.getOffset(high);
+        foundTransitions[count] = high;
+        foundOffsets[++count] = current;
+        time = high;
+      }
+    }
+    this.transitions = Arrays.copyOf(foundTransitions, count);
+    this.offsets = Arrays.copyOf(foundOffsets, count + 1);
+    this.wallTransitions = new long[count];
+    for (int i = 0; i < count; i++) {
+      wallTransitions[i] = transitions[i] + offsets[i + 1];
+    }
+    int shift = 0;
+    while (((rangeEnd - rangeStart) >> shift) > 2L * count) {
+      shift++;
+    }
+    this.bucketShift = shift;
+    this.transitionBuckets = buildBuckets(transitions);
+    this.wallTransitionBuckets = buildBuckets(wallTransitions);
+  }
+
+  /**
+   * Get the table for a timezone, building it if this is the first time the timezone has been
+   * used.
+   * @param timezone The timezone.
+   * @return The table.
+   */
+  static ZoneTransitionTable forZone(TimeZone timezone) {
+    synchronized (TABLES) {
+      ZoneTransitionTable table = TABLES.get(timezone);
+      if (table != null) {
+        return table;
+      }
+    }
+    // Built outside the lock, as sampling a zone takes a while; a racing build is discarded.
+    TimeZone copy = (TimeZone) timezone.clone();
+    ZoneTransitionTable table = new ZoneTransitionTable(copy);
+    synchronized (TABLES) {
+      ZoneTransitionTable existing = TABLES.get(copy);
+      if (existing != null) {
+        return existing;
+      }
+      TABLES.put(copy, table);
+      return table;
+    }
+  }
+
+  /**
+   * Get the number of transitions in the table.
+   * @return The number of times the offset changes in the years covered.
+   */
+  int getTransitionCount() {
+    return transitions.length;
+  }
+
+  /**
+   * Fill an array with the local day numbers of a range of timestamps, as
+   * {@link DateHelper#localDay(long, TimeZone)} would.
+   * @param epochMillis The timestamps.
+   * @param days The array to fill, at the same indexes as the timestamps.
+   * @param from The index of the first timestamp.
+   * @param to The index after the last timestamp.
+   */
+  void localDays(long[] epochMillis, int[] days, int from, int to) {
+    for (int i = from; i < to; i++) {
+      long time = epochMillis[i];
+      if (time < rangeStart || time >= rangeEnd) {
+        days[i] = (int) DateHelper.localDay(time, timezone);
+        continue;
+      }
+      int index = find(transitions, transitionBuckets, time);
+      days[i] = (int) DateHelper.floorDiv(time + offsets[index], DateHelper.MILLISECONDS_PER_DAY);
+    }
+  }
+
+  /**
+   * Fill an array with the start of the local day of a range of timestamps, as
+   * {@link DateHelper#dayStart(long, TimeZone)} would.
+   * @param epochMillis The timestamps.
+   * @param dayStarts The array to fill, at the same indexes as the timestamps.
+   * @param from The index of the first timestamp.
+   * @param to The index after the last timestamp.
+   */
+  void dayStarts(long[] epochMillis, long[] dayStarts, int from, int to) {
+    long lastDay = Long.MIN_VALUE;
+    long lastDayStart = 0;
+    for (int i = from; i < to; i++) {
+      long time = epochMillis[i];
+      // Leave a day's margin so that the day start is also inside the table.
+      if (time < rangeStart + DateHelper.MILLISECONDS_PER_DAY || time >= rangeEnd - DateHelper.MILLISECONDS_PER_DAY) {
+        dayStarts[i] = DateHelper.dayStart(time, timezone);
+        continue;
+      }
+      int index = find(transitions, transitionBuckets, time);
+      long day = DateHelper.floorDiv(time + offsets[index], DateHelper.MILLISECONDS_PER_DAY);
+      if (day != lastDay) {
+        long wallMillis = day * DateHelper.MILLISECONDS_PER_DAY;
+        if (standardTimeRule) {
+          lastDayStart = wallMillis - offsets[find(transitions, transitionBuckets, wallMillis - timezone.getRawOffset())];
+        } else {
+          lastDayStart = wallMillis - offsets[find(wallTransitions, wallTransitionBuckets, wallMillis)];
+        }
+        lastDay = day;
+      }
+      dayStarts[i] = lastDayStart;
+    }
+  }
+
+  /**
+   * Index a sorted array of times by bucket.
+   * @param sorted The times.
+   * @return The number of times before the start of each bucket, or null if there are no times.
+   */
+  private int[] buildBuckets(long[] sorted) {
+    if (sorted.length == 0) {
+      return null;
+    }
+    int[] buckets = new int[(int) ((rangeEnd - rangeStart) >> bucketShift) + 1];
+    int index = 0;
+    for (int bucket = 0; bucket < buckets.length; bucket++) {
+      long bucketStart = rangeStart + ((long) bucket << bucketShift);
+      while (index < sorted.length && sorted[index] <= bucketStart) {
+        index++;
+      }
+      buckets[bucket] = index;
+    }
+    return buckets;
+  }
+
+  /**
+   * Find the number of entries in a sorted array of times that are at or before a time.
+   * @param sorted The sorted times.
+   * @param buckets The index of the times built by {@link #buildBuckets(long[])}.
+   * @param time The time, which must lie within the table's range.
+   * @return The index of the first entry after the time, or the array length if there is none.
+   */
+  private int find(long[] sorted, int[] buckets, long time) {
+    if (buckets == null) {
+      return 0;
+    }
+    int index = buckets[(int) ((time - rangeStart) >> bucketShift)];
+    while (index < sorted.length && sorted[index] <= time) {
+      index++;
+    }
+    return index;
+  }
+
+}